@@ -0,0 +1,99 @@
+/*
+  Copyright 2012 TripAdvisor, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.tripadvisor.hadoop;
+
+import java.io.*;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.fs.MD5MD5CRC32FileChecksum;
+import org.openjdk.jmh.annotations.*;
+
+/** benchmark.  hdfs-style checksum of local data, over file sizes and
+ * block sizes.  localFile is the checksum of a copy on disk, as
+ * compareChecksums and VerifyHdfsBackup take it; inMemory is the same
+ * over bytes already read, as packed files and the copy stream take
+ * it.  The file is written once per trial, so it is read from the
+ * page cache and the numbers are cpu, not disk.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx1g"})
+public class ChecksumBenchmark
+{
+    @Param({"1", "64", "256"})
+    public int m_nFileMB;
+
+    @Param({"67108864", "134217728"})
+    public long m_nBlockSize;
+
+    private File m_file;
+    private byte[] m_ab;
+    private ExternalHDFSChecksumGenerator m_generator;
+
+    // ------------------------------------------------------------
+
+    @Setup(Level.Trial)
+    public void setUp()
+        throws IOException
+    {
+        m_ab = new byte[m_nFileMB * 1024 * 1024];
+        new Random(42).nextBytes(m_ab);
+
+        m_file = File.createTempFile("checksum-bench", ".dat");
+        FileOutputStream out = new FileOutputStream(m_file);
+        try
+        {
+            out.write(m_ab);
+        }
+        finally
+        {
+            try { out.close(); } catch (Exception e2) {}
+        }
+
+        m_generator = new ExternalHDFSChecksumGenerator();
+    }
+
+    // ------------------------------------------------------------
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        m_file.delete();
+    }
+
+    // ------------------------------------------------------------
+
+    @Benchmark
+    public MD5MD5CRC32FileChecksum localFile()
+        throws IOException
+    {
+        return m_generator.getLocalFilesystemHDFSStyleChecksum(m_file.getPath(), 512, m_nBlockSize);
+    }
+
+    // ------------------------------------------------------------
+
+    @Benchmark
+    public MD5MD5CRC32FileChecksum inMemory()
+        throws IOException
+    {
+        return HDFSStyleChecksumOutputStream.checksum(m_ab, 0, m_ab.length, m_nBlockSize);
+    }
+}
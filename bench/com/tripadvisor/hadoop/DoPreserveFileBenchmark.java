@@ -0,0 +1,98 @@
+/*
+  Copyright 2012 TripAdvisor, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.tripadvisor.hadoop;
+
+import java.io.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/** benchmark.  the no-preserve substring match, done for every file
+ * that replaces an older copy.  No substrings means no --no-preserve
+ * file.  Time is per path.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DoPreserveFileBenchmark
+{
+    static final int N_PATHS = 4096;
+
+    @Param({"0", "5", "50"})
+    public int m_nSubstrings;
+
+    private BackupHdfs m_bak;
+    private String[] m_asPaths;
+
+    // ------------------------------------------------------------
+
+    @Setup(Level.Trial)
+    public void setUp()
+        throws IOException
+    {
+        // writes no scripts
+        m_bak = new BackupHdfs(false);
+
+        if (m_nSubstrings > 0)
+        {
+            File f = File.createTempFile("no-preserve", ".txt");
+            PrintWriter out = new PrintWriter(new FileWriter(f));
+            try
+            {
+                for (int i = 0; i < m_nSubstrings; i++)
+                {
+                    out.println("/warehouse/t_staging_" + i + "/");
+                }
+            }
+            finally
+            {
+                out.close();
+            }
+
+            m_bak.initializeNoPreserve(f.getPath());
+            f.delete();
+        }
+
+        m_asPaths = new String[N_PATHS];
+        for (int i = 0; i < N_PATHS; i++)
+        {
+            String sTable = (i % 8 == 0) ? "t_staging_" + (i % 60) : "t_table_" + (i % 500);
+            m_asPaths[i] = "/disk1/hdfs-backup/current/user/hive/warehouse/" + sTable
+                + "/ds=2012-01-" + (10 + i % 20) + "/part-" + (10000 + i);
+        }
+    }
+
+    // ------------------------------------------------------------
+
+    @Benchmark
+    @OperationsPerInvocation(N_PATHS)
+    public int doPreserveFile()
+    {
+        int nPreserved = 0;
+        for (String sPath : m_asPaths)
+        {
+            if (m_bak.doPreserveFile(sPath))
+            {
+                nPreserved++;
+            }
+        }
+        return nPreserved;
+    }
+}
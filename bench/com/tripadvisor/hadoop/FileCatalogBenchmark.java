@@ -0,0 +1,99 @@
+/*
+  Copyright 2012 TripAdvisor, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.tripadvisor.hadoop;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.openjdk.jmh.annotations.*;
+
+/** benchmark.  the catalog the scan fills and sorts by mtime before
+ * the copy.  sort is the sort alone, over a catalog filled once;
+ * addAndSort also fills it, as a run does.  Files are spread over
+ * partition directories, with mtimes over a month.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx2g"})
+public class FileCatalogBenchmark
+{
+    @Param({"100000", "1000000"})
+    public int m_nFiles;
+
+    private FileStatus[] m_aStats;
+    private FileCatalog m_catalog;
+
+    // ------------------------------------------------------------
+
+    @Setup(Level.Trial)
+    public void setUp()
+    {
+        Random r = new Random(42);
+        long nStart = 1325376000000L;
+        FsPermission perm = new FsPermission((short) 0644);
+
+        m_aStats = new FileStatus[m_nFiles];
+        for (int i = 0; i < m_nFiles; i++)
+        {
+            Path p = new Path("/user/hive/warehouse/t_table_" + (i % 300)
+                              + "/ds=2012-01-" + (10 + (i / 300) % 20)
+                              + "/part-" + i);
+            long nMtime = nStart + (long) (r.nextDouble() * 30L * 24 * 3600 * 1000);
+            m_aStats[i] = new FileStatus(r.nextInt(1 << 28), false, 3, 128L * 1024 * 1024,
+                                         nMtime, nMtime, perm, "hive", "hadoop", p);
+        }
+
+        m_catalog = fill();
+    }
+
+    // ------------------------------------------------------------
+
+    private FileCatalog fill()
+    {
+        FileCatalog catalog = new FileCatalog();
+        for (FileStatus stat : m_aStats)
+        {
+            catalog.add(stat);
+        }
+        return catalog;
+    }
+
+    // ------------------------------------------------------------
+
+    @Benchmark
+    public long sort()
+    {
+        m_catalog.sort();
+        return m_catalog.getModificationTime(0);
+    }
+
+    // ------------------------------------------------------------
+
+    @Benchmark
+    public long addAndSort()
+    {
+        FileCatalog catalog = fill();
+        catalog.sort();
+        return catalog.getModificationTime(0);
+    }
+}
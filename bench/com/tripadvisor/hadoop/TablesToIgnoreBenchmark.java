@@ -0,0 +1,105 @@
+/*
+  Copyright 2012 TripAdvisor, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.tripadvisor.hadoop;
+
+import java.io.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/** benchmark.  matching hdfs paths to ignored tables, as the scan does
+ * for every file.  The paths are a mix of partitioned tables, dated
+ * tables, and files outside the warehouse; a tenth of the tables are
+ * ignored.  Time is per path.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TablesToIgnoreBenchmark
+{
+    static final int N_PATHS = 4096;
+
+    @Param({"10", "1000"})
+    public int m_nTables;
+
+    private TablesToIgnore m_ignoreTables;
+    private String[] m_asPaths;
+
+    // ------------------------------------------------------------
+
+    @Setup(Level.Trial)
+    public void setUp()
+        throws IOException
+    {
+        File f = File.createTempFile("ignore-tables", ".txt");
+        PrintWriter out = new PrintWriter(new FileWriter(f));
+        try
+        {
+            for (int i = 0; i < m_nTables; i += 10)
+            {
+                out.println("t_table_" + i);
+            }
+        }
+        finally
+        {
+            out.close();
+        }
+
+        m_ignoreTables = new TablesToIgnore(f.getPath());
+        f.delete();
+
+        m_asPaths = new String[N_PATHS];
+        for (int i = 0; i < N_PATHS; i++)
+        {
+            int nTable = (i * 7) % m_nTables;
+            switch (i % 4)
+            {
+            case 0:
+            case 1:
+                m_asPaths[i] = "/user/hive/warehouse/t_table_" + nTable
+                    + "/ds=2012-01-" + (10 + i % 20) + "/part-" + (10000 + i);
+                break;
+            case 2:
+                m_asPaths[i] = "/user/hive/warehouse/t_table_" + nTable
+                    + "_201201" + (10 + i % 20) + "/part-00000";
+                break;
+            default:
+                m_asPaths[i] = "/user/etl/logs/2012/01/" + (10 + i % 20) + "/access-" + i + ".log";
+            }
+        }
+    }
+
+    // ------------------------------------------------------------
+
+    @Benchmark
+    @OperationsPerInvocation(N_PATHS)
+    public int doIgnoreFile()
+    {
+        int nIgnored = 0;
+        for (String sPath : m_asPaths)
+        {
+            if (m_ignoreTables.doIgnoreFile(sPath))
+            {
+                nIgnored++;
+            }
+        }
+        return nIgnored;
+    }
+}
@@ -45,9 +45,100 @@ public class BackupHdfs
     private PrintWriter m_wrMkdirs;
     private PrintWriter m_wrChmods;
     static private int m_nSleepSeconds;
+    private DirLister m_dirLister;
+
+    // set with --scan-cache: listings of unchanged directories come
+    // from the last scan
+    private ScanCache m_scanCache;
+
+    // set with --block-threads: copies files bigger than a block one
+    // block per thread
+    private BlockCopier m_blockCopier;
+
+    // rate limits shared by all copies; no limits unless set
+    private Throttle m_throttle = new Throttle(0, 0, null);
+
+    // set with --manifest: what was backed up so far, to skip files
+    // that did not change
+    private BackupManifest m_manifest;
+    private String m_sManifestFilename;
+
+    // set with --dedup-store: file contents are stored once and
+    // linked into place
+    private DedupStore m_dedupStore;
+
+    // set with --compress: backup files are gzipped
+    private ParallelGzip m_gzip;
+
+    // set with --pack-dir: small files are appended to packs
+    private PackWriter m_packWriter;
+
+    // set with --metadata: owners and modes go there instead of the
+    // scripts.  m_bScanErrors is set if the scan missed directories,
+    // and the paths under them can't be taken as gone.
+    private MetadataManifest m_metadata;
+    private volatile boolean m_bScanErrors = false;
+
+    private CopyPipeline m_pipeline;
+
+    // the local roots; more than one with a comma-separated
+    // --local-path, and then files are placed on them
+    private DiskSet m_disks;
+
+    // set when file statuses come from an fsimage dump, whose
+    // timestamps only go down to the minute
+    private boolean m_bMinuteMtimes = false;
+
+    // set in snapshot mode: files under m_liveRoot are read from the
+    // same place under m_readRoot, the snapshot taken for this run
+    private Path m_liveRoot = null;
+    private Path m_readRoot = null;
+
+    // set with --journal: progress of the run, to restart it where it
+    // stopped.  m_bResumed is set if this run is such a restart.
+    private BackupJournal m_journal;
+    private boolean m_bResumed = false;
+
+    // set with --retries: a failed file is tried again m_nRetries
+    // times, waiting twice as long each time, then put in quarantine
+    // and tried once more at the end, instead of ending the run
+    private int m_nRetries = 0;
+    private long m_nRetryDelay = N_DEFAULT_RETRY_DELAY;
+    private final List<FileStatus> m_lQuarantine =
+        Collections.synchronizedList(new ArrayList<FileStatus>());
+
+    // set with --deadline or --max-duration: no file starts that
+    // would not be done in time
+    private Deadline m_deadline;
+
+    // set with --event-log: what happened to each file, as JSON
+    // lines.  With --quiet the per-file console lines are left out.
+    private EventLog m_events;
+    private boolean m_bQuiet = false;
+
+    // first line of hdfs-chmods.sh.  Scripts without it have the
+    // modes of files in decimal, as written before it was fixed.
+    static final String S_OCTAL_MODES = "# all modes are octal";
+
+    // longest wait between tries, in millis
+    static final long N_MAX_RETRY_DELAY = 60 * 1000;
+    static final long N_DEFAULT_RETRY_DELAY = 1000;
 
     public BackupHdfs()
     {
+        this(true);
+    }
+
+    /** constructor.  A restarted run keeps the hdfs-mkdirs.sh and
+     * hdfs-chmods.sh its scan wrote, and does not write them again.
+     */
+    BackupHdfs(boolean bWriteScripts)
+    {
+        if (false == bWriteScripts)
+        {
+            return;
+        }
+
         try
         {
             m_wrMkdirs = new PrintWriter(new BufferedWriter(new FileWriter("hdfs-mkdirs.sh")));
@@ -55,6 +146,7 @@ public class BackupHdfs
             m_wrMkdirs.println("hadoop fs -mkdir /mapred/system");
 
             m_wrChmods = new PrintWriter(new BufferedWriter(new FileWriter("hdfs-chmods.sh")));
+            m_wrChmods.println(S_OCTAL_MODES);
             m_wrChmods.println("hadoop fs -chmod 775 /");
             m_wrChmods.println("hadoop fs -chown hdfs:hadoop /");
             m_wrChmods.println("hadoop fs -chown mapred:hadoop /mapred/system");
@@ -78,14 +170,113 @@ public class BackupHdfs
     {
         try
         {
-            m_wrMkdirs.close();
-            m_wrChmods.close();
+            if (m_wrMkdirs != null)
+            {
+                m_wrMkdirs.close();
+                m_wrChmods.close();
+            }
         }
         catch (Exception e)
         {
             System.err.println("ERROR: failed to close files: "
                                + e.toString());
         }
+
+        saveProgress();
+    }
+
+    // ------------------------------------------------------------
+
+    /** writes out the hdfs-mkdirs.sh and hdfs-chmods.sh of a finished
+     * scan, before the journal says the scan is done
+     */
+    void flushScripts()
+        throws IOException
+    {
+        m_wrMkdirs.flush();
+        m_wrChmods.flush();
+
+        if (m_wrMkdirs.checkError() || m_wrChmods.checkError())
+        {
+            throw new IOException("failed to write hdfs-mkdirs.sh or hdfs-chmods.sh");
+        }
+    }
+
+    // ------------------------------------------------------------
+
+    /** records in the journal, if there is one, that file stat was
+     * backed up
+     */
+    void recordDone(FileStatus stat)
+        throws IOException
+    {
+        if (m_journal != null)
+        {
+            m_journal.done(stat);
+        }
+    }
+
+    // ------------------------------------------------------------
+
+    /** closes the current pack, saves the placement index, commits
+     * the journal and writes the manifest, if there are any.  Called
+     * at the end of the run, also after a failed copy.  The pack goes
+     * first, so neither the journal nor the manifest has a packed
+     * file that is not on disk.
+     */
+    void saveProgress()
+    {
+        if (m_packWriter != null)
+        {
+            try
+            {
+                m_packWriter.close();
+            }
+            catch (IOException e)
+            {
+                System.err.println("ERROR: failed to close pack: " + e.toString());
+                return;
+            }
+        }
+
+        if (m_disks != null && false == m_bDryRun)
+        {
+            try
+            {
+                m_disks.save();
+            }
+            catch (IOException e)
+            {
+                System.err.println("ERROR: failed to save placement index: " + e.toString());
+            }
+        }
+
+        if (m_journal != null)
+        {
+            try
+            {
+                m_journal.close();
+            }
+            catch (IOException e)
+            {
+                System.err.println("ERROR: failed to commit journal: " + e.toString());
+            }
+        }
+
+        if (m_manifest == null)
+        {
+            return;
+        }
+
+        try
+        {
+            m_manifest.save(m_sManifestFilename);
+        }
+        catch (IOException e)
+        {
+            System.err.println("ERROR: failed to save manifest "
+                               + m_sManifestFilename + ": " + e.toString());
+        }
     }
 
     /**
@@ -95,15 +286,89 @@ public class BackupHdfs
     {
         System.err.println("Usage: hadoop com.tripadvisor.hadoop.BackupHdfs args\n" +
                            "  --hdfs-path path/on/hdfs\n" +
-                           "  --local-path path/on/local/fs: path to hdfs backup\n" +
-                           "  --preserve-path path/on/local/fs: path to preserve old files\n" +
+                           "  --local-path path/on/local/fs: path to hdfs backup; a comma-separated\n" +
+                           "      list of paths on separate disks spreads the files over them, by\n" +
+                           "      free space and queue depth, with --copy-threads workers per disk\n" +
+                           "  --preserve-path path/on/local/fs: path to preserve old files; one for\n" +
+                           "      each --local-path, on the same disk\n" +
+                           "  [--placement-index FILE]: where the disk of each file is recorded,\n" +
+                           "      default " + DiskSet.S_INDEX_NAME + " in the first --local-path\n" +
                            "  [--no-preserve FILE]: list of file substrings to skip preserving\n" +
                            "  [--ignore-tables FILE]: list of tables to ignore\n" +
                            "  [--dry-run]: don't create any files on local fs\n" +
                            "  --date yesterday|last-day|last-week|UNIX-time-T\n" +
                            "  [--max-date UNIX-time-T]: don't backup any files newer than T\n" +
-                           "  [--sleep N]: sleep N seconds after each file copy\n" +
-                           "  [--max-bytes N]: don't back up more than N bytes\n");
+                           "  [--sleep N]: sleep N seconds after each file copy (legacy, see\n" +
+                           "      --max-bytes-per-sec)\n" +
+                           "  [--max-bytes-per-sec N]: copy at most N bytes per second, over all\n" +
+                           "      copy threads\n" +
+                           "  [--max-files-per-sec N]: copy at most N files per second\n" +
+                           "  [--throttle-file FILE]: file with 'bytes-per-sec N' and/or\n" +
+                           "      'files-per-sec N' lines that override the two options above,\n" +
+                           "      re-read while the backup runs\n" +
+                           "  [--scan-threads N]: list hdfs directories with N parallel threads\n" +
+                           "  [--pipeline]: start copying files while the scan is still running.\n" +
+                           "      Files are copied in the order they are found, not by mtime, so\n" +
+                           "      not with --max-bytes, --deadline or --max-duration\n" +
+                           "  [--fsimage FILE]: find files in an 'hadoop oiv -p Delimited' dump\n" +
+                           "      instead of listing hdfs\n" +
+                           "  [--fsimage-delimiter S]: field delimiter of the dump, default tab\n" +
+                           "  [--scan-cache FILE]: local cache of directory listings; directories\n" +
+                           "      whose mtime has not changed since the last scan are not listed\n" +
+                           "      again.  Delete the file to force a full listing\n" +
+                           "  [--snapshot]: snapshot the snapshottable --hdfs-path, copy from the\n" +
+                           "      snapshot, and find changed files by diffing against the snapshot\n" +
+                           "      of the last successful run.  Ignores --max-date, and --date once\n" +
+                           "      there is a previous snapshot\n" +
+                           "  [--copy-threads N]: number of parallel copy workers\n" +
+                           "  [--retries N]: try a failed file N more times, with exponential\n" +
+                           "      backoff, then quarantine it and go on; quarantined files are\n" +
+                           "      tried again at the end and the ones that still fail are listed\n" +
+                           "      in hdfs-failed.txt.  Without it, the first failure ends the run\n" +
+                           "  [--retry-delay MILLIS]: wait before the first retry, default "
+                           + N_DEFAULT_RETRY_DELAY + "\n" +
+                           "  [--journal FILE]: record the scan and each file copied in FILE; a\n" +
+                           "      run that dies is restarted from it, with the same file list\n" +
+                           "      and date window, if the new --date is not earlier.  Deleted\n" +
+                           "      when the run completes.  Not with --pipeline\n" +
+                           "  [--metadata DIR]: record the owners and modes of all paths in a\n" +
+                           "      binary manifest in DIR, as changes since the last run, instead\n" +
+                           "      of in hdfs-mkdirs.sh and hdfs-chmods.sh; see RestoreHdfs\n" +
+                           "  [--metadata-max-deltas N]: merge the changes into a new full\n" +
+                           "      manifest after N runs, default "
+                           + MetadataManifest.N_DEFAULT_MAX_DELTAS + "\n" +
+                           "  [--manifest FILE]: record of the files backed up; files whose\n" +
+                           "      length and mtime, or length and checksum, match are not copied\n" +
+                           "  [--compress]: gzip backup files that are not compressed already,\n" +
+                           "      adding " + ParallelGzip.S_SUFFIX + " to their names\n" +
+                           "  [--compress-threads N]: compressor threads, default one per cpu\n" +
+                           "  [--pack-dir DIR]: append small files to pack files in DIR instead\n" +
+                           "      of copying each to a file of its own; see PackReader\n" +
+                           "  [--pack-max-file-size N]: pack files of up to N bytes, default "
+                           + PackWriter.N_DEFAULT_MAX_FILE_SIZE + "\n" +
+                           "  [--pack-size N]: start a new pack after N bytes, default 1GB\n" +
+                           "  [--dedup-store DIR]: store each distinct file content once in DIR,\n" +
+                           "      and hardlink the backed up files to it.  DIR must be on the\n" +
+                           "      same filesystem as --local-path and --preserve-path, so not\n" +
+                           "      with several disks\n" +
+                           "  [--block-threads N]: copy files bigger than a block with up to N\n" +
+                           "      blocks at a time, over all files\n" +
+                           "  [--max-in-flight-bytes N]: with several copy workers, don't queue\n" +
+                           "      or copy more than N bytes at a time, default 4GB\n" +
+                           "  [--max-bytes N]: don't back up more than N bytes\n" +
+                           "  [--deadline UNIX-time-T]: don't start a file that is projected,\n" +
+                           "      from the throughput so far, to finish after T\n" +
+                           "  [--max-duration SECONDS]: same as --deadline, counted from the start\n" +
+                           "  [--metrics-file FILE]: write counters and latencies of the run to\n" +
+                           "      FILE in the Prometheus text format; they are also over JMX\n" +
+                           "  [--metrics-interval SECONDS]: how often to write it, default "
+                           + (BackupMetrics.N_DEFAULT_INTERVAL / 1000) + "\n" +
+                           "  [--event-log FILE]: log each file copied, skipped or preserved,\n" +
+                           "      each checksum error, and the run summary to FILE as JSON lines\n" +
+                           "  [--summary FILE]: write the run summary, with the watermark for\n" +
+                           "      the next --date, to FILE as JSON\n" +
+                           "  [--quiet]: leave the per-file lines out of the console output,\n" +
+                           "      for use with --event-log\n");
 
         System.exit(1);
     }
@@ -118,6 +383,37 @@ public class BackupHdfs
         String sNoPreserveFilename = null;
         String sDateString = null;
         long size = 0;
+        int nScanThreads = 1;
+        boolean bPipeline = false;
+        String sFsImageFilename = null;
+        String sFsImageDelimiter = "\t";
+        String sScanCacheFilename = null;
+        boolean bSnapshot = false;
+        int nCopyThreads = 1;
+        int nBlockThreads = 1;
+        long nBytesPerSec = 0;
+        long nFilesPerSec = 0;
+        String sThrottleFilename = null;
+        String sManifestFilename = null;
+        String sDedupStore = null;
+        String sPlacementIndex = null;
+        String sMetadataDir = null;
+        int nMetadataMaxDeltas = MetadataManifest.N_DEFAULT_MAX_DELTAS;
+        boolean bCompress = false;
+        int nCompressThreads = Runtime.getRuntime().availableProcessors();
+        String sJournalFilename = null;
+        int nRetries = 0;
+        long nDeadline = 0;
+        long nRetryDelay = N_DEFAULT_RETRY_DELAY;
+        String sPackDir = null;
+        long nPackMaxFileSize = PackWriter.N_DEFAULT_MAX_FILE_SIZE;
+        long nPackSize = PackWriter.N_DEFAULT_PACK_SIZE;
+        long nMaxInFlightBytes = CopyPipeline.N_DEFAULT_MAX_IN_FLIGHT_BYTES;
+        String sMetricsFilename = null;
+        long nMetricsInterval = BackupMetrics.N_DEFAULT_INTERVAL;
+        String sEventLogFilename = null;
+        String sSummaryFilename = null;
+        boolean bQuiet = false;
 
         // UNIX dates for right now
         long now = new java.util.Date().getTime() / 1000;
@@ -163,6 +459,173 @@ public class BackupHdfs
                 }
                 continue;
             }
+            if (args[i].equals("--scan-threads"))
+            {
+                try
+                {
+                    nScanThreads = Integer.parseInt(args[++i]);
+                }
+                catch (Exception e)
+                {
+                    System.err.println("ERROR: " + e.toString() + "\n");
+                    usage();
+                }
+                continue;
+            }
+            if (args[i].equals("--fsimage"))
+            {
+                sFsImageFilename = args[++i];
+                continue;
+            }
+            if (args[i].equals("--fsimage-delimiter"))
+            {
+                sFsImageDelimiter = args[++i];
+                continue;
+            }
+            if (args[i].equals("--scan-cache"))
+            {
+                sScanCacheFilename = args[++i];
+                continue;
+            }
+            if (args[i].equals("--snapshot"))
+            {
+                bSnapshot = true;
+                continue;
+            }
+            if (args[i].equals("--pipeline"))
+            {
+                bPipeline = true;
+                continue;
+            }
+            if (args[i].equals("--copy-threads"))
+            {
+                try
+                {
+                    nCopyThreads = Integer.parseInt(args[++i]);
+                }
+                catch (Exception e)
+                {
+                    System.err.println("ERROR: " + e.toString() + "\n");
+                    usage();
+                }
+                continue;
+            }
+            if (args[i].equals("--max-bytes-per-sec"))
+            {
+                nBytesPerSec = Long.parseLong(args[++i]);
+                continue;
+            }
+            if (args[i].equals("--max-files-per-sec"))
+            {
+                nFilesPerSec = Long.parseLong(args[++i]);
+                continue;
+            }
+            if (args[i].equals("--throttle-file"))
+            {
+                sThrottleFilename = args[++i];
+                continue;
+            }
+            if (args[i].equals("--compress"))
+            {
+                bCompress = true;
+                continue;
+            }
+            if (args[i].equals("--compress-threads"))
+            {
+                try
+                {
+                    nCompressThreads = Integer.parseInt(args[++i]);
+                }
+                catch (Exception e)
+                {
+                    System.err.println("ERROR: " + e.toString() + "\n");
+                    usage();
+                }
+                continue;
+            }
+            if (args[i].equals("--deadline"))
+            {
+                nDeadline = Long.parseLong(args[++i]);
+                continue;
+            }
+            if (args[i].equals("--max-duration"))
+            {
+                nDeadline = now + Long.parseLong(args[++i]);
+                continue;
+            }
+            if (args[i].equals("--retries"))
+            {
+                nRetries = Integer.parseInt(args[++i]);
+                continue;
+            }
+            if (args[i].equals("--retry-delay"))
+            {
+                nRetryDelay = Long.parseLong(args[++i]);
+                continue;
+            }
+            if (args[i].equals("--journal"))
+            {
+                sJournalFilename = args[++i];
+                continue;
+            }
+            if (args[i].equals("--pack-dir"))
+            {
+                sPackDir = args[++i];
+                continue;
+            }
+            if (args[i].equals("--pack-max-file-size"))
+            {
+                nPackMaxFileSize = Long.parseLong(args[++i]);
+                continue;
+            }
+            if (args[i].equals("--pack-size"))
+            {
+                nPackSize = Long.parseLong(args[++i]);
+                continue;
+            }
+            if (args[i].equals("--dedup-store"))
+            {
+                sDedupStore = args[++i];
+                continue;
+            }
+            if (args[i].equals("--placement-index"))
+            {
+                sPlacementIndex = args[++i];
+                continue;
+            }
+            if (args[i].equals("--metadata"))
+            {
+                sMetadataDir = args[++i];
+                continue;
+            }
+            if (args[i].equals("--metadata-max-deltas"))
+            {
+                nMetadataMaxDeltas = Integer.parseInt(args[++i]);
+                continue;
+            }
+            if (args[i].equals("--manifest"))
+            {
+                sManifestFilename = args[++i];
+                continue;
+            }
+            if (args[i].equals("--block-threads"))
+            {
+                try
+                {
+                    nBlockThreads = Integer.parseInt(args[++i]);
+                }
+                catch (Exception e)
+                {
+                    System.err.println("ERROR: " + e.toString() + "\n");
+                    usage();
+                }
+                continue;
+            }
+            if (args[i].equals("--max-in-flight-bytes"))
+            {
+                nMaxInFlightBytes = Long.parseLong(args[++i]);
+                continue;
+            }
             if (args[i].equals("--dry-run"))
             {
                 m_bDryRun = true;
@@ -183,6 +646,31 @@ public class BackupHdfs
                 size = Long.parseLong(args[++i]);
                 continue;
             }
+            if (args[i].equals("--metrics-file"))
+            {
+                sMetricsFilename = args[++i];
+                continue;
+            }
+            if (args[i].equals("--metrics-interval"))
+            {
+                nMetricsInterval = Long.parseLong(args[++i]) * 1000;
+                continue;
+            }
+            if (args[i].equals("--event-log"))
+            {
+                sEventLogFilename = args[++i];
+                continue;
+            }
+            if (args[i].equals("--summary"))
+            {
+                sSummaryFilename = args[++i];
+                continue;
+            }
+            if (args[i].equals("--quiet"))
+            {
+                bQuiet = true;
+                continue;
+            }
 
             System.err.println("ERROR: unknown arg " + args[i]);
             usage();
@@ -195,6 +683,61 @@ public class BackupHdfs
             usage();
         }
 
+        if (bSnapshot && sFsImageFilename != null)
+        {
+            System.err.println("ERROR: --snapshot and --fsimage don't mix\n");
+            usage();
+        }
+
+        if (sScanCacheFilename != null
+            && (bSnapshot || sFsImageFilename != null))
+        {
+            System.err.println("ERROR: --scan-cache only works with a full listing scan\n");
+            usage();
+        }
+
+        if (sJournalFilename != null && bPipeline)
+        {
+            System.err.println("ERROR: --journal needs the whole scan before the copy\n");
+            usage();
+        }
+
+        // a limit would cut the run at a file found late but old, and
+        // the next run would start from that file again.  The same
+        // goes for a deadline.
+        if (size > 0 && bPipeline)
+        {
+            System.err.println("ERROR: --max-bytes needs the files in mtime order, not with --pipeline\n");
+            usage();
+        }
+
+        if (nDeadline != 0 && bPipeline)
+        {
+            System.err.println("ERROR: --deadline needs the files in mtime order, not with --pipeline\n");
+            usage();
+        }
+
+        if (sSummaryFilename != null && sEventLogFilename == null)
+        {
+            System.err.println("ERROR: --summary needs --event-log\n");
+            usage();
+        }
+
+        String[] asLocalPaths = DiskSet.split(localPath);
+        String[] asPreservePaths = DiskSet.split(preservePath);
+
+        if (asLocalPaths.length == 0 || asLocalPaths.length != asPreservePaths.length)
+        {
+            System.err.println("ERROR: need one --preserve-path for each --local-path\n");
+            usage();
+        }
+
+        if (asLocalPaths.length > 1 && sDedupStore != null)
+        {
+            System.err.println("ERROR: --dedup-store can't link across disks\n");
+            usage();
+        }
+
         long minDate;
 
         if ("yesterday".equals(sDateString))
@@ -234,12 +777,94 @@ public class BackupHdfs
         }
 
         long tmpDate = 0;
-        BackupHdfs bak = new BackupHdfs();
 
-        // initialize the list of tables to ignore
-        if (sIgnoreTablesFilename != null)
+        // oldest mtime of the files that failed for good, or 0
+        long nFailedDate = 0;
+
+        // restart a run that died, if its journal is there
+        BackupJournal journal = null;
+        if (sJournalFilename != null && false == m_bDryRun)
         {
-            bak.initializeTablesToIgnore(sIgnoreTablesFilename);
+            journal = BackupJournal.load(sJournalFilename, baseDir.toString(),
+                                         localPath, minDate);
+        }
+
+        BackupHdfs bak = new BackupHdfs(journal == null);
+        bak.m_nRetries = nRetries;
+        bak.m_nRetryDelay = nRetryDelay;
+        bak.m_bQuiet = bQuiet;
+
+        if (sEventLogFilename != null)
+        {
+            bak.m_events = new EventLog("BackupHdfs", sEventLogFilename, sSummaryFilename);
+        }
+
+        if (nDeadline != 0)
+        {
+            bak.m_deadline = new Deadline(nDeadline * 1000);
+        }
+
+        if (journal != null)
+        {
+            System.err.println("resuming the run in journal " + sJournalFilename
+                               + ", " + journal.getDoneCount() + " of "
+                               + journal.getCatalog().size() + " files done");
+
+            bak.m_journal = journal;
+            bak.m_bResumed = true;
+            minDate = journal.getMinDate();
+            maxDate = journal.getMaxDate();
+        }
+
+        bak.m_throttle = new Throttle(nBytesPerSec, nFilesPerSec, sThrottleFilename);
+
+        bak.m_disks = new DiskSet(asLocalPaths, asPreservePaths, sPlacementIndex);
+
+        if (bCompress)
+        {
+            bak.m_gzip = new ParallelGzip(nCompressThreads);
+        }
+
+        if (sPackDir != null && false == m_bDryRun)
+        {
+            bak.m_packWriter = new PackWriter(sPackDir, nPackMaxFileSize, nPackSize);
+            if (bak.m_journal != null)
+            {
+                bak.m_journal.setPackWriter(bak.m_packWriter);
+            }
+        }
+
+        if (sDedupStore != null)
+        {
+            bak.m_dedupStore = new DedupStore(sDedupStore);
+        }
+
+        // a resumed run does not scan, and keeps what the first try
+        // recorded
+        if (sMetadataDir != null && false == m_bDryRun && false == bak.m_bResumed)
+        {
+            bak.m_metadata = new MetadataManifest(sMetadataDir, nMetadataMaxDeltas);
+        }
+
+        if (sManifestFilename != null)
+        {
+            bak.m_sManifestFilename = sManifestFilename;
+            if (new File(sManifestFilename).exists())
+            {
+                bak.m_manifest = BackupManifest.load(sManifestFilename);
+                System.err.println("read " + bak.m_manifest.size()
+                                   + " files from manifest " + sManifestFilename);
+            }
+            else
+            {
+                bak.m_manifest = new BackupManifest();
+            }
+        }
+
+        // initialize the list of tables to ignore
+        if (sIgnoreTablesFilename != null)
+        {
+            bak.initializeTablesToIgnore(sIgnoreTablesFilename);
         }
 
         // initialize list of files to not preserve
@@ -248,14 +873,63 @@ public class BackupHdfs
             bak.initializeNoPreserve(sNoPreserveFilename);
         }
 
-        ArrayList<Path> pathList = new ArrayList<Path>(2000);
-        HashMap<Path,Long> hmTimestamps = new HashMap<Path,Long>();
+        // the listed FileStatus of every file is kept all the way
+        // through to the copy and the checksum compare, so no file
+        // needs to be looked up on the namenode again.  The catalog
+        // stores them in compact form until they are copied.
+        FileCatalog catalog = new FileCatalog();
 
+        BackupMetrics.start("BackupHdfs", sMetricsFilename, nMetricsInterval);
+
+        // snapshots are taken on the real filesystem, everything
+        // else goes through the metered one
         Configuration conf = new Configuration();
-        FileSystem fs = FileSystem.get(conf);
+        FileSystem hdfs = FileSystem.get(conf);
+        FileSystem fs = BackupMetrics.wrap(hdfs);
+
+        FileStatus baseStat = fs.getFileStatus(baseDir);
+
+        HdfsSnapshots snapshots = null;
+        String sSnapshot = null;
+        String sPrevSnapshot = null;
+
+        if (bSnapshot && baseStat.isDir() && bak.m_bResumed)
+        {
+            // go on copying from the snapshot of the first try
+            snapshots = new HdfsSnapshots(hdfs, baseStat.getPath());
+            sPrevSnapshot = journal.getPrevSnapshot();
+            sSnapshot = journal.getSnapshot();
+
+            if (sSnapshot == null)
+            {
+                System.err.println("ERROR: the journal is not from a --snapshot run");
+                System.exit(1);
+            }
+
+            bak.m_liveRoot = baseStat.getPath();
+            bak.m_readRoot = snapshots.getSnapshotPath(sSnapshot);
+        }
+        else if (bSnapshot && baseStat.isDir())
+        {
+            snapshots = new HdfsSnapshots(hdfs, baseStat.getPath());
+            sPrevSnapshot = snapshots.findLastBackup();
+            sSnapshot = snapshots.create(now);
+
+            System.err.println("created snapshot " + sSnapshot
+                               + ((sPrevSnapshot == null) ? ""
+                                  : ", previous backup snapshot " + sPrevSnapshot));
+
+            bak.m_liveRoot = baseStat.getPath();
+            bak.m_readRoot = snapshots.getSnapshotPath(sSnapshot);
+
+            // everything in the snapshot is older than the snapshot
+            // itself, and anything left out now would never show up
+            // in a later diff
+            maxDate = now;
+        }
 
         // If the HDFS path is a dir continue
-        if (fs.getFileStatus(baseDir).isDir())
+        if (baseStat.isDir())
         {
             Calendar cal = Calendar.getInstance();
 
@@ -270,42 +944,206 @@ public class BackupHdfs
             System.err.println("Searching filesystem: " +
                                baseDir.toUri().getPath());
 
-            bak.checkDir(fs, minDate, maxDate, baseDir, pathList, hmTimestamps);
+            if (sScanCacheFilename != null && false == bak.m_bResumed)
+            {
+                bak.m_scanCache = new ScanCache(bak, fs, sScanCacheFilename, minDate * 1000);
+                bak.m_scanCache.load();
+            }
+
+            if (nBlockThreads > 1)
+            {
+                bak.m_blockCopier = new BlockCopier(nBlockThreads, N_BLOCK_SIZE,
+                                                    bak.m_throttle);
+            }
+
+            if (nScanThreads > 1)
+            {
+                bak.m_dirLister = new DirLister(bak, fs, nScanThreads);
+            }
+
+            // in pipeline mode checkDir hands files straight to the
+            // copy workers instead of collecting them
+            if (bPipeline)
+            {
+                System.err.println("");
+                System.err.println("starting backup while scanning...");
+
+                bak.m_pipeline = new CopyPipeline(bak, fs, bak.m_disks,
+                                                  size, nMaxInFlightBytes,
+                                                  nCopyThreads, m_nSleepSeconds);
+                bak.m_pipeline.setDeadline(bak.m_deadline);
+                bak.m_pipeline.start();
+            }
+
+            if (bak.m_bResumed)
+            {
+                // the scan of the first try
+                catalog = journal.getCatalog();
+                for (int i = 0; i < catalog.size(); i++)
+                {
+                    m_nTotalBytes += catalog.getLen(i);
+                }
+            }
+            else if (sFsImageFilename != null)
+            {
+                System.err.println("reading fsimage dump " + sFsImageFilename);
+
+                bak.m_bMinuteMtimes = true;
+                new FsImageReader(sFsImageFilename, sFsImageDelimiter)
+                    .scan(bak, fs, minDate, maxDate, baseStat.getPath(), catalog);
+            }
+            else if (sPrevSnapshot != null)
+            {
+                System.err.println("diffing snapshots " + sPrevSnapshot
+                                   + " and " + sSnapshot);
+
+                bak.checkSnapshotDiff(fs, snapshots, sPrevSnapshot, sSnapshot,
+                                      maxDate, catalog);
+            }
+            else
+            {
+                bak.checkDir(fs, minDate, maxDate, baseStat, catalog);
+            }
+
+            if (bak.m_dirLister != null)
+            {
+                bak.m_dirLister.shutdown();
+                bak.m_dirLister = null;
+            }
+
+            if (bak.m_scanCache != null)
+            {
+                bak.m_scanCache.save();
+                bak.m_scanCache = null;
+            }
+
+            if (bak.m_metadata != null)
+            {
+                try
+                {
+                    bak.m_metadata.commit(sPrevSnapshot == null && false == bak.m_bScanErrors);
+                }
+                catch (IOException e)
+                {
+                    System.err.println("ERROR: failed to write metadata: " + e.toString());
+                }
+                bak.m_metadata = null;
+            }
 
             System.err.println("");
             System.err.println("Skipped " + m_nIgnoredTables + " files due to ignored tables");
 
-            System.err.println("");
-            System.err.println("Number of files to backup = " +
-                               pathList.size());
+            if (bPipeline)
+            {
+                System.err.println("");
+                System.err.println("Total bytes found = " + prettyPrintBytes(m_nTotalBytes));
+                System.err.println("waiting for copies to finish...");
 
-            System.err.println("Total bytes to backup = " + prettyPrintBytes(m_nTotalBytes));
+                tmpDate = bak.m_pipeline.finish();
 
-            System.err.println("");
-            System.err.println("sorting list of files...");
-            Collections.sort(pathList, new DateComparator(hmTimestamps));
-            System.err.println("done");
+                if (false == bak.m_pipeline.isFailed())
+                {
+                    nFailedDate = bak.retryQuarantine(fs);
+                }
 
-            System.err.println("");
-            System.err.println("starting backup...");
-            tmpDate = bak.backupFiles(localPath, preservePath, fs, pathList, size);
+                bak.closeFiles();
+
+                if (bak.m_pipeline.isFailed())
+                {
+                    bak.finish("failed", tmpDate);
+                    System.exit(1);
+                }
+
+                if (tmpDate != 0 && ! bak.m_pipeline.isSizeLimitReached()
+                    && ! bak.m_pipeline.isDeadlineReached())
+                {
+                    // can't happen without a failure, but never hand
+                    // out a watermark without a reason
+                    System.err.println("ERROR: not all files were copied");
+                }
+            }
+            else
+            {
+                System.err.println("");
+                System.err.println("Number of files to backup = " +
+                                   catalog.size());
+
+                System.err.println("Total bytes to backup = " + prettyPrintBytes(m_nTotalBytes));
+
+                // a resumed catalog is in order already
+                if (false == bak.m_bResumed)
+                {
+                    System.err.println("");
+                    System.err.println("sorting list of files...");
+                    catalog.sort();
+                    System.err.println("done");
+
+                    if (sJournalFilename != null && false == m_bDryRun)
+                    {
+                        bak.flushScripts();
+                        bak.m_journal = BackupJournal.create(sJournalFilename, baseDir.toString(),
+                                                             localPath, minDate, maxDate,
+                                                             sSnapshot, sPrevSnapshot, catalog);
+                        bak.m_journal.setPackWriter(bak.m_packWriter);
+                    }
+                }
+
+                System.err.println("");
+                System.err.println("starting backup...");
+                if (nCopyThreads > 1 || bak.m_disks.size() > 1)
+                {
+                    tmpDate = bak.backupFilesParallel(fs, catalog, size,
+                                                      nMaxInFlightBytes, nCopyThreads);
+                }
+                else
+                {
+                    tmpDate = bak.backupFiles(bak.m_disks.getRoot(0),
+                                              bak.m_disks.getPreservePath(0),
+                                              fs, catalog, size);
+                }
+
+                nFailedDate = bak.retryQuarantine(fs);
 
-            bak.closeFiles();
+                bak.closeFiles();
+            }
 
             System.err.println("");
             System.err.println("backup completed...");
+
+            // a run with failed files is not done, and its journal
+            // has everything but them
+            if (bak.m_journal != null && nFailedDate == 0)
+            {
+                bak.m_journal.delete();
+            }
+        }
+
+        if (nFailedDate != 0)
+        {
+            // start the next run early enough to get the failed files
+            System.err.println("Some files failed, see hdfs-failed.txt");
+            bak.finish("files-failed", (tmpDate == 0) ? nFailedDate : Math.min(tmpDate, nFailedDate));
+            System.exit(1);
         }
 
         if (tmpDate == 0)
         {
+            // the snapshot becomes the base of the next diff only if
+            // everything in it got copied
+            if (snapshots != null)
+            {
+                snapshots.commit(sSnapshot, sPrevSnapshot);
+            }
+
             // If not size limit reached print out date for right now
-            System.out.println(maxDate);
+            bak.finish("complete", maxDate);
         }
         else
         {
             // Print out date for last file backed up
-            System.err.println("Size limit reached.");
-            System.out.println(tmpDate);
+            boolean bDeadline = bak.m_deadline != null && bak.m_deadline.isReached();
+            System.err.println(bDeadline ? "Deadline reached." : "Size limit reached.");
+            bak.finish(bDeadline ? "deadline" : "size-limit", tmpDate);
         }
 
         System.exit(0);
@@ -316,7 +1154,7 @@ public class BackupHdfs
      *
      * localPath: Path on the machines filesystem
      * fs:FileSystem object from HDFS
-     * pathList:List of paths for files that might need to be backed
+     * catalog:Sorted catalog of files that might need to be backed
      * up
      * size:max size in bytes to be backed up
      *
@@ -324,94 +1162,48 @@ public class BackupHdfs
      * else, zero
      **/
     public long backupFiles(String localPath, String preservePath, FileSystem fs,
-                            ArrayList<Path> pathList, long size) {
-        Path fsPath;
+                            FileCatalog catalog, long size) {
         long tmpSize = 0;
         long tmpDate = 0;
 
+        if (m_deadline != null)
+        {
+            m_deadline.start();
+        }
+
         // Start iterating over all paths
-        for (Path hdfsPath : pathList)
+        for (int i = 0; i < catalog.size(); i++)
         {
+            FileStatus stat = catalog.get(i);
+
+            // done before the restart
+            if (m_journal != null && m_journal.isDone(stat))
+            {
+                continue;
+            }
+
+            // every file before this one is done, so its mtime is
+            // where the next run starts
+            if (m_deadline != null && ! m_deadline.allows(stat.getLen(), 0))
+            {
+                return stat.getModificationTime() / 1000;
+            }
+
             try
             {
-                long nFileSize = fs.getContentSummary(hdfsPath).getLength();
+                long nFileSize = stat.getLen();
                 tmpSize = tmpSize + nFileSize;
 
                 if ((tmpSize <= size) || (size == 0))
                 {
-                    FileStatus stat = fs.getFileStatus(hdfsPath);
-
-                    System.err.println("File " + hdfsPath.toUri().getPath() +
-                                       " " + nFileSize + " bytes, "
-                                       + "perms: "
-                                       + stat.getOwner() + "/" + stat.getGroup()
-                                       + ", " + stat.getPermission().toString());
-
                     tmpDate = stat.getModificationTime() / 1000;
 
-                    String sFsPath = localPath + hdfsPath.toUri().getPath();
-                    fsPath = new Path(sFsPath);
-
-                    File f = new File(sFsPath);
+                    backupFileRetrying(fs, stat, localPath, preservePath);
+                    recordDone(stat);
 
-                    // COMMENTED OUT: until a few backup cycles run
-                    // and the mtime gets in fact set on all copied
-                    // files.
-                    //
-                    // ignore it if the file exists and has the same mtime
-                    // if (f.exists() && f.isFile() && f.lastModified() == stat.getModificationTime())
-                    // {
-                    // System.out.println("no need to backup " + f.toString() + ", mtime matches hdfs");
-                    // continue;
-                    // }
-
-                    if (false == m_bDryRun)
+                    if (m_deadline != null)
                     {
-                        // check if we need to back up the local file
-                        // (not directory), if it already exists.
-                        if (f.exists() && f.isFile())
-                        {
-                            // ignore files with substrings in the
-                            // no-preserve file
-                            if (true == doPreserveFile(sFsPath))
-                            {
-                                // move it to the backup path
-                                String sNewPath = preservePath + hdfsPath.toUri().getPath();
-                                File newFile = new File(sNewPath);
-
-                                // create directory structure for new file?
-                                if (false == newFile.getParentFile().exists())
-                                {
-                                    if (false == newFile.getParentFile().mkdirs())
-                                    {
-                                        System.err.println("Failed to mkdirs " + newFile.getParentFile().toString());
-                                        System.exit(1);
-                                    }
-                                }
-
-                                // rename existing file to new location
-                                if (false == f.renameTo(newFile))
-                                {
-                                    System.err.println("Failed to renameTo " + f.toString() + " to " + newFile.toString());
-                                    System.exit(1);
-                                }
-
-                                System.out.println("preserved " + f.toString() + " into " + newFile.toString());
-                            }
-                            else
-                            {
-                                System.out.println("skipped preservation of " + f.toString());
-                            }
-                        }
-
-                        // copy from hdfs to local filesystem
-                        fs.copyToLocalFile(hdfsPath, fsPath);
-
-                        // set the mtime to match hdfs file
-                        f.setLastModified(stat.getModificationTime());
-
-                        // compare checksums on both files
-                        compareChecksums(fs, hdfsPath, sFsPath);
+                        m_deadline.copied(nFileSize);
                     }
 
                     // don't print the progress after every file -- go
@@ -445,187 +1237,1034 @@ public class BackupHdfs
             }
             catch (IOException e)
             {
+                if (quarantine(stat, e))
+                {
+                    continue;
+                }
+
                 System.err.println("FATAL ERROR: Something wrong with the file");
                 System.err.println(e);
-                System.out.println(tmpDate);
+                saveProgress();
+                finish("failed", tmpDate);
                 System.exit(1);
 
                 return 0;
             }
         }
 
-        return 0;
+        return 0;
+    }
+
+    /**
+     * Same as backupFiles, with nThreads copy workers per local
+     * disk.  Files are handed out in timestamp order but can finish
+     * out of order, so the returned date is the oldest mtime of any
+     * file not copied.
+     *
+     * nMaxInFlightBytes: bound on the bytes queued or being copied
+     * nThreads: number of copy workers per disk
+     *
+     * Returns date of the oldest file not backed up if reached size
+     * limit, else, zero
+     **/
+    long backupFilesParallel(FileSystem fs, FileCatalog catalog, long size,
+                             long nMaxInFlightBytes, int nThreads)
+    {
+        CopyPipeline pipeline = new CopyPipeline(this, fs, m_disks,
+                                                 size, nMaxInFlightBytes,
+                                                 nThreads, m_nSleepSeconds);
+        pipeline.setTotalBytes(m_nTotalBytes);
+        pipeline.setDeadline(m_deadline);
+        pipeline.start();
+
+        for (int i = 0; i < catalog.size(); i++)
+        {
+            FileStatus stat = catalog.get(i);
+
+            // done before the restart
+            if (m_journal != null && m_journal.isDone(stat))
+            {
+                continue;
+            }
+
+            pipeline.submit(stat);
+
+            // the rest of the files are no older than the one just
+            // turned away, so the watermark already covers them
+            if (pipeline.isFailed() || pipeline.isSizeLimitReached()
+                || pipeline.isDeadlineReached())
+            {
+                break;
+            }
+        }
+
+        long tmpDate = pipeline.finish();
+
+        if (pipeline.isFailed())
+        {
+            saveProgress();
+            finish("failed", tmpDate);
+            System.exit(1);
+        }
+
+        return tmpDate;
+    }
+
+    /**
+     * Same as backupFile, but a file that fails is tried again up to
+     * m_nRetries times.  The wait before a retry doubles each time,
+     * up to N_MAX_RETRY_DELAY, and is cut by a random amount of up to
+     * half, so workers that failed together don't retry together.
+     * Throws the error of the last try.
+     **/
+    void backupFileRetrying(FileSystem fs, FileStatus stat,
+                            String localPath, String preservePath)
+        throws IOException
+    {
+        long nDelay = m_nRetryDelay;
+
+        for (int nTry = 0; ; nTry++)
+        {
+            try
+            {
+                backupFile(fs, stat, localPath, preservePath);
+                return;
+            }
+            catch (IOException e)
+            {
+                if (nTry >= m_nRetries)
+                {
+                    throw e;
+                }
+
+                long nWait = nDelay - (long) (Math.random() * nDelay / 2);
+                System.err.println("RETRY: " + stat.getPath().toUri().getPath()
+                                   + " in " + nWait + " ms, after " + e);
+
+                try
+                {
+                    Thread.sleep(nWait);
+                }
+                catch (InterruptedException e2)
+                {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("interrupted retrying "
+                                                     + stat.getPath());
+                }
+
+                nDelay = Math.min(2 * nDelay, N_MAX_RETRY_DELAY);
+            }
+        }
+    }
+
+    /**
+     * Puts a file that failed all its tries in quarantine, to be
+     * tried again at the end of the run.  Returns false if there are
+     * no retries, and the failure should end the run.
+     **/
+    boolean quarantine(FileStatus stat, IOException e)
+    {
+        if (m_nRetries <= 0)
+        {
+            return false;
+        }
+
+        System.out.println("QUARANTINED: " + stat.getPath().toUri().getPath() + ": " + e);
+        BackupMetrics.count("files_quarantined", 1);
+        if (m_events != null)
+        {
+            m_events.event("quarantined", "path", stat.getPath().toUri().getPath(),
+                           "error", e.toString());
+        }
+        m_lQuarantine.add(stat);
+        return true;
+    }
+
+    /**
+     * Tries the quarantined files again, and lists the ones that
+     * still fail in hdfs-failed.txt, which VerifyHdfsBackup
+     * --from-file can check later.  Returns the oldest mtime of those
+     * files, for the next run to start from, or 0 if there are none.
+     **/
+    long retryQuarantine(FileSystem fs)
+        throws IOException
+    {
+        if (m_nRetries <= 0)
+        {
+            return 0;
+        }
+
+        List<FileStatus> lFailed = new ArrayList<FileStatus>();
+
+        if (! m_lQuarantine.isEmpty())
+        {
+            System.err.println("");
+            System.err.println("retrying " + m_lQuarantine.size() + " quarantined files...");
+        }
+
+        for (FileStatus stat : m_lQuarantine)
+        {
+            // the retries wait for the next run
+            if (m_deadline != null && m_deadline.isPast())
+            {
+                System.out.println("FAILED: " + stat.getPath().toUri().getPath()
+                                   + ": not retried after the deadline");
+                lFailed.add(stat);
+                continue;
+            }
+
+            // the disk it was placed on when it was first tried
+            int nDisk = m_disks.place(stat.getPath().toUri().getPath(), stat.getLen(),
+                                      null, null);
+
+            try
+            {
+                backupFileRetrying(fs, stat, m_disks.getRoot(nDisk),
+                                   m_disks.getPreservePath(nDisk));
+                recordDone(stat);
+            }
+            catch (IOException e)
+            {
+                System.out.println("FAILED: " + stat.getPath().toUri().getPath() + ": " + e);
+                BackupMetrics.count("files_failed", 1);
+                if (m_events != null)
+                {
+                    m_events.event("failed", "path", stat.getPath().toUri().getPath(),
+                                   "error", e.toString());
+                }
+                lFailed.add(stat);
+            }
+        }
+        m_lQuarantine.clear();
+
+        long nFailedDate = 0;
+        PrintWriter wr = new PrintWriter(new BufferedWriter(new FileWriter("hdfs-failed.txt")));
+        try
+        {
+            for (FileStatus stat : lFailed)
+            {
+                wr.println(stat.getPath().toUri().getPath());
+
+                long nMtime = stat.getModificationTime() / 1000;
+                nFailedDate = (nFailedDate == 0) ? nMtime : Math.min(nFailedDate, nMtime);
+            }
+        }
+        finally
+        {
+            wr.close();
+        }
+
+        return nFailedDate;
+    }
+
+    /**
+     * Method to move one file from HDFS to local filesystem,
+     * preserving the previous local copy if there is one.  Called by
+     * backupFiles, and by the copy workers in pipeline mode.
+     *
+     * fs:FileSystem object from HDFS
+     * stat:Listed status of the file in HDFS
+     * localPath: Path on the machines filesystem
+     * preservePath: Path to move the previous local copy to
+     **/
+    void backupFile(FileSystem fs, FileStatus stat,
+                    String localPath, String preservePath)
+        throws IOException
+    {
+        Path hdfsPath = stat.getPath();
+
+        if (! m_bQuiet)
+        {
+            System.err.println("File " + hdfsPath.toUri().getPath() +
+                               " " + stat.getLen() + " bytes, "
+                               + "perms: "
+                               + stat.getOwner() + "/" + stat.getGroup()
+                               + ", " + stat.getPermission().toString());
+        }
+
+        String sFsPath = localPath + hdfsPath.toUri().getPath();
+
+        File f = new File(sFsPath);
+
+        // COMMENTED OUT: until a few backup cycles run
+        // and the mtime gets in fact set on all copied
+        // files.
+        //
+        // ignore it if the file exists and has the same mtime
+        // if (f.exists() && f.isFile() && f.lastModified() == stat.getModificationTime())
+        // {
+        // System.out.println("no need to backup " + f.toString() + ", mtime matches hdfs");
+        // return;
+        // }
+        //
+        // the manifest does this now, with the checksum as proof
+        if (false == m_bDryRun && isUnchanged(fs, stat, f))
+        {
+            BackupMetrics.count("files_skipped", 1);
+            BackupMetrics.count("bytes_skipped", stat.getLen());
+            logFile(stat, "unchanged");
+            return;
+        }
+
+        // the run that died may have copied it after its last
+        // journal commit
+        if (m_bResumed && false == m_bDryRun && isCopiedBefore(fs, stat, f))
+        {
+            BackupMetrics.count("files_skipped", 1);
+            BackupMetrics.count("bytes_skipped", stat.getLen());
+            logFile(stat, "copied-before-restart");
+            return;
+        }
+
+        if (false == m_bDryRun)
+        {
+            // the current backup, under its compressed name if
+            // it was compressed
+            File fCur = ParallelGzip.findCopy(f);
+
+            // check if we need to back up the local file
+            // (not directory), if it already exists.
+            if (fCur.exists() && fCur.isFile())
+            {
+                // ignore files with substrings in the
+                // no-preserve file
+                if (true == doPreserveFile(sFsPath))
+                {
+                    // move it to the backup path
+                    String sNewPath = preservePath + hdfsPath.toUri().getPath()
+                        + (ParallelGzip.isCompressedCopy(fCur) ? ParallelGzip.S_SUFFIX : "");
+                    File newFile = new File(sNewPath);
+
+                    // create directory structure for new file?
+                    if (false == newFile.getParentFile().exists())
+                    {
+                        // another copy worker may have
+                        // created it in the meantime
+                        if (false == newFile.getParentFile().mkdirs()
+                            && false == newFile.getParentFile().isDirectory())
+                        {
+                            throw new IOException("Failed to mkdirs " + newFile.getParentFile().toString());
+                        }
+                    }
+
+                    // the run that died may have preserved the older
+                    // version already, and fCur is its new copy
+                    if (m_bResumed && newFile.exists())
+                    {
+                        System.out.println("kept " + newFile.toString()
+                                           + ", preserved before the restart");
+                    }
+                    else
+                    {
+                        // rename existing file to new location
+                        if (false == fCur.renameTo(newFile))
+                        {
+                            throw new IOException("Failed to renameTo " + fCur.toString() + " to " + newFile.toString());
+                        }
+
+                        if (! m_bQuiet)
+                        {
+                            System.out.println("preserved " + fCur.toString() + " into " + newFile.toString());
+                        }
+                        BackupMetrics.count("files_preserved", 1);
+                        BackupMetrics.count("bytes_preserved", newFile.length());
+                        if (m_events != null)
+                        {
+                            m_events.event("preserve", "path", hdfsPath.toUri().getPath(),
+                                           "from", fCur.toString(), "to", newFile.toString(),
+                                           "len", newFile.length());
+                        }
+                    }
+                }
+                else if (! m_bQuiet)
+                {
+                    System.out.println("skipped preservation of " + fCur.toString());
+                }
+            }
+
+            // a failed try must not leave a copy behind, partial or
+            // not: the next try would take it for the older version
+            // and preserve it in its place
+            try
+            {
+                copyFile(fs, stat, f, sFsPath);
+            }
+            catch (IOException e)
+            {
+                deleteLocalCopy(f);
+                throw e;
+            }
+        }
+    }
+
+    /** copies hdfs file stat to local file f, whose older version
+     * has been preserved, or packs or links it instead
+     */
+    void copyFile(FileSystem fs, FileStatus stat, File f, String sFsPath)
+        throws IOException
+    {
+        Path hdfsPath = stat.getPath();
+
+        // small files go to the current pack
+        if (m_packWriter != null && m_packWriter.isSmall(stat.getLen()))
+        {
+            packFile(fs, stat, f);
+            BackupMetrics.count("files_packed", 1);
+            BackupMetrics.count("bytes_packed", stat.getLen());
+            logFile(stat, "packed");
+            return;
+        }
+
+        // if the content is stored already, link to it
+        // instead of copying
+        FileChecksum ckHdfs = null;
+        if (m_dedupStore != null)
+        {
+            ckHdfs = fs.getFileChecksum(toReadPath(hdfsPath));
+            byte[] abMD5 = getMD5(ckHdfs);
+
+            if (abMD5 != null && m_dedupStore.link(abMD5, stat.getLen(), f))
+            {
+                deleteChecksumFile(f);
+                if (! m_bQuiet)
+                {
+                    System.out.println("linked " + ParallelGzip.findCopy(f).toString()
+                                       + " to stored copy");
+                }
+                BackupMetrics.count("files_linked", 1);
+                BackupMetrics.count("bytes_linked", stat.getLen());
+                logFile(stat, "linked");
+
+                if (m_manifest != null)
+                {
+                    m_manifest.put(BackupManifest.key(hdfsPath.toUri().getPath()),
+                                   stat.getLen(), stat.getModificationTime(),
+                                   abMD5);
+                }
+                return;
+            }
+        }
+
+        m_throttle.acquireFile();
+
+        // copy from hdfs to local filesystem, checksumming the
+        // bytes on the way
+        long nCopyStart = System.nanoTime();
+        FileChecksum ckLocal = copyToLocal(fs, stat, sFsPath);
+        File fLocal = ParallelGzip.findCopy(f);
+        BackupMetrics.observe("copy_seconds", null, nCopyStart);
+        BackupMetrics.count("files_copied", 1);
+        BackupMetrics.count("bytes_copied", stat.getLen());
+        logFile(stat, "copied");
+
+        // set the mtime to match hdfs file
+        fLocal.setLastModified(stat.getModificationTime());
+
+        // compare checksums on both files, and remember
+        // the file if they match
+        if (compareChecksums(fs, stat, sFsPath, ckHdfs, ckLocal))
+        {
+            byte[] abMD5 = getMD5(ckLocal);
+
+            if (m_manifest != null)
+            {
+                m_manifest.put(BackupManifest.key(hdfsPath.toUri().getPath()),
+                               stat.getLen(), stat.getModificationTime(),
+                               abMD5);
+            }
+
+            if (m_dedupStore != null)
+            {
+                m_dedupStore.add(abMD5, stat.getLen(), fLocal);
+            }
+        }
+    }
+
+    // ------------------------------------------------------------
+
+    /** deletes local file f, under either name, and its .crc file
+     */
+    static void deleteLocalCopy(File f)
+        throws IOException
+    {
+        File[] aCopies = { f, ParallelGzip.compressedName(f) };
+        for (File fCopy : aCopies)
+        {
+            if (fCopy.exists() && ! fCopy.delete())
+            {
+                throw new IOException("Failed to delete " + fCopy);
+            }
+        }
+        deleteChecksumFile(f);
+    }
+
+    /** returns true if the local copy of file stat is complete and
+     * matches its checksum, in a restarted run.  The mtime is set
+     * after a copy, so a copy cut short by the crash does not match.
+     */
+    boolean isCopiedBefore(FileSystem fs, FileStatus stat, File f)
+        throws IOException
+    {
+        File fCur = ParallelGzip.findCopy(f);
+        if (! fCur.isFile()
+            || fCur.lastModified() != stat.getModificationTime()
+            || (! ParallelGzip.isCompressedCopy(fCur) && fCur.length() != stat.getLen()))
+        {
+            return false;
+        }
+
+        FileChecksum ckHdfs = fs.getFileChecksum(toReadPath(stat.getPath()));
+        FileChecksum ckLocal = getLocalFileChecksum(fCur.getPath());
+        if (ckHdfs == null || ckLocal == null
+            || false == ckHdfs.toString().replaceAll("^.*:", "")
+                         .equals(ckLocal.toString().replaceAll("^.*:", "")))
+        {
+            return false;
+        }
+
+        String sPath = stat.getPath().toUri().getPath();
+        if (m_manifest != null)
+        {
+            m_manifest.put(BackupManifest.key(sPath), stat.getLen(),
+                           stat.getModificationTime(), getMD5(ckLocal));
+        }
+
+        System.out.println("copied before the restart: " + sPath);
+        return true;
+    }
+
+    /** appends small file stat to the current pack, instead of
+     * copying it to local file f
+     */
+    void packFile(FileSystem fs, FileStatus stat, File f)
+        throws IOException
+    {
+        Path hdfsPath = stat.getPath();
+        String sPath = hdfsPath.toUri().getPath();
+
+        // a local copy would win over the pack, so one left over
+        // from before has to go
+        File fCur = ParallelGzip.findCopy(f);
+        if (fCur.isFile() && false == fCur.delete())
+        {
+            throw new IOException("Failed to delete " + fCur);
+        }
+        deleteChecksumFile(f);
+
+        // an older version in an older pack must not stand in for
+        // this one if it fails
+        MD5MD5CRC32FileChecksum ckLocal;
+        try
+        {
+            ckLocal = packBody(fs, stat);
+        }
+        catch (IOException e)
+        {
+            m_packWriter.drop(sPath);
+            throw e;
+        }
+
+        if (m_manifest != null)
+        {
+            m_manifest.put(BackupManifest.key(sPath), stat.getLen(),
+                           stat.getModificationTime(), getMD5(ckLocal));
+        }
+    }
+
+    /** reads small file stat, checks it against its hdfs checksum and
+     * appends it to the current pack.  Returns its checksum.
+     */
+    MD5MD5CRC32FileChecksum packBody(FileSystem fs, FileStatus stat)
+        throws IOException
+    {
+        Path hdfsPath = stat.getPath();
+        String sPath = hdfsPath.toUri().getPath();
+
+        m_throttle.acquireFile();
+
+        byte[] ab = new byte[(int) stat.getLen()];
+        FSDataInputStream in = null;
+        try
+        {
+            in = fs.open(toReadPath(hdfsPath));
+            in.readFully(ab);
+        }
+        finally
+        {
+            try { in.close(); } catch (Exception e2) {}
+        }
+        m_throttle.acquireBytes(ab.length);
+
+        MD5MD5CRC32FileChecksum ckLocal =
+            HDFSStyleChecksumOutputStream.checksum(ab, 0, ab.length, N_BLOCK_SIZE);
+
+        // compare checksums as a string, after stripping the
+        // algorithm name from the beginning.  Only a body that
+        // matches goes into the pack.
+        FileChecksum ck = fs.getFileChecksum(toReadPath(hdfsPath));
+        String sCk = (ck == null) ? "<null>" : ck.toString();
+
+        if (false == sCk.replaceAll("^.*:", "").equals(ckLocal.toString().replaceAll("^.*:", "")))
+        {
+            System.out.println("CHECKSUM-ERROR: checksum mismatch: " + sPath
+                               + "\nhdfs = " + sCk
+                               + "\nlocal= " + ckLocal);
+            checksumError(sPath, "checksum mismatch in pack, hdfs " + sCk + " local " + ckLocal);
+            throw new IOException("checksum mismatch in pack, hdfs " + sCk + " local " + ckLocal);
+        }
+
+        m_packWriter.add(sPath, stat.getModificationTime(), ab, ab.length, ckLocal);
+        return ckLocal;
+    }
+
+    /**
+     * Method to go though the HDFS filesystem in a DFS to find all
+     * files
+     *
+     * fs:FileSystem object from HDFS
+     * minDate:      Oldest date for files to be backed up
+     * maxDate:Newest date for files to be backed up
+     * stat:Status of the path in HDFS to look for files, as listed by
+     * its parent
+     * catalog:Will be filled with the status of all files in p
+     **/
+    public void checkDir(FileSystem fs, long minDate, long maxDate,
+                         FileStatus stat, FileCatalog catalog)
+    {
+        FileStatus[] fStat;
+        Path p = stat.getPath();
+
+        try
+        {
+            // If this is a directory
+            if (stat.isDir())
+            {
+                // ignore certain directories
+                if (isIgnoredDir(p))
+                {
+                    return;
+                }
+
+                // dump the mkdir and chmod commands for this
+                // directory
+                recordDir(stat);
+
+                fStat = listDir(fs, p);
+
+                // Do a recursive call to all elements
+                for (int i = 0; i < fStat.length; i++)
+                {
+                    checkDir(fs, minDate, maxDate, fStat[i], catalog);
+                }
+            }
+            else
+            {
+                // If not a directory then we've found a file
+                checkFile(fs, minDate, maxDate, stat, catalog);
+            }
+        }
+        catch (IOException e)
+        {
+            scanError(p, e);
+
+            // System.exit(1) ;
+        }
+    }
+
+    // ------------------------------------------------------------
+
+    /** logs that the scan could not look at path p, and keeps the
+     * paths it missed from being taken as gone
+     */
+    void scanError(Path p, IOException e)
+    {
+        System.err.println("ERROR: could not open " + p + ": " + e);
+        m_bScanErrors = true;
+    }
+
+    // ------------------------------------------------------------
+
+    /** writes the mkdir and chmod commands for a directory that gets
+     * backed up, or records it in the metadata manifest
+     */
+    void recordDir(FileStatus stat)
+    {
+        if (m_metadata != null)
+        {
+            m_metadata.add(stat);
+            return;
+        }
+
+        String sPath = stat.getPath().toUri().getPath();
+
+        // skip root directory only
+        if (! sPath.equals("/"))
+        {
+            m_wrMkdirs.println("hadoop fs -mkdir " + sPath);
+        }
+
+        m_wrChmods.println("hadoop fs -chown "
+                           + stat.getOwner() + ":"
+                           + stat.getGroup() + " "
+                           + sPath);
+
+        Short sh = new Short(stat.getPermission().toShort());
+        m_wrChmods.println("hadoop fs -chmod "
+                           + Long.toOctalString(sh.longValue())
+                           + " " + sPath);
+    }
+
+    // ------------------------------------------------------------
+
+    /** applies the ignore rules and the date window to a file found
+     * by the scan, writes its chmod commands, and queues it for
+     * backup if it is in the window.
+     *
+     * fs:FileSystem object from HDFS
+     * minDate:      Oldest date for files to be backed up
+     * maxDate:Newest date for files to be backed up
+     * stat:Status of the file
+     * catalog:Will get the file if it should be backed up
+     */
+    void checkFile(FileSystem fs, long minDate, long maxDate,
+                   FileStatus stat, FileCatalog catalog)
+        throws IOException
+    {
+        long tmpDate;
+        Path p = stat.getPath();
+        String sPath = p.toUri().getPath();
+
+        // ignore crc files
+        if (p.getName().endsWith(".crc"))
+        {
+            return;
+        }
+
+        BackupMetrics.count("files_scanned", 1);
+        BackupMetrics.count("bytes_scanned", stat.getLen());
+
+        // ignore other files
+        if (sPath.startsWith("/user/oozie/etl/workflows/"))
+        {
+            return;
+        }
+
+        // try to get the table name from the path. There are
+        // various types of tables, from those replicated from
+        // another database to regular hive tables to
+        // partitioned hive tables.  We use table names to
+        // both exclude some from the backup, and for the rest
+        // to dump out the schema and partition name.
+        if (m_ignoreTables != null && m_ignoreTables.doIgnoreFile(sPath))
+        {
+            m_nIgnoredTables ++;
+
+            if (m_nIgnoredTables < 5)
+            {
+                System.out.println("Skipping ignore-table file: " + sPath);
+            }
+            else if (m_nIgnoredTables == 5)
+            {
+                System.out.println("(...not showing other skipped tables...)");
+            }
+            return;
+        }
+
+        tmpDate = stat.getModificationTime() / 1000;
+
+        // store the chmods/chowns for all files
+        if (m_metadata != null)
+        {
+            m_metadata.add(stat);
+        }
+        else
+        {
+            m_wrChmods.println("hadoop fs -chown "
+                               + stat.getOwner() + ":"
+                               + stat.getGroup() + " "
+                               + sPath);
+
+            m_wrChmods.println("hadoop fs -chmod "
+                               + Integer.toOctalString(stat.getPermission().toShort())
+                               + " " + sPath);
+        }
+
+        // fsimage times are cut down to the minute, so the real
+        // mtime can be up to 59 seconds later.  Only files that could
+        // be in the window get their exact status from the namenode.
+        if (m_bMinuteMtimes)
+        {
+            if (tmpDate + 59 < minDate || tmpDate > maxDate)
+            {
+                return;
+            }
+
+            try
+            {
+                stat = fs.getFileStatus(p);
+            }
+            catch (FileNotFoundException e)
+            {
+                System.out.println("IGNORING: " + sPath + " no longer exists");
+                return;
+            }
+
+            tmpDate = stat.getModificationTime() / 1000;
+        }
+
+        // check dates.  is it too young?
+        if (tmpDate < minDate)
+        {
+            return;
+        }
+
+        // is the file too recent?
+        if (tmpDate > maxDate)
+        {
+            //System.out.println("file too recent: " + sPath);
+            return;
+        }
+
+        // file timestamp is ok
+        if (m_pipeline != null)
+        {
+            m_pipeline.submit(stat);
+        }
+        else
+        {
+            catalog.add(stat);
+        }
+
+        // store info about total bytes neeed to backup
+        m_nTotalBytes += stat.getLen();
+    }
+
+    // ------------------------------------------------------------
+
+    /** returns true if sPath is sBase or below it
+     */
+    static boolean isUnder(String sPath, String sBase)
+    {
+        if ("/".equals(sBase) || sPath.equals(sBase))
+        {
+            return true;
+        }
+
+        return sPath.startsWith(sBase) && sPath.charAt(sBase.length()) == '/';
+    }
+
+    // ------------------------------------------------------------
+
+    /** returns true if directory dir, or any directory between it and
+     * sBase, is ignored.  checkDir never descends into those, so
+     * nothing below them gets backed up.
+     */
+    static boolean isUnderIgnoredDir(Path dir, String sBase)
+    {
+        for (Path p = dir;
+             p != null && isUnder(p.toUri().getPath(), sBase);
+             p = p.getParent())
+        {
+            if (isIgnoredDir(p))
+            {
+                return true;
+            }
+        }
+
+        return false;
     }
 
-    /**
-     * Method to go though the HDFS filesystem in a DFS to find all
-     * files
-     *
-     * fs:FileSystem object from HDFS
-     * minDate:      Oldest date for files to be backed up
-     * maxDate:Newest date for files to be backed up
-     * p:Path in HDFS to look for files
-     * pathList:Will be filled with all files in p
-     * hmTimestamps: hashmap of timestamps for later sorting
-     **/
-    public void checkDir(FileSystem fs, long minDate, long maxDate,
-                         Path p, ArrayList<Path> pathList,
-                         HashMap<Path,Long> hmTimestamps)
+    // ------------------------------------------------------------
+
+    /** returns true if the directory should not be backed up at all
+     */
+    static boolean isIgnoredDir(Path p)
     {
-        long tmpDate;
-        FileStatus[] fStat;
+        String sName = p.getName();
+
+        return ("dfstmp".equals(sName)
+                || "tmp".equals(sName)
+                || "jobtracker".equals(sName)
+                || p.toUri().getPath().startsWith("/mapred")
+                || "ops".equals(sName)
+                || sName.startsWith("_distcp_logs"));
+    }
 
-        try
-        {
-            String sPath = p.toUri().getPath();
+    // ------------------------------------------------------------
 
-            // If this is a directory
-            if (fs.getFileStatus(p).isDir())
-            {
-                // ignore certain directories
-                if ("dfstmp".equals(p.getName())
-                    || "tmp".equals(p.getName())
-                    || "jobtracker".equals(p.getName())
-                    || sPath.startsWith("/mapred")
-                    || "ops".equals(p.getName())
-                    || p.getName().startsWith("_distcp_logs")
-                    )
-                {
-                    return;
-                }
+    /** lists directory p, through the parallel lister if there is
+     * one.
+     */
+    FileStatus[] listDir(FileSystem fs, Path p)
+        throws IOException
+    {
+        if (m_dirLister != null)
+        {
+            return m_dirLister.listStatus(p);
+        }
 
-                // dump the mkdir and chmod commands for this
-                // directory -- skip root directory only
-                {
-                    FileStatus stat = fs.getFileStatus(p);
+        return listStatus(fs, p);
+    }
 
-                    if (! sPath.equals("/"))
-                    {
-                        m_wrMkdirs.println("hadoop fs -mkdir " + sPath);
-                    }
+    // ------------------------------------------------------------
 
-                    m_wrChmods.println("hadoop fs -chown "
-                                       + stat.getOwner() + ":"
-                                       + stat.getGroup() + " "
-                                       + sPath);
+    /** lists directory p, from the scan cache if it has not changed
+     * since the last scan.
+     */
+    FileStatus[] listStatus(FileSystem fs, Path p)
+        throws IOException
+    {
+        if (m_scanCache != null)
+        {
+            return m_scanCache.listStatus(p);
+        }
 
-                    Short sh = new Short(stat.getPermission().toShort());
-                    m_wrChmods.println("hadoop fs -chmod "
-                                       + Long.toOctalString(sh.longValue())
-                                       + " " + sPath);
-                }
+        return listLive(fs, p);
+    }
 
+    // ------------------------------------------------------------
 
-                fStat = fs.listStatus(p);
+    /** lists directory p on the namenode.  In snapshot mode the
+     * listing comes from the snapshot, with the children's paths
+     * mapped back to the live namespace.
+     */
+    FileStatus[] listLive(FileSystem fs, Path p)
+        throws IOException
+    {
+        if (m_readRoot == null)
+        {
+            return fs.listStatus(p);
+        }
 
-                // Do a recursive call to all elements
-                for (int i = 0; i < fStat.length; i++)
-                {
-                    checkDir(fs, minDate, maxDate, fStat[i].getPath(),
-                             pathList, hmTimestamps);
-                }
-            }
-            else
+        FileStatus[] fStat = fs.listStatus(toReadPath(p));
+        if (fStat != null)
+        {
+            for (int i = 0; i < fStat.length; i++)
             {
-                // If not a directory then we've found a file
-
-                // ignore crc files
-                if (p.getName().endsWith(".crc"))
-                {
-                    return;
-                }
+                fStat[i] = withPath(fStat[i], new Path(p, fStat[i].getPath().getName()));
+            }
+        }
 
-                // ignore other files
-                if (sPath.startsWith("/user/oozie/etl/workflows/"))
-                {
-                    return;
-                }
+        return fStat;
+    }
 
-                // try to get the table name from the path. There are
-                // various types of tables, from those replicated from
-                // another database to regular hive tables to
-                // partitioned hive tables.  We use table names to
-                // both exclude some from the backup, and for the rest
-                // to dump out the schema and partition name.
-                if (m_ignoreTables != null && m_ignoreTables.doIgnoreFile(sPath))
-                {
-                    m_nIgnoredTables ++;
+    // ------------------------------------------------------------
 
-                    if (m_nIgnoredTables < 5)
-                    {
-                        System.out.println("Skipping ignore-table file: " + sPath);
-                    }
-                    else if (m_nIgnoredTables == 5)
-                    {
-                        System.out.println("(...not showing other skipped tables...)");
-                    }
-                    return;
-                }
+    /** returns the status of hdfs path p, read from the snapshot in
+     * snapshot mode
+     */
+    FileStatus getStatus(FileSystem fs, Path p)
+        throws IOException
+    {
+        if (m_readRoot == null)
+        {
+            return fs.getFileStatus(p);
+        }
 
-                FileStatus stat = fs.getFileStatus(p);
+        return withPath(fs.getFileStatus(toReadPath(p)), p);
+    }
 
-                tmpDate = stat.getModificationTime() / 1000;
+    // ------------------------------------------------------------
 
-                // store the chmods/chowns for all files
-                m_wrChmods.println("hadoop fs -chown "
-                                   + stat.getOwner() + ":"
-                                   + stat.getGroup() + " "
-                                   + sPath);
+    /** returns where to read hdfs path p from: the path itself, or
+     * the same path in this run's snapshot
+     */
+    Path toReadPath(Path p)
+    {
+        if (m_readRoot == null)
+        {
+            return p;
+        }
 
-                m_wrChmods.println("hadoop fs -chmod "
-                                   + stat.getPermission().toShort()
-                                   + " " + sPath);
+        String sPath = p.toUri().getPath();
+        String sLive = m_liveRoot.toUri().getPath();
 
-                // check dates.  is it too young?
-                if (tmpDate < minDate)
-                {
-                    return;
-                }
+        if (sPath.equals(sLive))
+        {
+            return m_readRoot;
+        }
 
-                // is the file too recent?
-                if (tmpDate > maxDate)
-                {
-                    //System.out.println("file too recent: " + sPath);
-                    return;
-                }
+        if (! sLive.endsWith("/"))
+        {
+            sLive += "/";
+        }
 
-                // file timestamp is ok
-                pathList.add(p);
+        if (! sPath.startsWith(sLive))
+        {
+            return p;
+        }
 
-                hmTimestamps.put(p, new Long(tmpDate));
+        return new Path(m_readRoot, sPath.substring(sLive.length()));
+    }
 
-                // store info about total bytes neeed to backup
-                m_nTotalBytes += fs.getContentSummary(p).getLength();
-            }
-        }
-        catch (IOException e)
-        {
-            System.err.println("ERROR: could not open " + p + ": " + e);
+    // ------------------------------------------------------------
 
-            // System.exit(1) ;
-        }
+    /** copy of a FileStatus with a different path
+     */
+    static FileStatus withPath(FileStatus stat, Path p)
+    {
+        return new FileStatus(stat.getLen(), stat.isDir(), stat.getReplication(),
+                              stat.getBlockSize(), stat.getModificationTime(),
+                              stat.getAccessTime(), stat.getPermission(),
+                              stat.getOwner(), stat.getGroup(), p);
     }
 
-    static class DateComparator implements Comparator
+    // ------------------------------------------------------------
+
+    /** finds the files to back up from the diff between the snapshot
+     * of the last successful run and the one of this run.  New and
+     * renamed directories are walked in full, since the diff only
+     * names their top.  A modified file whose mtime is older than the
+     * previous snapshot only had its metadata changed, so it is not
+     * copied again.
+     */
+    void checkSnapshotDiff(FileSystem fs, HdfsSnapshots snapshots,
+                           String sFrom, String sTo, long maxDate,
+                           FileCatalog catalog)
+        throws IOException
     {
-        HashMap<Path,Long> hmTimestamps;
+        String sRoot = m_liveRoot.toUri().getPath();
+        long nFromDate = HdfsSnapshots.getSnapshotTime(sFrom);
 
-        public DateComparator(HashMap<Path,Long> hm)
-        {
-            hmTimestamps = hm;
-        }
+        List<String[]> lDiff = snapshots.diff(sFrom, sTo);
+        System.err.println(lDiff.size() + " changed paths");
 
-        public int compare(Object path1, Object path2)
+        for (String[] as : lDiff)
         {
-            long date1 = hmTimestamps.get((Path)path1).longValue();
-            long date2 = hmTimestamps.get((Path)path2).longValue();
+            String sType = as[0];
+            Path p = (as[1].length() == 0) ? m_liveRoot : new Path(m_liveRoot, as[1]);
 
-            if (date1 > date2) {
-                return 1;
-            } else if (date1 < date2) {
-                return -1;
-            } else {
-                return 0;
+            if (isUnderIgnoredDir(p.getParent(), sRoot))
+            {
+                continue;
+            }
+
+            FileStatus stat;
+            try
+            {
+                stat = getStatus(fs, p);
+            }
+            catch (FileNotFoundException e)
+            {
+                System.err.println("ERROR: " + p + " is in the diff but not in the snapshot");
+                continue;
+            }
+
+            if (! stat.isDir())
+            {
+                checkFile(fs, "MODIFY".equals(sType) ? nFromDate : 0, maxDate,
+                          stat, catalog);
+            }
+            else if ("MODIFY".equals(sType))
+            {
+                if (! isIgnoredDir(p))
+                {
+                    recordDir(stat);
+                }
+            }
+            else
+            {
+                checkDir(fs, 0, maxDate, stat, catalog);
             }
         }
     }
@@ -765,6 +2404,191 @@ public class BackupHdfs
 
     // ------------------------------------------------------------
 
+    /** returns true if the local copy f of hdfs file stat is known
+     * from the manifest to be current: same length and mtime as when
+     * it was copied, or same length and checksum if only the mtime
+     * changed.  In the second case the new mtime is recorded.
+     */
+    boolean isUnchanged(FileSystem fs, FileStatus stat, File f)
+        throws IOException
+    {
+        if (m_manifest == null)
+        {
+            return false;
+        }
+
+        String sPath = stat.getPath().toUri().getPath();
+        long nKey = BackupManifest.key(sPath);
+
+        // a compressed copy's length says nothing, the length
+        // recorded in the manifest has to do.  A small file without
+        // a local copy was packed, and the manifest only has it once
+        // its pack is on disk.
+        File fCur = ParallelGzip.findCopy(f);
+        boolean bPacked = ! fCur.exists()
+            && m_packWriter != null && m_packWriter.isSmall(stat.getLen());
+
+        BackupManifest.Entry entry = m_manifest.get(nKey);
+        if (entry == null
+            || entry.m_nLength != stat.getLen()
+            || (! bPacked && ! fCur.isFile())
+            || (! bPacked && ! ParallelGzip.isCompressedCopy(fCur)
+                && fCur.length() != stat.getLen()))
+        {
+            return false;
+        }
+
+        if (entry.m_nMtime == stat.getModificationTime())
+        {
+            if (! m_bQuiet)
+            {
+                System.out.println("unchanged since last backup: " + sPath);
+            }
+            return true;
+        }
+
+        // touched, or written again with the same content?
+        byte[] abMD5 = getMD5(fs.getFileChecksum(toReadPath(stat.getPath())));
+        if (abMD5 == null || ! Arrays.equals(abMD5, entry.m_abMD5))
+        {
+            return false;
+        }
+
+        if (! bPacked)
+        {
+            fCur.setLastModified(stat.getModificationTime());
+        }
+        m_manifest.put(nKey, stat.getLen(), stat.getModificationTime(), abMD5);
+
+        if (! m_bQuiet)
+        {
+            System.out.println("content unchanged since last backup: " + sPath);
+        }
+        return true;
+    }
+
+    // ------------------------------------------------------------
+
+    /** returns the MD5 part of an hdfs-style checksum, or null if ck
+     * is not one
+     */
+    static byte[] getMD5(FileChecksum ck)
+    {
+        if (! (ck instanceof MD5MD5CRC32FileChecksum))
+        {
+            return null;
+        }
+
+        // serialized as bytes per CRC, CRCs per block, MD5
+        byte[] ab = ck.getBytes();
+        return Arrays.copyOfRange(ab, ab.length - 16, ab.length);
+    }
+
+    // ------------------------------------------------------------
+
+    /** deletes the .crc file LocalFileSystem keeps next to local file
+     * f, if there is one
+     */
+    static void deleteChecksumFile(File f)
+        throws IOException
+    {
+        File crc = new File(f.getParentFile(), "." + f.getName() + ".crc");
+        if (crc.exists() && ! crc.delete())
+        {
+            throw new IOException("Failed to delete " + crc);
+        }
+    }
+
+    // ------------------------------------------------------------
+
+    final static int N_COPY_BUFFER_SIZE = ChannelOutputStream.N_BUFFER_SIZE;
+
+    /** copies hdfs file stat to local file sFsPath, by blocks in
+     * parallel if it is large.  Returns the hdfs-style checksum of
+     * the bytes written.
+     *
+     * The file is written directly, not through the checksummed
+     * LocalFileSystem, so it gets no .crc sidecar file.  A sidecar
+     * left by an older copy would no longer match, so it is deleted.
+     * So is the older copy itself, before the new one is written.
+     * With a journal the copy is synced to disk before it returns.
+     */
+    MD5MD5CRC32FileChecksum copyToLocal(FileSystem fs, FileStatus stat, String sFsPath)
+        throws IOException
+    {
+        Path hdfsPath = stat.getPath();
+        File f = new File(sFsPath);
+
+        File dir = f.getParentFile();
+        if (! dir.exists() && ! dir.mkdirs() && ! dir.isDirectory())
+        {
+            throw new IOException("Failed to mkdirs " + dir);
+        }
+
+        // an older copy, under either name, is replaced rather than
+        // written over: it may be a link into the dedup store
+        deleteLocalCopy(f);
+
+        // compressed files are written in order, by one stream
+        if (m_gzip == null
+            && m_blockCopier != null && m_blockCopier.isLarge(stat.getLen()))
+        {
+            return m_blockCopier.copy(fs, toReadPath(hdfsPath), stat.getLen(), f,
+                                      m_journal != null);
+        }
+
+        InputStream in = null;
+        FileOutputStream fout = null;
+        HDFSStyleChecksumOutputStream out = null;
+
+        try
+        {
+            in = fs.open(toReadPath(hdfsPath));
+
+            // the first bytes tell if the file is compressed already
+            byte[] ab = new byte[N_COPY_BUFFER_SIZE];
+            int n = in.read(ab);
+
+            boolean bCompress = m_gzip != null
+                && ! ParallelGzip.isCompressed(f.getName(), ab, n);
+
+            // the checksum is of the bytes before compression
+            File fOut = bCompress ? ParallelGzip.compressedName(f) : f;
+            fout = new FileOutputStream(fOut);
+            OutputStream channelOut = new ChannelOutputStream(fout.getChannel(), 0);
+            out = new HDFSStyleChecksumOutputStream(bCompress ? m_gzip.compress(channelOut)
+                                                    : channelOut,
+                                                    N_BLOCK_SIZE);
+
+            while (n > 0)
+            {
+                m_throttle.acquireBytes(n);
+                out.write(ab, 0, n);
+                n = in.read(ab);
+            }
+
+            out.close();
+            MD5MD5CRC32FileChecksum ck = out.getChecksum();
+            out = null;
+
+            // the journal must not record a copy that a crash loses
+            if (m_journal != null)
+            {
+                fout.getChannel().force(false);
+            }
+            fout.close();
+            return ck;
+        }
+        finally
+        {
+            try { in.close(); } catch (Exception e2) {}
+            try { out.close(); } catch (Exception e2) {}
+            try { fout.close(); } catch (Exception e2) {}
+        }
+    }
+
+    // ------------------------------------------------------------
+
     // assume the hdfs block size.  Prod cluster uses 128M, as opposed
     // to the hadoop default 64M.
     final static long N_BLOCK_SIZE = 128 * 1024 * 1024;
@@ -772,20 +2596,31 @@ public class BackupHdfs
     // ------------------------------------------------------------
 
     /** Compare the checksums of the hdfs file as well as the local
-     * copied file.
+     * copied file.  stat is the listed status of the hdfs file.
      *
      * @author tpalka@tripadvisor.com
      * @date   Fri Jan 27 06:06:00 2012
      */
-    boolean compareChecksums(FileSystem fs, Path p, String sFsPath)
+    boolean compareChecksums(FileSystem fs, FileStatus stat, String sFsPath)
+    {
+        return compareChecksums(fs, stat, sFsPath, null, null);
+    }
+
+    // ------------------------------------------------------------
+
+    /** Same as above.  ckHdfs is the hdfs checksum if it was fetched
+     * already, ckCopied the checksum of the local file computed while
+     * it was copied.  Either can be null to get it here.
+     */
+    boolean compareChecksums(FileSystem fs, FileStatus stat, String sFsPath,
+                             FileChecksum ckHdfs, FileChecksum ckCopied)
     {
+        Path p = stat.getPath();
+
         try
         {
-            // get hdfs file info
-            FileStatus stat = fs.getFileStatus(p);
-
             // get HDFS checksum
-            FileChecksum ck = fs.getFileChecksum(p);
+            FileChecksum ck = (ckHdfs != null) ? ckHdfs : fs.getFileChecksum(toReadPath(p));
             String sCk, sCkShort;
             if (ck == null)
             {
@@ -802,30 +2637,36 @@ public class BackupHdfs
             // + " checksum=" + sCk);
 
             // find the local file
-            File fLocal = new File(sFsPath);
+            File fLocal = ParallelGzip.findCopy(new File(sFsPath));
             if (! fLocal.exists())
             {
                 System.out.println("CHECKSUM-ERROR: file does not exist: " + sFsPath);
+                checksumError(p.toUri().getPath(), "file does not exist: " + sFsPath);
                 return false;
             }
             if (! fLocal.isFile())
             {
                 System.out.println("CHECKSUM-ERROR: path is not a file: " + sFsPath);
+                checksumError(p.toUri().getPath(), "path is not a file: " + sFsPath);
                 return false;
             }
-            if (stat.getLen() != fLocal.length())
+            if (! ParallelGzip.isCompressedCopy(fLocal)
+                && stat.getLen() != fLocal.length())
             {
                 System.out.println("CHECKSUM-ERROR: length mismatch: " + sFsPath
                                    + " hdfslen=" + stat.getLen()
                                    + " fslen=" + fLocal.length());
+                checksumError(p.toUri().getPath(), "length mismatch, hdfs " + stat.getLen()
+                              + " local " + fLocal.length());
                 return false;
             }
 
             // get local fs checksum
-            FileChecksum ckLocal = getLocalFileChecksum(sFsPath);
+            FileChecksum ckLocal = (ckCopied != null) ? ckCopied : getLocalFileChecksum(fLocal.getPath());
             if (ckLocal == null)
             {
                 System.out.println("ERROR Failed to get checksum for local file " + sFsPath);
+                checksumError(p.toUri().getPath(), "no checksum for local file " + sFsPath);
                 return false;
             }
 
@@ -839,6 +2680,8 @@ public class BackupHdfs
                 System.out.println("CHECKSUM-ERROR: checksum mismatch: " + sFsPath
                                    + "\nhdfs = " + sCk
                                    + "\nlocal= " + sCkLocal);
+                checksumError(p.toUri().getPath(), "checksum mismatch, hdfs " + sCk
+                              + " local " + sCkLocal);
                 return false;
             }
 
@@ -847,6 +2690,7 @@ public class BackupHdfs
         catch (IOException e)
         {
             System.out.println("CHECKSUM-ERROR: " + sFsPath + " exception " + e.toString());
+            checksumError(p.toUri().getPath(), e.toString());
         }
 
         return false;
@@ -854,6 +2698,50 @@ public class BackupHdfs
 
     // ------------------------------------------------------------
 
+    /** logs file stat to the event log, with what was done to it
+     */
+    void logFile(FileStatus stat, String sAction)
+    {
+        if (m_events != null)
+        {
+            m_events.event("file", "path", stat.getPath().toUri().getPath(),
+                           "action", sAction, "len", stat.getLen(),
+                           "mtime", stat.getModificationTime(),
+                           "owner", stat.getOwner(), "group", stat.getGroup(),
+                           "perms", stat.getPermission().toString());
+        }
+    }
+
+    // ------------------------------------------------------------
+
+    /** counts and logs a checksum error of hdfs file sPath
+     */
+    void checksumError(String sPath, String sError)
+    {
+        BackupMetrics.count("checksum_errors", 1);
+        if (m_events != null)
+        {
+            m_events.event("checksum_error", "path", sPath, "error", sError);
+        }
+    }
+
+    // ------------------------------------------------------------
+
+    /** prints the watermark, the --date of the next run, and ends the
+     * event log with the summary of the run, with status sStatus
+     */
+    void finish(String sStatus, long nWatermark)
+    {
+        System.out.println(nWatermark);
+
+        if (m_events != null)
+        {
+            m_events.finish(sStatus, nWatermark);
+        }
+    }
+
+    // ------------------------------------------------------------
+
     static ExternalHDFSChecksumGenerator g_checksumGenerator;
 
     // ------------------------------------------------------------
@@ -874,8 +2762,14 @@ public class BackupHdfs
         long lBlockSize = N_BLOCK_SIZE;
         int bytesPerCRC = 512;
 
+        long nStart = System.nanoTime();
         try
         {
+            if (ParallelGzip.isCompressedCopy(new File(sPath)))
+            {
+                return ParallelGzip.checksum(new File(sPath), lBlockSize);
+            }
+
             return g_checksumGenerator.getLocalFilesystemHDFSStyleChecksum
                 (sPath, bytesPerCRC, lBlockSize);
         }
@@ -885,5 +2779,9 @@ public class BackupHdfs
             e.printStackTrace();
             return null;
         }
+        finally
+        {
+            BackupMetrics.observe("local_checksum_seconds", null, nStart);
+        }
     }
 }
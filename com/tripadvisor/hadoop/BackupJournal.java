@@ -0,0 +1,385 @@
+/*
+  Copyright 2012 TripAdvisor, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.tripadvisor.hadoop;
+
+import org.apache.hadoop.fs.*;
+import org.apache.hadoop.fs.permission.FsPermission;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/** helper class.  progress journal of a BackupHdfs run, so a run that
+ * died can be restarted where it stopped, without scanning hdfs again
+ * or copying again the files it finished.
+ *
+ * The journal starts with the run's parameters and its sorted file
+ * catalog, written once the scan is done.  After that, the key of
+ * every file backed up is appended.  Keys are committed in groups:
+ * written and synced once a second, or every N_MAX_BATCH files,
+ * whichever comes first, so a crash loses at most the last group, and
+ * those files are just backed up again.  A key is only committed for
+ * a file whose data is on disk: BackupHdfs syncs a copy before
+ * recording it when there is a journal, and the pack is synced before
+ * every commit, so the index records of packed files go first.
+ *
+ * The journal is deleted when the run completes.
+ */
+final class BackupJournal
+{
+    private static final int N_MAGIC = 0x424a4e31;  // "BJN1"
+
+    static final int N_MAX_BATCH = 1000;
+    static final long N_COMMIT_INTERVAL = 1000;
+
+    private final File m_file;
+
+    // parameters of the run that wrote the journal
+    private String m_sBasePath;
+    private String m_sLocalPath;
+    private long m_nMinDate;
+    private long m_nMaxDate;
+    private String m_sSnapshot;
+    private String m_sPrevSnapshot;
+
+    private FileCatalog m_catalog;
+    private final Set<Long> m_setDone = new HashSet<Long>();
+
+    // keys not committed yet
+    private FileOutputStream m_fileOut;
+    private final ByteArrayOutputStream m_pending = new ByteArrayOutputStream();
+    private final DataOutputStream m_pendingOut = new DataOutputStream(m_pending);
+    private int m_nPending = 0;
+    private long m_nLastCommit = System.currentTimeMillis();
+
+    // synced before each commit, if files are packed
+    private PackWriter m_packWriter = null;
+
+    // ------------------------------------------------------------
+
+    private BackupJournal(String sFilename)
+    {
+        m_file = new File(sFilename);
+    }
+
+    // ------------------------------------------------------------
+
+    /** writes a new journal for a run whose scan found catalog, sorted.
+     * sSnapshot and sPrevSnapshot are null unless in snapshot mode.
+     */
+    static BackupJournal create(String sFilename, String sBasePath, String sLocalPath,
+                                long nMinDate, long nMaxDate,
+                                String sSnapshot, String sPrevSnapshot,
+                                FileCatalog catalog)
+        throws IOException
+    {
+        BackupJournal journal = new BackupJournal(sFilename);
+        journal.m_sBasePath = sBasePath;
+        journal.m_sLocalPath = sLocalPath;
+        journal.m_nMinDate = nMinDate;
+        journal.m_nMaxDate = nMaxDate;
+        journal.m_sSnapshot = sSnapshot;
+        journal.m_sPrevSnapshot = sPrevSnapshot;
+        journal.m_catalog = catalog;
+
+        // the header and catalog go in whole or not at all
+        File tmp = new File(sFilename + ".tmp");
+        FileOutputStream fout = null;
+
+        try
+        {
+            fout = new FileOutputStream(tmp);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fout, 1024 * 1024));
+
+            out.writeInt(N_MAGIC);
+            out.writeUTF(sBasePath);
+            out.writeUTF(sLocalPath);
+            out.writeLong(nMinDate);
+            out.writeLong(nMaxDate);
+            out.writeUTF((sSnapshot == null) ? "" : sSnapshot);
+            out.writeUTF((sPrevSnapshot == null) ? "" : sPrevSnapshot);
+
+            out.writeInt(catalog.size());
+            for (int i = 0; i < catalog.size(); i++)
+            {
+                FileStatus stat = catalog.get(i);
+
+                out.writeUTF(stat.getPath().toString());
+                out.writeLong(stat.getLen());
+                out.writeShort(stat.getReplication());
+                out.writeLong(stat.getBlockSize());
+                out.writeLong(stat.getModificationTime());
+                out.writeShort(stat.getPermission().toShort());
+                out.writeUTF(stat.getOwner());
+                out.writeUTF(stat.getGroup());
+            }
+
+            out.flush();
+            fout.getChannel().force(true);
+            fout.close();
+            fout = null;
+        }
+        finally
+        {
+            try { fout.close(); } catch (Exception e2) {}
+        }
+
+        if (! tmp.renameTo(journal.m_file))
+        {
+            throw new IOException("can't rename " + tmp + " to " + sFilename);
+        }
+
+        journal.m_fileOut = new FileOutputStream(journal.m_file, true);
+        return journal;
+    }
+
+    // ------------------------------------------------------------
+
+    /** reads the journal of a run that did not complete, to resume
+     * it.  Returns null if there is none, or if it is for another
+     * hdfs or local path, or if its date window started after
+     * nMinDate and resuming it would miss files.
+     */
+    static BackupJournal load(String sFilename, String sBasePath, String sLocalPath,
+                              long nMinDate)
+        throws IOException
+    {
+        BackupJournal journal = new BackupJournal(sFilename);
+        if (! journal.m_file.exists())
+        {
+            return null;
+        }
+
+        DataInputStream in = null;
+        int nPartial = 0;
+        try
+        {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(journal.m_file),
+                                                             1024 * 1024));
+
+            if (in.readInt() != N_MAGIC)
+            {
+                throw new IOException(sFilename + " is not a backup journal");
+            }
+
+            journal.m_sBasePath = in.readUTF();
+            journal.m_sLocalPath = in.readUTF();
+            journal.m_nMinDate = in.readLong();
+            journal.m_nMaxDate = in.readLong();
+            journal.m_sSnapshot = in.readUTF();
+            journal.m_sPrevSnapshot = in.readUTF();
+
+            if (! journal.m_sBasePath.equals(sBasePath)
+                || ! journal.m_sLocalPath.equals(sLocalPath))
+            {
+                System.err.println("journal " + sFilename + " is for "
+                                   + journal.m_sBasePath + " to " + journal.m_sLocalPath
+                                   + ", starting over");
+                return null;
+            }
+            if (nMinDate < journal.m_nMinDate)
+            {
+                System.err.println("journal " + sFilename + " starts at "
+                                   + journal.m_nMinDate + ", after --date, starting over");
+                return null;
+            }
+
+            int nFiles = in.readInt();
+            FileCatalog catalog = new FileCatalog(Math.max(nFiles, 1));
+            for (int i = 0; i < nFiles; i++)
+            {
+                Path p = new Path(in.readUTF());
+                long nLen = in.readLong();
+                short nReplication = in.readShort();
+                long nBlockSize = in.readLong();
+                long nMtime = in.readLong();
+                short nPermission = in.readShort();
+                String sOwner = in.readUTF();
+                String sGroup = in.readUTF();
+
+                catalog.add(new FileStatus(nLen, false, nReplication, nBlockSize,
+                                           nMtime, 0, new FsPermission(nPermission),
+                                           sOwner, sGroup, p));
+            }
+            journal.m_catalog = catalog;
+
+            // a crash can cut the last key short
+            byte[] abKey = new byte[8];
+            int n;
+            while ((n = in.read(abKey, nPartial, 8 - nPartial)) > 0)
+            {
+                nPartial += n;
+                if (nPartial == 8)
+                {
+                    journal.m_setDone.add(ByteBuffer.wrap(abKey).getLong());
+                    nPartial = 0;
+                }
+            }
+        }
+        finally
+        {
+            try { in.close(); } catch (Exception e2) {}
+        }
+
+        // drop a partial key, so new ones line up
+        journal.m_fileOut = new FileOutputStream(journal.m_file, true);
+        FileChannel ch = journal.m_fileOut.getChannel();
+        ch.truncate(ch.size() - nPartial);
+
+        return journal;
+    }
+
+    // ------------------------------------------------------------
+
+    long getMinDate()
+    {
+        return m_nMinDate;
+    }
+
+    long getMaxDate()
+    {
+        return m_nMaxDate;
+    }
+
+    /** snapshot the run copies from, or null
+     */
+    String getSnapshot()
+    {
+        return (m_sSnapshot == null || m_sSnapshot.length() == 0) ? null : m_sSnapshot;
+    }
+
+    /** snapshot of the backup before the run, or null
+     */
+    String getPrevSnapshot()
+    {
+        return (m_sPrevSnapshot == null || m_sPrevSnapshot.length() == 0) ? null : m_sPrevSnapshot;
+    }
+
+    /** the sorted catalog of the run
+     */
+    FileCatalog getCatalog()
+    {
+        return m_catalog;
+    }
+
+    /** number of files done before the restart
+     */
+    synchronized int getDoneCount()
+    {
+        return m_setDone.size();
+    }
+
+    // ------------------------------------------------------------
+
+    /** sets the pack that small files go to, to sync before each
+     * commit
+     */
+    synchronized void setPackWriter(PackWriter packWriter)
+    {
+        m_packWriter = packWriter;
+    }
+
+    // ------------------------------------------------------------
+
+    /** returns true if file stat was backed up before the restart
+     */
+    synchronized boolean isDone(FileStatus stat)
+    {
+        return m_setDone.contains(BackupManifest.key(stat.getPath().toUri().getPath()));
+    }
+
+    // ------------------------------------------------------------
+
+    /** records that file stat was backed up
+     */
+    synchronized void done(FileStatus stat)
+        throws IOException
+    {
+        m_pendingOut.writeLong(BackupManifest.key(stat.getPath().toUri().getPath()));
+        m_nPending++;
+
+        if (m_nPending >= N_MAX_BATCH
+            || System.currentTimeMillis() - m_nLastCommit >= N_COMMIT_INTERVAL)
+        {
+            commit();
+        }
+    }
+
+    // ------------------------------------------------------------
+
+    /** writes and syncs the keys recorded since the last commit
+     */
+    synchronized void commit()
+        throws IOException
+    {
+        if (m_nPending > 0)
+        {
+            if (m_packWriter != null)
+            {
+                m_packWriter.sync();
+            }
+
+            m_pendingOut.flush();
+            m_pending.writeTo(m_fileOut);
+            m_fileOut.getChannel().force(false);
+
+            m_pending.reset();
+            m_nPending = 0;
+        }
+
+        m_nLastCommit = System.currentTimeMillis();
+    }
+
+    // ------------------------------------------------------------
+
+    /** commits and closes the journal
+     */
+    synchronized void close()
+        throws IOException
+    {
+        if (m_fileOut == null)
+        {
+            return;
+        }
+
+        try
+        {
+            commit();
+        }
+        finally
+        {
+            try { m_fileOut.close(); } catch (Exception e2) {}
+            m_fileOut = null;
+        }
+    }
+
+    // ------------------------------------------------------------
+
+    /** closes and deletes the journal, once the run has completed
+     */
+    synchronized void delete()
+        throws IOException
+    {
+        close();
+
+        if (! m_file.delete())
+        {
+            throw new IOException("Failed to delete " + m_file);
+        }
+    }
+}
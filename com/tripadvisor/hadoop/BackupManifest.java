@@ -0,0 +1,371 @@
+/*
+  Copyright 2012 TripAdvisor, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.tripadvisor.hadoop;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/** helper class.  local record of every file backed up: its length,
+ * mtime and the MD5 of its hdfs-style checksum, so BackupHdfs can
+ * skip files that have not changed since they were copied.
+ *
+ * Files are keyed by a 64-bit hash of their hdfs path, in an
+ * open-addressing table of primitive arrays: 40 bytes a file and no
+ * objects, so tens of millions of files fit in a few GB of heap.  Two
+ * paths with the same hash would share an entry; with 64 bits that
+ * takes billions of files to become likely, and a wrong skip would
+ * also need the same length and mtime.
+ *
+ * On disk the manifest is a header followed by the table entries as
+ * fixed 40-byte records, read and written in large blocks.  save()
+ * writes a tmp file, syncs it, and renames it over the old one, so a
+ * crash leaves either the old or the new manifest.
+ *
+ * All methods are synchronized.  Slots move when the table grows, so
+ * get() returns a copy of the record rather than its slot.
+ */
+final class BackupManifest
+{
+    private static final int N_MAGIC = 0x424d4631;  // "BMF1"
+    private static final int N_RECORD_SIZE = 5 * 8;
+    private static final int N_IO_BUFFER_SIZE = 1024 * 1024;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // an empty slot; a path that hashes to 0 uses 1 instead
+    private static final long N_EMPTY = 0;
+
+    private long[] m_anKey;
+    private long[] m_anLength;
+    private long[] m_anMtime;
+    private long[] m_anMD5;     // two longs per entry
+    private int m_nSize = 0;
+    private boolean m_bChanged = false;
+
+    // ------------------------------------------------------------
+
+    BackupManifest()
+    {
+        allocate(1 << 16);
+    }
+
+    // ------------------------------------------------------------
+
+    /** hash key of an hdfs path
+     */
+    static long key(String sPath)
+    {
+        // 64-bit FNV-1a over the UTF-8 bytes
+        long h = 0xcbf29ce484222325L;
+        for (byte b : sPath.getBytes(UTF8))
+        {
+            h ^= (b & 0xff);
+            h *= 0x100000001b3L;
+        }
+
+        return (h == N_EMPTY) ? 1 : h;
+    }
+
+    // ------------------------------------------------------------
+
+    /** a copy of one file's record, so it stays consistent while
+     * other threads put()
+     */
+    static final class Entry
+    {
+        final long m_nLength;
+        final long m_nMtime;
+        final byte[] m_abMD5;   // the MD5 of the file's checksum, 16 bytes
+
+        Entry(long nLength, long nMtime, byte[] abMD5)
+        {
+            m_nLength = nLength;
+            m_nMtime = nMtime;
+            m_abMD5 = abMD5;
+        }
+    }
+
+    // ------------------------------------------------------------
+
+    /** returns the record of key nKey, or null if it is not there
+     */
+    synchronized Entry get(long nKey)
+    {
+        int i = slot(nKey);
+        if (m_anKey[i] != nKey)
+        {
+            return null;
+        }
+
+        byte[] ab = new byte[16];
+        ByteBuffer.wrap(ab).putLong(m_anMD5[2 * i]).putLong(m_anMD5[2 * i + 1]);
+        return new Entry(m_anLength[i], m_anMtime[i], ab);
+    }
+
+    // ------------------------------------------------------------
+
+    /** records a backed up file.  abMD5 is the 16-byte MD5 of its
+     * checksum.
+     */
+    synchronized void put(long nKey, long nLength, long nMtime, byte[] abMD5)
+    {
+        // keep the load under 3/4
+        if (4L * (m_nSize + 1) > 3L * m_anKey.length)
+        {
+            rehash(m_anKey.length * 2);
+        }
+
+        int i = slot(nKey);
+        if (m_anKey[i] == N_EMPTY)
+        {
+            m_anKey[i] = nKey;
+            m_nSize++;
+        }
+
+        ByteBuffer buf = ByteBuffer.wrap(abMD5);
+        m_anLength[i] = nLength;
+        m_anMtime[i] = nMtime;
+        m_anMD5[2 * i] = buf.getLong();
+        m_anMD5[2 * i + 1] = buf.getLong();
+        m_bChanged = true;
+    }
+
+    // ------------------------------------------------------------
+
+    /** number of files in the manifest
+     */
+    synchronized int size()
+    {
+        return m_nSize;
+    }
+
+    // ------------------------------------------------------------
+
+    /** reads a manifest file
+     */
+    static BackupManifest load(String sFilename)
+        throws IOException
+    {
+        BackupManifest manifest = new BackupManifest();
+        FileInputStream in = null;
+
+        try
+        {
+            in = new FileInputStream(sFilename);
+            FileChannel ch = in.getChannel();
+            ByteBuffer buf = ByteBuffer.allocateDirect(N_IO_BUFFER_SIZE);
+            buf.limit(0);
+
+            fill(ch, buf, 16);
+            if (buf.getInt() != N_MAGIC)
+            {
+                throw new IOException(sFilename + " is not a backup manifest");
+            }
+            buf.getInt();       // reserved
+            long nCount = buf.getLong();
+
+            int nCapacity = 1 << 16;
+            while (4L * nCount > 3L * nCapacity)
+            {
+                nCapacity *= 2;
+            }
+            manifest.allocate(nCapacity);
+
+            byte[] abMD5 = new byte[16];
+            for (long n = 0; n < nCount; n++)
+            {
+                if (buf.remaining() < N_RECORD_SIZE)
+                {
+                    fill(ch, buf, N_RECORD_SIZE);
+                }
+
+                long nKey = buf.getLong();
+                long nLength = buf.getLong();
+                long nMtime = buf.getLong();
+                buf.get(abMD5);
+
+                manifest.put(nKey, nLength, nMtime, abMD5);
+            }
+        }
+        finally
+        {
+            try { in.close(); } catch (Exception e2) {}
+        }
+
+        manifest.m_bChanged = false;
+        return manifest;
+    }
+
+    // ------------------------------------------------------------
+
+    /** writes the manifest to sFilename, if anything changed since
+     * it was loaded or saved
+     */
+    synchronized void save(String sFilename)
+        throws IOException
+    {
+        if (! m_bChanged)
+        {
+            return;
+        }
+
+        File tmp = new File(sFilename + ".tmp");
+        FileOutputStream out = null;
+
+        try
+        {
+            out = new FileOutputStream(tmp);
+            FileChannel ch = out.getChannel();
+            ByteBuffer buf = ByteBuffer.allocateDirect(N_IO_BUFFER_SIZE);
+
+            buf.putInt(N_MAGIC);
+            buf.putInt(0);
+            buf.putLong(m_nSize);
+
+            for (int i = 0; i < m_anKey.length; i++)
+            {
+                if (m_anKey[i] == N_EMPTY)
+                {
+                    continue;
+                }
+
+                if (buf.remaining() < N_RECORD_SIZE)
+                {
+                    drain(ch, buf);
+                }
+
+                buf.putLong(m_anKey[i]);
+                buf.putLong(m_anLength[i]);
+                buf.putLong(m_anMtime[i]);
+                buf.putLong(m_anMD5[2 * i]);
+                buf.putLong(m_anMD5[2 * i + 1]);
+            }
+
+            drain(ch, buf);
+            ch.force(true);
+            out.close();
+            out = null;
+        }
+        finally
+        {
+            try { out.close(); } catch (Exception e2) {}
+        }
+
+        if (! tmp.renameTo(new File(sFilename)))
+        {
+            throw new IOException("can't rename " + tmp + " to " + sFilename);
+        }
+
+        m_bChanged = false;
+    }
+
+    // ------------------------------------------------------------
+
+    /** returns the slot holding nKey, or the empty slot where it
+     * would go
+     */
+    private int slot(long nKey)
+    {
+        int nMask = m_anKey.length - 1;
+
+        // spread the hash bits before masking
+        long h = nKey;
+        h ^= (h >>> 33);
+        h *= 0xff51afd7ed558ccdL;
+        h ^= (h >>> 33);
+
+        int i = (int) h & nMask;
+        while (m_anKey[i] != N_EMPTY && m_anKey[i] != nKey)
+        {
+            i = (i + 1) & nMask;
+        }
+
+        return i;
+    }
+
+    // ------------------------------------------------------------
+
+    private void allocate(int nCapacity)
+    {
+        m_anKey = new long[nCapacity];
+        m_anLength = new long[nCapacity];
+        m_anMtime = new long[nCapacity];
+        m_anMD5 = new long[2 * nCapacity];
+        m_nSize = 0;
+    }
+
+    // ------------------------------------------------------------
+
+    private void rehash(int nCapacity)
+    {
+        long[] anKey = m_anKey;
+        long[] anLength = m_anLength;
+        long[] anMtime = m_anMtime;
+        long[] anMD5 = m_anMD5;
+
+        allocate(nCapacity);
+
+        for (int j = 0; j < anKey.length; j++)
+        {
+            if (anKey[j] == N_EMPTY)
+            {
+                continue;
+            }
+
+            int i = slot(anKey[j]);
+            m_anKey[i] = anKey[j];
+            m_anLength[i] = anLength[j];
+            m_anMtime[i] = anMtime[j];
+            m_anMD5[2 * i] = anMD5[2 * j];
+            m_anMD5[2 * i + 1] = anMD5[2 * j + 1];
+            m_nSize++;
+        }
+    }
+
+    // ------------------------------------------------------------
+
+    /** reads from ch until buf has at least nNeeded bytes left to get
+     */
+    private static void fill(FileChannel ch, ByteBuffer buf, int nNeeded)
+        throws IOException
+    {
+        buf.compact();
+        while (buf.position() < nNeeded)
+        {
+            if (ch.read(buf) < 0)
+            {
+                throw new EOFException("backup manifest is truncated");
+            }
+        }
+        buf.flip();
+    }
+
+    // ------------------------------------------------------------
+
+    private static void drain(FileChannel ch, ByteBuffer buf)
+        throws IOException
+    {
+        buf.flip();
+        while (buf.hasRemaining())
+        {
+            ch.write(buf);
+        }
+        buf.clear();
+    }
+}
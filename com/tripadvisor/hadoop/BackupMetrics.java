@@ -0,0 +1,555 @@
+/*
+  Copyright 2012 TripAdvisor, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.tripadvisor.hadoop;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.*;
+
+import org.apache.hadoop.fs.ContentSummary;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileChecksum;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FilterFileSystem;
+import org.apache.hadoop.fs.Path;
+
+/** helper class.  counters and latency histograms of a run, for
+ * monitoring.  They are kept for the whole process and published two
+ * ways: as a JMX bean com.tripadvisor.hadoop:type=TOOL, and, if a file
+ * is given, as Prometheus text written every interval, for the node
+ * exporter's textfile collector to pick up.
+ *
+ * Counters and histograms are created on first use, so the tools just
+ * count under a name.  Histograms are in seconds, with fixed buckets
+ * from a millisecond to five minutes, optionally split by an op label;
+ * namenode calls go through a MeteredFileSystem to be timed by method.
+ *
+ * The copy throughput is sampled every N_SAMPLE_MILLIS from the
+ * bytes_copied counter.  The text file is written one last time on
+ * exit, so it has the final counts even for a run that failed.
+ *
+ * All methods are thread-safe.
+ */
+final class BackupMetrics implements DynamicMBean
+{
+    static final String S_PREFIX = "hdfs_backup_";
+
+    // the histogram of namenode calls, by method
+    static final String S_RPC = "namenode_rpc_seconds";
+
+    static final long N_SAMPLE_MILLIS = 5 * 1000;
+    static final long N_DEFAULT_INTERVAL = 60 * 1000;
+
+    // histogram bucket upper bounds, in seconds
+    static final double[] AD_BUCKETS = {
+        0.001, 0.005, 0.01, 0.05, 0.1, 0.5, 1, 5, 10, 60, 300
+    };
+
+    private static final BackupMetrics g_metrics = new BackupMetrics();
+
+    private final ConcurrentMap<String, AtomicLong> m_hmCounters
+        = new ConcurrentHashMap<String, AtomicLong>();
+    private final ConcurrentMap<String, Histogram> m_hmHistograms
+        = new ConcurrentHashMap<String, Histogram>();
+
+    private final long m_nStartTime = System.currentTimeMillis();
+
+    private String m_sTool = "";
+    private String m_sTextFile = null;
+    private long m_nInterval = N_DEFAULT_INTERVAL;
+
+    // the last throughput sample
+    private long m_nLastSample = m_nStartTime;
+    private long m_nLastBytes = 0;
+    private volatile double m_dBytesPerSec = 0;
+
+    /** a latency histogram, for one name and op
+     */
+    static final class Histogram
+    {
+        final String m_sName;
+        final String m_sOp;
+
+        // the last one is over the highest bound
+        final AtomicLongArray m_anBuckets = new AtomicLongArray(AD_BUCKETS.length + 1);
+        final AtomicLong m_nCount = new AtomicLong();
+        final AtomicLong m_nSumNanos = new AtomicLong();
+
+        Histogram(String sName, String sOp)
+        {
+            m_sName = sName;
+            m_sOp = sOp;
+        }
+
+        void observe(long nNanos)
+        {
+            double dSeconds = nNanos / 1e9;
+            int i = 0;
+            while (i < AD_BUCKETS.length && dSeconds > AD_BUCKETS[i])
+            {
+                i++;
+            }
+
+            m_anBuckets.incrementAndGet(i);
+            m_nCount.incrementAndGet();
+            m_nSumNanos.addAndGet(nNanos);
+        }
+    }
+
+    /** a FileSystem that times the namenode calls the tools make
+     * into the S_RPC histogram.  Snapshot calls are made by
+     * reflection on the real class, so HdfsSnapshots gets the
+     * unwrapped one.
+     */
+    static final class MeteredFileSystem extends FilterFileSystem
+    {
+        MeteredFileSystem(FileSystem fs)
+        {
+            super(fs);
+        }
+
+        public FileStatus[] listStatus(Path f)
+            throws IOException
+        {
+            long nStart = System.nanoTime();
+            try
+            {
+                return fs.listStatus(f);
+            }
+            finally
+            {
+                observe(S_RPC, "listStatus", nStart);
+            }
+        }
+
+        public FileStatus getFileStatus(Path f)
+            throws IOException
+        {
+            long nStart = System.nanoTime();
+            try
+            {
+                return fs.getFileStatus(f);
+            }
+            finally
+            {
+                observe(S_RPC, "getFileStatus", nStart);
+            }
+        }
+
+        public ContentSummary getContentSummary(Path f)
+            throws IOException
+        {
+            long nStart = System.nanoTime();
+            try
+            {
+                return fs.getContentSummary(f);
+            }
+            finally
+            {
+                observe(S_RPC, "getContentSummary", nStart);
+            }
+        }
+
+        public FileChecksum getFileChecksum(Path f)
+            throws IOException
+        {
+            long nStart = System.nanoTime();
+            try
+            {
+                return fs.getFileChecksum(f);
+            }
+            finally
+            {
+                observe(S_RPC, "getFileChecksum", nStart);
+            }
+        }
+
+        public FSDataInputStream open(Path f, int nBufferSize)
+            throws IOException
+        {
+            long nStart = System.nanoTime();
+            try
+            {
+                return fs.open(f, nBufferSize);
+            }
+            finally
+            {
+                observe(S_RPC, "open", nStart);
+            }
+        }
+    }
+
+    // ------------------------------------------------------------
+
+    private BackupMetrics()
+    {
+    }
+
+    // ------------------------------------------------------------
+
+    /** adds n to counter sName
+     */
+    static void count(String sName, long n)
+    {
+        g_metrics.counter(sName).addAndGet(n);
+    }
+
+    // ------------------------------------------------------------
+
+    /** records the time since nStartNanos, from System.nanoTime(),
+     * in histogram sName.  sOp is its op label, or null.
+     */
+    static void observe(String sName, String sOp, long nStartNanos)
+    {
+        g_metrics.histogram(sName, sOp).observe(System.nanoTime() - nStartNanos);
+    }
+
+    // ------------------------------------------------------------
+
+    /** returns fs with its namenode calls timed
+     */
+    static FileSystem wrap(FileSystem fs)
+    {
+        return new MeteredFileSystem(fs);
+    }
+
+    // ------------------------------------------------------------
+
+    /** publishes the metrics of tool sTool over JMX, and to text file
+     * sTextFile every nInterval millis if it is not null
+     */
+    static void start(String sTool, String sTextFile, long nInterval)
+    {
+        g_metrics.startPublishing(sTool, sTextFile, nInterval);
+    }
+
+    // ------------------------------------------------------------
+
+    /** returns the current value of every counter, by name
+     */
+    static Map<String, Long> getCounters()
+    {
+        Map<String, Long> hm = new TreeMap<String, Long>();
+        for (Map.Entry<String, AtomicLong> e : g_metrics.m_hmCounters.entrySet())
+        {
+            hm.put(e.getKey(), Long.valueOf(e.getValue().get()));
+        }
+        return hm;
+    }
+
+    // ------------------------------------------------------------
+
+    private AtomicLong counter(String sName)
+    {
+        AtomicLong n = m_hmCounters.get(sName);
+        if (n == null)
+        {
+            AtomicLong nNew = new AtomicLong();
+            n = m_hmCounters.putIfAbsent(sName, nNew);
+            if (n == null)
+            {
+                n = nNew;
+            }
+        }
+        return n;
+    }
+
+    // ------------------------------------------------------------
+
+    private Histogram histogram(String sName, String sOp)
+    {
+        String sKey = (sOp == null) ? sName : sName + "\t" + sOp;
+
+        Histogram h = m_hmHistograms.get(sKey);
+        if (h == null)
+        {
+            Histogram hNew = new Histogram(sName, sOp);
+            h = m_hmHistograms.putIfAbsent(sKey, hNew);
+            if (h == null)
+            {
+                h = hNew;
+            }
+        }
+        return h;
+    }
+
+    // ------------------------------------------------------------
+
+    private synchronized void startPublishing(String sTool, String sTextFile, long nInterval)
+    {
+        m_sTool = sTool;
+        m_sTextFile = sTextFile;
+        m_nInterval = nInterval;
+
+        try
+        {
+            ManagementFactory.getPlatformMBeanServer()
+                .registerMBean(this, new ObjectName("com.tripadvisor.hadoop:type=" + sTool));
+        }
+        catch (Exception e)
+        {
+            System.err.println("WARNING: can't register metrics bean: " + e);
+        }
+
+        Thread t = new Thread("metrics")
+            {
+                public void run()
+                {
+                    long nLastWrite = System.currentTimeMillis();
+                    while (true)
+                    {
+                        try
+                        {
+                            Thread.sleep(Math.min(N_SAMPLE_MILLIS, m_nInterval));
+                        }
+                        catch (InterruptedException e)
+                        {
+                            return;
+                        }
+
+                        sample();
+
+                        long now = System.currentTimeMillis();
+                        if (now - nLastWrite >= m_nInterval)
+                        {
+                            write();
+                            nLastWrite = now;
+                        }
+                    }
+                }
+            };
+        t.setDaemon(true);
+        t.start();
+
+        // the last counts, however the run ends
+        Runtime.getRuntime().addShutdownHook(new Thread("metrics-exit")
+            {
+                public void run()
+                {
+                    sample();
+                    write();
+                }
+            });
+    }
+
+    // ------------------------------------------------------------
+
+    /** updates the copy throughput from the bytes copied since the
+     * last sample
+     */
+    private synchronized void sample()
+    {
+        long now = System.currentTimeMillis();
+        AtomicLong nCopied = m_hmCounters.get("bytes_copied");
+        long nBytes = (nCopied == null) ? 0 : nCopied.get();
+
+        if (now > m_nLastSample)
+        {
+            m_dBytesPerSec = (nBytes - m_nLastBytes) * 1000.0 / (now - m_nLastSample);
+        }
+
+        m_nLastSample = now;
+        m_nLastBytes = nBytes;
+    }
+
+    // ------------------------------------------------------------
+
+    /** writes the text file, if there is one.  It is written to a tmp
+     * file and renamed, so the collector never reads half of it.
+     */
+    private synchronized void write()
+    {
+        if (m_sTextFile == null)
+        {
+            return;
+        }
+
+        File tmp = new File(m_sTextFile + ".tmp");
+        PrintWriter out = null;
+
+        try
+        {
+            out = new PrintWriter(new BufferedWriter(new FileWriter(tmp)));
+            writeText(out);
+            out.close();
+            if (out.checkError())
+            {
+                throw new IOException("can't write " + tmp);
+            }
+            out = null;
+
+            if (! tmp.renameTo(new File(m_sTextFile)))
+            {
+                throw new IOException("can't rename " + tmp + " to " + m_sTextFile);
+            }
+        }
+        catch (IOException e)
+        {
+            System.err.println("WARNING: can't write metrics: " + e);
+        }
+        finally
+        {
+            try { out.close(); } catch (Exception e2) {}
+        }
+    }
+
+    // ------------------------------------------------------------
+
+    /** writes all metrics in the Prometheus text format
+     */
+    void writeText(PrintWriter out)
+    {
+        String sTool = "tool=\"" + m_sTool + "\"";
+
+        for (Map.Entry<String, AtomicLong> e : new TreeMap<String, AtomicLong>(m_hmCounters).entrySet())
+        {
+            String sName = S_PREFIX + e.getKey() + "_total";
+            out.println("# TYPE " + sName + " counter");
+            out.println(sName + "{" + sTool + "} " + e.getValue().get());
+        }
+
+        String sPrevName = null;
+        for (Histogram h : new TreeMap<String, Histogram>(m_hmHistograms).values())
+        {
+            String sName = S_PREFIX + h.m_sName;
+            if (! sName.equals(sPrevName))
+            {
+                out.println("# TYPE " + sName + " histogram");
+                sPrevName = sName;
+            }
+
+            String sLabels = sTool + ((h.m_sOp == null) ? "" : ",op=\"" + h.m_sOp + "\"");
+
+            // the buckets are cumulative
+            long nCount = 0;
+            for (int i = 0; i < AD_BUCKETS.length; i++)
+            {
+                nCount += h.m_anBuckets.get(i);
+                out.println(sName + "_bucket{" + sLabels + ",le=\"" + AD_BUCKETS[i] + "\"} " + nCount);
+            }
+            nCount += h.m_anBuckets.get(AD_BUCKETS.length);
+            out.println(sName + "_bucket{" + sLabels + ",le=\"+Inf\"} " + nCount);
+            out.println(sName + "_sum{" + sLabels + "} " + (h.m_nSumNanos.get() / 1e9));
+            out.println(sName + "_count{" + sLabels + "} " + h.m_nCount.get());
+        }
+
+        out.println("# TYPE " + S_PREFIX + "copy_bytes_per_second gauge");
+        out.println(S_PREFIX + "copy_bytes_per_second{" + sTool + "} " + m_dBytesPerSec);
+        out.println("# TYPE " + S_PREFIX + "start_time_seconds gauge");
+        out.println(S_PREFIX + "start_time_seconds{" + sTool + "} " + (m_nStartTime / 1000));
+    }
+
+    // ------------------------------------------------------------
+
+    /** returns the JMX attributes: the counters, the count and sum of
+     * each histogram, and the throughput
+     */
+    private Map<String, Object> getValues()
+    {
+        Map<String, Object> hm = new TreeMap<String, Object>();
+
+        for (Map.Entry<String, AtomicLong> e : m_hmCounters.entrySet())
+        {
+            hm.put(e.getKey(), Long.valueOf(e.getValue().get()));
+        }
+
+        for (Histogram h : m_hmHistograms.values())
+        {
+            String sName = h.m_sName + ((h.m_sOp == null) ? "" : "_" + h.m_sOp);
+            hm.put(sName + "_count", Long.valueOf(h.m_nCount.get()));
+            hm.put(sName + "_sum", Double.valueOf(h.m_nSumNanos.get() / 1e9));
+        }
+
+        hm.put("copy_bytes_per_second", Double.valueOf(m_dBytesPerSec));
+        return hm;
+    }
+
+    // ------------------------------------------------------------
+
+    public Object getAttribute(String sName)
+        throws AttributeNotFoundException
+    {
+        Object o = getValues().get(sName);
+        if (o == null)
+        {
+            throw new AttributeNotFoundException(sName);
+        }
+        return o;
+    }
+
+    // ------------------------------------------------------------
+
+    public AttributeList getAttributes(String[] asNames)
+    {
+        Map<String, Object> hm = getValues();
+        AttributeList l = new AttributeList();
+        for (String sName : asNames)
+        {
+            if (hm.containsKey(sName))
+            {
+                l.add(new Attribute(sName, hm.get(sName)));
+            }
+        }
+        return l;
+    }
+
+    // ------------------------------------------------------------
+
+    public void setAttribute(Attribute attribute)
+        throws AttributeNotFoundException
+    {
+        throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+    }
+
+    // ------------------------------------------------------------
+
+    public AttributeList setAttributes(AttributeList attributes)
+    {
+        return new AttributeList();
+    }
+
+    // ------------------------------------------------------------
+
+    public Object invoke(String sAction, Object[] aParams, String[] asSignature)
+        throws ReflectionException
+    {
+        throw new ReflectionException(new NoSuchMethodException(sAction));
+    }
+
+    // ------------------------------------------------------------
+
+    public MBeanInfo getMBeanInfo()
+    {
+        List<MBeanAttributeInfo> l = new ArrayList<MBeanAttributeInfo>();
+        for (Map.Entry<String, Object> e : getValues().entrySet())
+        {
+            l.add(new MBeanAttributeInfo(e.getKey(), e.getValue().getClass().getName(),
+                                         e.getKey(), true, false, false));
+        }
+
+        return new MBeanInfo(getClass().getName(), m_sTool + " metrics",
+                             l.toArray(new MBeanAttributeInfo[l.size()]),
+                             null, null, null);
+    }
+}
@@ -0,0 +1,217 @@
+/*
+  Copyright 2012 TripAdvisor, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.tripadvisor.hadoop;
+
+import org.apache.hadoop.fs.*;
+import org.apache.hadoop.io.MD5Hash;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.*;
+
+/** helper class.  copies a large hdfs file one block at a time, with
+ * the blocks in parallel, into a local file preallocated to the full
+ * length.  Each block is read from its own stream, so different
+ * blocks come from different datanodes at once, and written at its
+ * offset in the local file.  The hdfs-style checksum of each block is
+ * computed on the way and the block MD5s are combined in order into
+ * the file checksum.
+ *
+ * The blocks are BackupHdfs.N_BLOCK_SIZE long, the block size the
+ * checksum assumes, which is also the block size of the cluster.
+ *
+ * One pool of block threads is shared by all copy workers.
+ */
+final class BlockCopier
+{
+    static final int N_BUFFER_SIZE = 1024 * 1024;
+
+    private final ExecutorService m_pool;
+    private final long m_nBlockSize;
+    private final Throttle m_throttle;
+
+    // ------------------------------------------------------------
+
+    /** constructor.  nThreads is the number of blocks copied at once
+     * over all files.  The bytes copied count against throttle.
+     */
+    BlockCopier(int nThreads, long nBlockSize, Throttle throttle)
+    {
+        m_nBlockSize = nBlockSize;
+        m_throttle = throttle;
+        m_pool = Executors.newFixedThreadPool(nThreads, new ThreadFactory()
+            {
+                private int m_n = 0;
+
+                public synchronized Thread newThread(Runnable r)
+                {
+                    Thread t = new Thread(r, "block-copy-" + m_n++);
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+    }
+
+    // ------------------------------------------------------------
+
+    /** returns true if a file of nLen bytes is worth copying by
+     * blocks
+     */
+    boolean isLarge(long nLen)
+    {
+        return nLen > m_nBlockSize;
+    }
+
+    // ------------------------------------------------------------
+
+    /** copies nLen bytes of hdfs file src to local file dst, and syncs
+     * it to disk if bSync.  Returns the hdfs-style checksum of the
+     * copy.
+     */
+    MD5MD5CRC32FileChecksum copy(FileSystem fs, Path src, long nLen, File dst, boolean bSync)
+        throws IOException
+    {
+        RandomAccessFile raf = null;
+
+        try
+        {
+            raf = new RandomAccessFile(dst, "rw");
+            raf.setLength(nLen);
+            FileChannel ch = raf.getChannel();
+
+            List<Future<List<MD5Hash>>> lFutures = new ArrayList<Future<List<MD5Hash>>>();
+            for (long nPos = 0; nPos < nLen; nPos += m_nBlockSize)
+            {
+                lFutures.add(m_pool.submit(new BlockTask(fs, src, ch, nPos,
+                                                         Math.min(m_nBlockSize, nLen - nPos))));
+            }
+
+            List<MD5Hash> lBlockMD5s = new ArrayList<MD5Hash>();
+            try
+            {
+                for (Future<List<MD5Hash>> f : lFutures)
+                {
+                    lBlockMD5s.addAll(f.get());
+                }
+            }
+            catch (InterruptedException e)
+            {
+                throw new InterruptedIOException("interrupted copying " + src);
+            }
+            catch (ExecutionException e)
+            {
+                Throwable t = e.getCause();
+                if (t instanceof IOException)
+                {
+                    throw (IOException) t;
+                }
+                throw new IOException("failed to copy " + src + ": " + t);
+            }
+            finally
+            {
+                for (Future<List<MD5Hash>> f : lFutures)
+                {
+                    f.cancel(true);
+                }
+            }
+
+            if (bSync)
+            {
+                ch.force(false);
+            }
+            raf.close();
+            raf = null;
+
+            return HDFSStyleChecksumOutputStream.combine(lBlockMD5s, m_nBlockSize);
+        }
+        finally
+        {
+            try { raf.close(); } catch (Exception e2) {}
+        }
+    }
+
+    // ------------------------------------------------------------
+
+    /** stops the block threads
+     */
+    void shutdown()
+    {
+        m_pool.shutdownNow();
+    }
+
+    // ------------------------------------------------------------
+
+    /** copies one block and returns its MD5
+     */
+    private final class BlockTask implements Callable<List<MD5Hash>>
+    {
+        private final FileSystem m_fs;
+        private final Path m_src;
+        private final FileChannel m_ch;
+        private final long m_nPos;
+        private final long m_nLen;
+
+        BlockTask(FileSystem fs, Path src, FileChannel ch, long nPos, long nLen)
+        {
+            m_fs = fs;
+            m_src = src;
+            m_ch = ch;
+            m_nPos = nPos;
+            m_nLen = nLen;
+        }
+
+        public List<MD5Hash> call()
+            throws IOException
+        {
+            FSDataInputStream in = null;
+            HDFSStyleChecksumOutputStream out = null;
+
+            try
+            {
+                in = m_fs.open(m_src);
+                in.seek(m_nPos);
+
+                out = new HDFSStyleChecksumOutputStream(new ChannelOutputStream(m_ch, m_nPos),
+                                                        m_nBlockSize);
+
+                byte[] ab = new byte[N_BUFFER_SIZE];
+                long nLeft = m_nLen;
+                while (nLeft > 0)
+                {
+                    int n = in.read(ab, 0, (int) Math.min(ab.length, nLeft));
+                    if (n < 0)
+                    {
+                        throw new EOFException("unexpected end of " + m_src
+                                               + " at " + (m_nPos + m_nLen - nLeft));
+                    }
+
+                    m_throttle.acquireBytes(n);
+                    out.write(ab, 0, n);
+                    nLeft -= n;
+                }
+
+                return out.getBlockMD5s();
+            }
+            finally
+            {
+                try { in.close(); } catch (Exception e2) {}
+                try { out.close(); } catch (Exception e2) {}
+            }
+        }
+    }
+}
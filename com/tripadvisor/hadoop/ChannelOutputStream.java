@@ -0,0 +1,109 @@
+/*
+  Copyright 2012 TripAdvisor, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.tripadvisor.hadoop;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/** helper class.  writes to a local file channel from a given offset
+ * on, through a direct buffer taken from a shared pool.  Writes are
+ * positional and never move the channel's own position, so several
+ * of these can share one channel.
+ *
+ * The copy streams of hadoop 1 only read into byte arrays, and the
+ * bytes have to be in an array for the checksum anyway, so every
+ * write is one copy into the direct buffer.  Without the pool the JDK
+ * would make that same copy into a temporary direct buffer of its
+ * own, cached per thread and sized to the largest write.
+ *
+ * close() returns the buffer to the pool.  It does not close the
+ * channel.
+ */
+final class ChannelOutputStream extends OutputStream
+{
+    static final int N_BUFFER_SIZE = 1024 * 1024;
+
+    private static final ConcurrentLinkedQueue<ByteBuffer> s_pool =
+        new ConcurrentLinkedQueue<ByteBuffer>();
+
+    private final FileChannel m_ch;
+    private long m_nPos;
+    private ByteBuffer m_buf;
+
+    // ------------------------------------------------------------
+
+    ChannelOutputStream(FileChannel ch, long nPos)
+    {
+        m_ch = ch;
+        m_nPos = nPos;
+
+        m_buf = s_pool.poll();
+        if (m_buf == null)
+        {
+            m_buf = ByteBuffer.allocateDirect(N_BUFFER_SIZE);
+        }
+    }
+
+    // ------------------------------------------------------------
+
+    public void write(int b)
+        throws IOException
+    {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    // ------------------------------------------------------------
+
+    public void write(byte[] ab, int nOffset, int nLen)
+        throws IOException
+    {
+        if (m_buf == null)
+        {
+            throw new IOException("stream closed");
+        }
+
+        while (nLen > 0)
+        {
+            int n = Math.min(nLen, m_buf.capacity());
+
+            m_buf.clear();
+            m_buf.put(ab, nOffset, n);
+            m_buf.flip();
+
+            while (m_buf.hasRemaining())
+            {
+                m_nPos += m_ch.write(m_buf, m_nPos);
+            }
+
+            nOffset += n;
+            nLen -= n;
+        }
+    }
+
+    // ------------------------------------------------------------
+
+    public void close()
+    {
+        if (m_buf != null)
+        {
+            s_pool.offer(m_buf);
+            m_buf = null;
+        }
+    }
+}
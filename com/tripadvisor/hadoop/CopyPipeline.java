@@ -0,0 +1,464 @@
+/*
+  Copyright 2012 TripAdvisor, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.tripadvisor.hadoop;
+
+import org.apache.hadoop.fs.*;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** helper class.  copies files with a set of copy workers.  In
+ * pipeline mode files are submitted as BackupHdfs.checkDir finds them,
+ * instead of waiting for the whole namespace to be listed and sorted;
+ * otherwise BackupHdfs.backupFilesParallel submits the sorted catalog.
+ * Files go through a bounded queue, and the bytes of the files queued
+ * or being copied are bounded too, so a slow copy stage holds the
+ * submitter back rather than piling up memory or open streams.
+ *
+ * With the backup striped over several disks, every disk has a queue
+ * and workers of its own, and the DiskSet picks the disk of each file
+ * as it is submitted, from the files and bytes queued for each.  A
+ * slow disk then only holds up its own files, until the bound on the
+ * bytes in flight is reached.
+ *
+ * Workers finish files out of order, so the resume timestamp comes
+ * from a Watermark: the oldest mtime of any file that did not get
+ * copied, or 0 if all of them were.
+ */
+final class CopyPipeline
+{
+    static final int N_QUEUE_SIZE = 1000;
+
+    // how often the workers print progress, in millis
+    static final long N_PROGRESS_INTERVAL = 60 * 1000;
+
+    // default bound on the bytes queued or being copied
+    static final long N_DEFAULT_MAX_IN_FLIGHT_BYTES = 4L * 1024 * 1024 * 1024;
+
+    // end-of-scan marker, one per worker
+    private static final FileStatus EOF = new FileStatus();
+
+    private final BackupHdfs m_bak;
+    private final FileSystem m_fs;
+    private final DiskSet m_disks;
+    private final long m_nMaxBytes;
+    private final long m_nMaxInFlightBytes;
+    private final int m_nSleepSeconds;
+
+    // one queue per disk, and its workers
+    private final List<ArrayBlockingQueue<FileStatus>> m_lQueues =
+        new ArrayList<ArrayBlockingQueue<FileStatus>>();
+    private final Thread[] m_workers;
+    private final int[] m_anWorkerDisk;
+    private final Watermark m_watermark = new Watermark();
+
+    // only touched by the scan thread
+    private long m_nAdmittedBytes = 0;
+    private boolean m_bSizeLimitReached = false;
+
+    // set with --deadline; null if there is none.  m_nCopyingBytes
+    // are the bytes of the files the workers are copying.
+    private Deadline m_deadline = null;
+    private final AtomicLong m_nCopyingBytes = new AtomicLong();
+    private volatile boolean m_bDeadlineReached = false;
+
+    // guarded by m_inFlightLock
+    private final Object m_inFlightLock = new Object();
+    private long m_nInFlightBytes = 0;
+    private final long[] m_anQueuedBytes;
+    private final int[] m_anQueuedFiles;
+
+    // total bytes that will be submitted, if known up front
+    private long m_nTotalBytes = 0;
+
+    private long m_nCopiedBytes = 0;
+    private long m_nLastProgress = System.currentTimeMillis();
+    private volatile boolean m_bFailed = false;
+
+    // ------------------------------------------------------------
+
+    /** constructor.  nMaxBytes of 0 means no limit.  At most
+     * nMaxInFlightBytes are queued or being copied at a time, except
+     * that a larger file is let through alone.  Every disk gets
+     * nThreads workers.
+     */
+    CopyPipeline(BackupHdfs bak, FileSystem fs, DiskSet disks,
+                 long nMaxBytes, long nMaxInFlightBytes,
+                 int nThreads, int nSleepSeconds)
+    {
+        m_bak = bak;
+        m_fs = fs;
+        m_disks = disks;
+        m_nMaxBytes = nMaxBytes;
+        m_nMaxInFlightBytes = nMaxInFlightBytes;
+        m_nSleepSeconds = nSleepSeconds;
+
+        int nDisks = disks.size();
+        m_anQueuedBytes = new long[nDisks];
+        m_anQueuedFiles = new int[nDisks];
+
+        m_workers = new Thread[nDisks * nThreads];
+        m_anWorkerDisk = new int[m_workers.length];
+        for (int d = 0; d < nDisks; d++)
+        {
+            m_lQueues.add(new ArrayBlockingQueue<FileStatus>(N_QUEUE_SIZE));
+
+            for (int i = 0; i < nThreads; i++)
+            {
+                int n = d * nThreads + i;
+                m_anWorkerDisk[n] = d;
+                m_workers[n] = new Thread(new Worker(d),
+                                          (nDisks == 1) ? "copy-worker-" + i
+                                          : "copy-worker-" + d + "-" + i);
+            }
+        }
+    }
+
+    // ------------------------------------------------------------
+
+    /** starts the copy workers
+     */
+    void start()
+    {
+        if (m_deadline != null)
+        {
+            m_deadline.start();
+        }
+
+        for (Thread t : m_workers)
+        {
+            t.start();
+        }
+    }
+
+    // ------------------------------------------------------------
+
+    /** sets the total bytes that will be submitted, so progress can
+     * be printed as a percentage
+     */
+    synchronized void setTotalBytes(long nTotalBytes)
+    {
+        m_nTotalBytes = nTotalBytes;
+    }
+
+    // ------------------------------------------------------------
+
+    /** sets the deadline no file may be projected to finish after,
+     * or null for none
+     */
+    void setDeadline(Deadline deadline)
+    {
+        m_deadline = deadline;
+    }
+
+    // ------------------------------------------------------------
+
+    /** hands a file in the date window to the copy workers.  Blocks
+     * while the queue or the in-flight bytes are full.  Called from
+     * one thread only.
+     */
+    void submit(FileStatus stat)
+    {
+        long nMtime = stat.getModificationTime() / 1000;
+
+        // after a failure the scan still runs to the end, so that the
+        // watermark sees every file that was skipped
+        if (m_bFailed)
+        {
+            m_watermark.miss(nMtime);
+            return;
+        }
+
+        if (m_nMaxBytes > 0
+            && (m_bSizeLimitReached
+                || m_nAdmittedBytes + stat.getLen() > m_nMaxBytes))
+        {
+            m_bSizeLimitReached = true;
+            m_watermark.miss(nMtime);
+            return;
+        }
+
+        // the workers turned files away already
+        if (m_bDeadlineReached)
+        {
+            m_watermark.miss(nMtime);
+            return;
+        }
+
+        m_nAdmittedBytes += stat.getLen();
+        m_watermark.begin(nMtime);
+
+        try
+        {
+            acquire(stat.getLen());
+
+            int nDisk;
+            synchronized (m_inFlightLock)
+            {
+                nDisk = m_disks.place(stat.getPath().toUri().getPath(), stat.getLen(),
+                                      m_anQueuedBytes, m_anQueuedFiles);
+                m_anQueuedBytes[nDisk] += stat.getLen();
+                m_anQueuedFiles[nDisk]++;
+            }
+
+            m_lQueues.get(nDisk).put(stat);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            m_watermark.abandon(nMtime);
+        }
+    }
+
+    // ------------------------------------------------------------
+
+    /** waits until nBytes more fit in the in-flight bound
+     */
+    private void acquire(long nBytes)
+        throws InterruptedException
+    {
+        synchronized (m_inFlightLock)
+        {
+            while (m_nInFlightBytes > 0
+                   && m_nInFlightBytes + nBytes > m_nMaxInFlightBytes)
+            {
+                m_inFlightLock.wait();
+            }
+
+            m_nInFlightBytes += nBytes;
+        }
+    }
+
+    // ------------------------------------------------------------
+
+    private void release(int nDisk, long nBytes)
+    {
+        synchronized (m_inFlightLock)
+        {
+            m_nInFlightBytes -= nBytes;
+            m_anQueuedBytes[nDisk] -= nBytes;
+            m_anQueuedFiles[nDisk]--;
+            m_inFlightLock.notifyAll();
+        }
+    }
+
+    // ------------------------------------------------------------
+
+    /** waits for the workers to drain the queue.  Returns the
+     * timestamp the next run should start from, or 0 if every
+     * submitted file got copied.
+     */
+    long finish()
+    {
+        try
+        {
+            for (int i = 0; i < m_workers.length; i++)
+            {
+                m_lQueues.get(m_anWorkerDisk[i]).put(EOF);
+            }
+
+            for (Thread t : m_workers)
+            {
+                t.join();
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+
+        if (m_watermark.isComplete())
+        {
+            return 0;
+        }
+
+        return m_watermark.get(0);
+    }
+
+    // ------------------------------------------------------------
+
+    /** returns true if a copy failed
+     */
+    boolean isFailed()
+    {
+        return m_bFailed;
+    }
+
+    // ------------------------------------------------------------
+
+    /** returns true if files were left out because of --max-bytes
+     */
+    boolean isSizeLimitReached()
+    {
+        return m_bSizeLimitReached;
+    }
+
+    // ------------------------------------------------------------
+
+    /** returns true if the deadline lets a file start copying now.
+     * Files wait in the queue, so this is asked when a worker takes
+     * one, not when it is submitted.
+     */
+    private boolean admit(FileStatus stat)
+    {
+        if (m_deadline == null)
+        {
+            return true;
+        }
+
+        if (! m_bDeadlineReached
+            && m_deadline.allows(stat.getLen(), m_nCopyingBytes.get()))
+        {
+            m_nCopyingBytes.addAndGet(stat.getLen());
+            return true;
+        }
+
+        m_bDeadlineReached = true;
+        return false;
+    }
+
+    // ------------------------------------------------------------
+
+    /** returns true if files were left out because of the deadline
+     */
+    boolean isDeadlineReached()
+    {
+        return m_bDeadlineReached;
+    }
+
+    // ------------------------------------------------------------
+
+    /** prints progress, at most once per interval
+     */
+    private synchronized void copied(FileStatus stat)
+    {
+        m_nCopiedBytes += stat.getLen();
+
+        if (m_deadline != null)
+        {
+            m_deadline.copied(stat.getLen());
+        }
+
+        long now = System.currentTimeMillis();
+        if (now - m_nLastProgress >= N_PROGRESS_INTERVAL)
+        {
+            System.out.println("progress: copied "
+                               + BackupHdfs.prettyPrintBytes(m_nCopiedBytes)
+                               + ((m_nTotalBytes > 0)
+                                  ? ", " + (100 * m_nCopiedBytes / m_nTotalBytes) + "% done"
+                                  : " of " + BackupHdfs.prettyPrintBytes(m_nAdmittedBytes)
+                                  + " found so far")
+                               + ", tstamp=" + m_watermark.get(0));
+
+            m_nLastProgress = now;
+        }
+    }
+
+    // ------------------------------------------------------------
+
+    /** takes files off the queue of its disk and copies them until it
+     * sees EOF
+     */
+    private final class Worker implements Runnable
+    {
+        private final int m_nDisk;
+
+        Worker(int nDisk)
+        {
+            m_nDisk = nDisk;
+        }
+
+        public void run()
+        {
+            while (true)
+            {
+                FileStatus stat;
+                try
+                {
+                    stat = m_lQueues.get(m_nDisk).take();
+                }
+                catch (InterruptedException e)
+                {
+                    return;
+                }
+
+                if (stat == EOF)
+                {
+                    return;
+                }
+
+                long nMtime = stat.getModificationTime() / 1000;
+
+                if (m_bFailed || ! admit(stat))
+                {
+                    release(m_nDisk, stat.getLen());
+                    m_watermark.abandon(nMtime);
+                    continue;
+                }
+
+                try
+                {
+                    m_bak.backupFileRetrying(m_fs, stat, m_disks.getRoot(m_nDisk),
+                                            m_disks.getPreservePath(m_nDisk));
+                    m_bak.recordDone(stat);
+                    m_watermark.finish(nMtime);
+                    copied(stat);
+                }
+                catch (IOException e)
+                {
+                    // a quarantined file keeps the watermark down on
+                    // its own, if it fails again at the end
+                    if (m_bak.quarantine(stat, e))
+                    {
+                        m_watermark.finish(nMtime);
+                        continue;
+                    }
+
+                    System.err.println("FATAL ERROR: Something wrong with the file");
+                    System.err.println(e);
+
+                    m_bFailed = true;
+                    m_watermark.abandon(nMtime);
+                    continue;
+                }
+                finally
+                {
+                    release(m_nDisk, stat.getLen());
+
+                    if (m_deadline != null)
+                    {
+                        m_nCopyingBytes.addAndGet(-stat.getLen());
+                    }
+                }
+
+                if (m_nSleepSeconds > 0)
+                {
+                    try
+                    {
+                        Thread.sleep(1000 * m_nSleepSeconds);
+                    }
+                    catch (Exception e2)
+                    {
+                        // ignore
+                    }
+                }
+            }
+        }
+    }
+}
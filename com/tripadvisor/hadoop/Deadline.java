@@ -0,0 +1,126 @@
+/*
+  Copyright 2012 TripAdvisor, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.tripadvisor.hadoop;
+
+/** helper class.  decides whether a copy can still start before the
+ * end of the run's time window.  The throughput is measured over the
+ * copies finished so far, and a file is let in only if the bytes
+ * already being copied plus the file itself are projected to be done
+ * by the deadline.  Once a file is turned away, no other file starts,
+ * so the files copied are a prefix of the sorted order and the
+ * watermark stays simple.  That needs the files in mtime order, so
+ * BackupHdfs does not take a deadline with --pipeline, where they come
+ * in the order the scan finds them.
+ *
+ * Until N_MIN_SAMPLE_MILLIS of copying have been measured, files are
+ * let in as long as the deadline has not passed.
+ *
+ * All methods are thread-safe.
+ */
+final class Deadline
+{
+    static final long N_MIN_SAMPLE_MILLIS = 10 * 1000;
+
+    private final long m_nDeadline;
+
+    private long m_nStart = 0;
+    private long m_nCopiedBytes = 0;
+    private boolean m_bReached = false;
+
+    // ------------------------------------------------------------
+
+    /** constructor.  nDeadline is in UNIX millis.
+     */
+    Deadline(long nDeadline)
+    {
+        m_nDeadline = nDeadline;
+    }
+
+    // ------------------------------------------------------------
+
+    /** the copying starts now; the time before it, for the scan, does
+     * not count against the throughput
+     */
+    synchronized void start()
+    {
+        if (m_nStart == 0)
+        {
+            m_nStart = System.currentTimeMillis();
+        }
+    }
+
+    // ------------------------------------------------------------
+
+    /** a file of nBytes was copied
+     */
+    synchronized void copied(long nBytes)
+    {
+        m_nCopiedBytes += nBytes;
+    }
+
+    // ------------------------------------------------------------
+
+    /** returns true if a file of nBytes can start now, with
+     * nInFlightBytes being copied already
+     */
+    synchronized boolean allows(long nBytes, long nInFlightBytes)
+    {
+        if (m_bReached)
+        {
+            return false;
+        }
+
+        long now = System.currentTimeMillis();
+        long nElapsed = now - m_nStart;
+
+        long nProjected = now;
+        if (m_nStart != 0 && nElapsed >= N_MIN_SAMPLE_MILLIS && m_nCopiedBytes > 0)
+        {
+            double dBytesPerMilli = (double) m_nCopiedBytes / nElapsed;
+            nProjected += (long) ((nInFlightBytes + nBytes) / dBytesPerMilli);
+        }
+
+        if (nProjected > m_nDeadline)
+        {
+            System.err.println("deadline: not starting more files, projected end "
+                               + new java.util.Date(nProjected) + " is after "
+                               + new java.util.Date(m_nDeadline));
+            m_bReached = true;
+            return false;
+        }
+
+        return true;
+    }
+
+    // ------------------------------------------------------------
+
+    /** returns true if a file was turned away
+     */
+    synchronized boolean isReached()
+    {
+        return m_bReached;
+    }
+
+    // ------------------------------------------------------------
+
+    /** returns true if the deadline has passed
+     */
+    boolean isPast()
+    {
+        return System.currentTimeMillis() >= m_nDeadline;
+    }
+}
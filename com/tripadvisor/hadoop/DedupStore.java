@@ -0,0 +1,158 @@
+/*
+  Copyright 2012 TripAdvisor, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.tripadvisor.hadoop;
+
+import java.io.*;
+import java.nio.file.*;
+
+/** helper class.  content-addressed store of backed up file bodies.
+ * Every distinct content is stored once, named by the MD5 of its
+ * hdfs-style checksum and its length:
+ *
+ *   DIR/ab/cd/abcd...ef-LENGTH
+ *
+ * with ParallelGzip.S_SUFFIX added if the body is stored compressed,
+ * in which case the links carry the suffix too.
+ *
+ * and the files under the local and preserve paths are hardlinks to
+ * it.  A file whose content is already in the store is linked instead
+ * of copied, and preserving it is a rename of one link, so files that
+ * are rewritten with the same content, or copied between tables, take
+ * no extra space.
+ *
+ * The store must be on the same filesystem as the local and preserve
+ * paths.  All links to an object share its mtime, so a linked file
+ * does not get the mtime of its own hdfs file.  Objects whose link
+ * count dropped to 1 are no longer used by any backup, and can be
+ * removed with 'find DIR -type f -links 1 -delete'.
+ */
+final class DedupStore
+{
+    private final File m_dir;
+
+    // ------------------------------------------------------------
+
+    DedupStore(String sDir)
+    {
+        m_dir = new File(sDir);
+    }
+
+    // ------------------------------------------------------------
+
+    /** returns the object file for a content, stored plain or
+     * compressed
+     */
+    File getObject(byte[] abMD5, long nLength, boolean bCompressed)
+    {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : abMD5)
+        {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(b & 0xf, 16));
+        }
+        String sHex = sb.toString();
+
+        return new File(m_dir, sHex.substring(0, 2) + "/" + sHex.substring(2, 4)
+                        + "/" + sHex + "-" + nLength
+                        + (bCompressed ? ParallelGzip.S_SUFFIX : ""));
+    }
+
+    // ------------------------------------------------------------
+
+    /** makes plain name f, or its compressed name if the content is
+     * stored compressed, a link to the stored content.  Returns false
+     * if the store does not have it.
+     */
+    boolean link(byte[] abMD5, long nLength, File f)
+        throws IOException
+    {
+        File obj = getObject(abMD5, nLength, false);
+        File fLink = f;
+        File fOther = ParallelGzip.compressedName(f);
+
+        if (! obj.isFile() || obj.length() != nLength)
+        {
+            obj = getObject(abMD5, nLength, true);
+            fLink = fOther;
+            fOther = f;
+
+            if (! obj.isFile())
+            {
+                return false;
+            }
+        }
+
+        replaceWithLink(obj, fLink);
+
+        if (fOther.exists() && ! fOther.delete())
+        {
+            throw new IOException("Failed to delete " + fOther);
+        }
+        return true;
+    }
+
+    // ------------------------------------------------------------
+
+    /** adds freshly copied file f, plain or compressed, to the store.
+     * If another copy of the same content got there first, f becomes a
+     * link to it.
+     */
+    void add(byte[] abMD5, long nLength, File f)
+        throws IOException
+    {
+        boolean bCompressed = ParallelGzip.isCompressedCopy(f);
+        File obj = getObject(abMD5, nLength, bCompressed);
+
+        File dir = obj.getParentFile();
+        if (! dir.exists() && ! dir.mkdirs() && ! dir.isDirectory())
+        {
+            throw new IOException("Failed to mkdirs " + dir);
+        }
+
+        try
+        {
+            Files.createLink(obj.toPath(), f.toPath());
+        }
+        catch (FileAlreadyExistsException e)
+        {
+            if (bCompressed || obj.length() == nLength)
+            {
+                replaceWithLink(obj, f);
+            }
+        }
+    }
+
+    // ------------------------------------------------------------
+
+    /** atomically replaces f, if it exists, with a link to obj
+     */
+    private static void replaceWithLink(File obj, File f)
+        throws IOException
+    {
+        File dir = f.getParentFile();
+        if (! dir.exists() && ! dir.mkdirs() && ! dir.isDirectory())
+        {
+            throw new IOException("Failed to mkdirs " + dir);
+        }
+
+        Path tmp = new File(dir, "." + f.getName() + ".link-tmp").toPath();
+        Files.deleteIfExists(tmp);
+        Files.createLink(tmp, obj.toPath());
+        Files.move(tmp, f.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                   StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,196 @@
+/*
+  Copyright 2012 TripAdvisor, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.tripadvisor.hadoop;
+
+import org.apache.hadoop.fs.*;
+
+import java.io.*;
+import java.util.concurrent.*;
+
+/** helper class.  lists hdfs directories ahead of the depth-first
+ * walk done by BackupHdfs.checkDir, using a work-stealing pool of
+ * listers.  Each finished listing forks listings of its own
+ * subdirectories, so the pool fans out over the namespace while the
+ * walk consumes the listings in its usual order.  The walk never sees
+ * a different order, so the file list and the mkdirs/chmods output
+ * are the same as with the serial walk.
+ */
+final class DirLister
+{
+    // stop prefetching when this many listings are waiting to be
+    // consumed, so memory stays bounded.  The walk lists anything
+    // that was not prefetched itself.
+    static final int N_MAX_PENDING = 20000;
+
+    private final BackupHdfs m_bak;
+    private final FileSystem m_fs;
+    private final ForkJoinPool m_pool;
+    private final ConcurrentHashMap<Path,ListTask> m_hmPending =
+        new ConcurrentHashMap<Path,ListTask>();
+
+    // ------------------------------------------------------------
+
+    /** constructor.  nThreads is the parallelism of the lister pool.
+     * Listings go through bak.listStatus.
+     */
+    DirLister(BackupHdfs bak, FileSystem fs, int nThreads)
+    {
+        m_bak = bak;
+        m_fs = fs;
+        m_pool = new ForkJoinPool(nThreads);
+    }
+
+    // ------------------------------------------------------------
+
+    /** returns the listing of directory p.  Waits for the listing if
+     * it was prefetched, otherwise lists it in the calling thread.
+     * Either way the subdirectories of p get queued for prefetch.
+     */
+    FileStatus[] listStatus(Path p)
+        throws IOException
+    {
+        ListTask task = m_hmPending.remove(p);
+        if (task == null)
+        {
+            FileStatus[] fStat = m_bak.listStatus(m_fs, p);
+            prefetchChildren(fStat);
+            return fStat;
+        }
+
+        try
+        {
+            return task.get();
+        }
+        catch (InterruptedException e)
+        {
+            throw new InterruptedIOException("interrupted listing " + p);
+        }
+        catch (ExecutionException e)
+        {
+            Throwable t = e.getCause();
+            if (t instanceof ListingException)
+            {
+                throw ((ListingException) t).getCause();
+            }
+            throw new IOException("failed to list " + p, t);
+        }
+    }
+
+    // ------------------------------------------------------------
+
+    /** stops the lister threads.  Pending listings are dropped.
+     */
+    void shutdown()
+    {
+        m_pool.shutdownNow();
+        m_hmPending.clear();
+    }
+
+    // ------------------------------------------------------------
+
+    /** queues a background listing for every subdirectory in fStat
+     * that the walk will descend into.
+     */
+    private void prefetchChildren(FileStatus[] fStat)
+    {
+        if (fStat == null)
+        {
+            return;
+        }
+
+        for (int i = 0; i < fStat.length; i++)
+        {
+            if (! fStat[i].isDir()
+                || BackupHdfs.isIgnoredDir(fStat[i].getPath()))
+            {
+                continue;
+            }
+
+            if (m_hmPending.size() >= N_MAX_PENDING)
+            {
+                return;
+            }
+
+            Path p = fStat[i].getPath();
+            ListTask task = new ListTask(p);
+            if (m_hmPending.putIfAbsent(p, task) == null)
+            {
+                if (ForkJoinTask.inForkJoinPool())
+                {
+                    task.fork();
+                }
+                else
+                {
+                    m_pool.execute(task);
+                }
+            }
+        }
+    }
+
+    // ------------------------------------------------------------
+
+    /** lists one directory, then forks the listings of its
+     * subdirectories onto the same worker's queue, where idle
+     * workers can steal them.
+     */
+    private final class ListTask extends RecursiveTask<FileStatus[]>
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final Path m_path;
+
+        ListTask(Path p)
+        {
+            m_path = p;
+        }
+
+        protected FileStatus[] compute()
+        {
+            FileStatus[] fStat;
+            try
+            {
+                fStat = m_bak.listStatus(m_fs, m_path);
+            }
+            catch (IOException e)
+            {
+                throw new ListingException(e);
+            }
+
+            prefetchChildren(fStat);
+            return fStat;
+        }
+    }
+
+    // ------------------------------------------------------------
+
+    /** carries an IOException out of a ForkJoinTask.
+     */
+    private static final class ListingException extends RuntimeException
+    {
+        private static final long serialVersionUID = 1L;
+
+        ListingException(IOException e)
+        {
+            super(e);
+        }
+
+        public IOException getCause()
+        {
+            return (IOException) super.getCause();
+        }
+    }
+}
@@ -0,0 +1,405 @@
+/*
+  Copyright 2012 TripAdvisor, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.tripadvisor.hadoop;
+
+import java.io.*;
+import java.util.*;
+
+/** helper class.  the local roots of a backup striped over several
+ * disks, each with its own preserve path on the same disk, so old
+ * copies are still preserved by a rename.
+ *
+ * Each file lives under one root.  A new file goes to the disk with
+ * the most free space per file already queued for it, so a disk that
+ * is emptier or drains its queue faster takes more of the files.  A
+ * file keeps its disk from then on, so its next version lands next to
+ * the one it preserves.
+ *
+ * Placements are kept in the placement index: a header, then a 9-byte
+ * record of path key and disk number per file.  Restore and verify
+ * look files up in it, and look under every root for a file it does
+ * not have.  With one root there is nothing to place and no index.
+ *
+ * All methods are thread-safe.
+ */
+final class DiskSet
+{
+    static final String S_INDEX_NAME = ".backup-placement";
+
+    private static final int N_MAGIC = 0x42445331;  // "BDS1"
+
+    // how long a free space reading is used, in millis
+    static final long N_FREE_SPACE_INTERVAL = 1000;
+
+    // an empty slot, as in BackupManifest
+    private static final long N_EMPTY = 0;
+
+    private final String[] m_asRoots;
+    private final String[] m_asPreservePaths;
+    private final String m_sIndexFilename;
+
+    // the placement index, an open-addressing table
+    private long[] m_anKey;
+    private byte[] m_anDisk;
+    private int m_nSize = 0;
+    private boolean m_bChanged = false;
+
+    private final long[] m_anFreeSpace;
+    private long m_nLastFreeSpace = 0;
+
+    // ------------------------------------------------------------
+
+    /** constructor.  asPreservePaths is null for a reader, or pairs
+     * with asRoots.  sIndexFilename null means the default, in the
+     * first root.
+     */
+    DiskSet(String[] asRoots, String[] asPreservePaths, String sIndexFilename)
+        throws IOException
+    {
+        m_asRoots = asRoots;
+        m_asPreservePaths = asPreservePaths;
+        m_sIndexFilename = (sIndexFilename != null)
+            ? sIndexFilename : asRoots[0] + "/" + S_INDEX_NAME;
+        m_anFreeSpace = new long[asRoots.length];
+
+        allocate(1 << 16);
+
+        if (asRoots.length > 1 && new File(m_sIndexFilename).exists())
+        {
+            load();
+            System.err.println("read " + m_nSize + " placements from "
+                               + m_sIndexFilename);
+        }
+    }
+
+    // ------------------------------------------------------------
+
+    /** splits a comma-separated list of paths
+     */
+    static String[] split(String sPaths)
+    {
+        List<String> l = new ArrayList<String>();
+        for (String s : sPaths.split(","))
+        {
+            if (s.length() > 0)
+            {
+                l.add(s);
+            }
+        }
+        return l.toArray(new String[l.size()]);
+    }
+
+    // ------------------------------------------------------------
+
+    int size()
+    {
+        return m_asRoots.length;
+    }
+
+    String getRoot(int nDisk)
+    {
+        return m_asRoots[nDisk];
+    }
+
+    String getPreservePath(int nDisk)
+    {
+        return m_asPreservePaths[nDisk];
+    }
+
+    // ------------------------------------------------------------
+
+    /** returns the disk hdfs file sPath was placed on, or -1
+     */
+    synchronized int get(String sPath)
+    {
+        if (m_asRoots.length == 1)
+        {
+            return 0;
+        }
+
+        int i = slot(BackupManifest.key(sPath));
+        return (m_anKey[i] == N_EMPTY) ? -1 : m_anDisk[i];
+    }
+
+    // ------------------------------------------------------------
+
+    /** returns the disk to read hdfs file sPath from: its placement,
+     * or else the first root with a copy of it, or else the first
+     * root
+     */
+    int find(String sPath)
+    {
+        int nDisk = get(sPath);
+        if (nDisk >= 0)
+        {
+            return nDisk;
+        }
+
+        nDisk = probe(sPath);
+        return (nDisk >= 0) ? nDisk : 0;
+    }
+
+    // ------------------------------------------------------------
+
+    /** returns the disk to write hdfs file sPath of nLen bytes to,
+     * and records it.  anQueuedBytes and anQueuedFiles are the bytes
+     * and files waiting for each disk, or null if none are.
+     */
+    synchronized int place(String sPath, long nLen,
+                           long[] anQueuedBytes, int[] anQueuedFiles)
+    {
+        if (m_asRoots.length == 1)
+        {
+            return 0;
+        }
+
+        int nDisk = get(sPath);
+        if (nDisk >= 0)
+        {
+            return nDisk;
+        }
+
+        // a copy from before the index, or from before disks were
+        // added
+        nDisk = probe(sPath);
+
+        if (nDisk < 0)
+        {
+            refreshFreeSpace();
+
+            double dBest = -1;
+            long nBestAvail = Long.MIN_VALUE;
+            for (int i = 0; i < m_asRoots.length; i++)
+            {
+                long nAvail = m_anFreeSpace[i]
+                    - ((anQueuedBytes == null) ? 0 : anQueuedBytes[i]);
+                int nFiles = (anQueuedFiles == null) ? 0 : anQueuedFiles[i];
+
+                // where it fits, the most space per queued file;
+                // where it doesn't, the most space, and the copy
+                // will say if it is full
+                double dScore = (nAvail < nLen) ? -1 : (double) nAvail / (1 + nFiles);
+                if (dScore > dBest || (dScore == dBest && nAvail > nBestAvail))
+                {
+                    nDisk = i;
+                    dBest = dScore;
+                    nBestAvail = nAvail;
+                }
+            }
+        }
+
+        put(BackupManifest.key(sPath), nDisk);
+        return nDisk;
+    }
+
+    // ------------------------------------------------------------
+
+    /** returns the first disk with a local copy of hdfs file sPath,
+     * or -1
+     */
+    private int probe(String sPath)
+    {
+        for (int i = 0; i < m_asRoots.length; i++)
+        {
+            if (ParallelGzip.findCopy(new File(m_asRoots[i] + sPath)).exists())
+            {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // ------------------------------------------------------------
+
+    private void refreshFreeSpace()
+    {
+        long now = System.currentTimeMillis();
+        if (now - m_nLastFreeSpace < N_FREE_SPACE_INTERVAL)
+        {
+            return;
+        }
+
+        for (int i = 0; i < m_asRoots.length; i++)
+        {
+            m_anFreeSpace[i] = new File(m_asRoots[i]).getUsableSpace();
+        }
+        m_nLastFreeSpace = now;
+    }
+
+    // ------------------------------------------------------------
+
+    private void put(long nKey, int nDisk)
+    {
+        // keep the load under 3/4
+        if (4L * (m_nSize + 1) > 3L * m_anKey.length)
+        {
+            rehash(m_anKey.length * 2);
+        }
+
+        int i = slot(nKey);
+        if (m_anKey[i] == N_EMPTY)
+        {
+            m_anKey[i] = nKey;
+            m_nSize++;
+        }
+
+        m_anDisk[i] = (byte) nDisk;
+        m_bChanged = true;
+    }
+
+    // ------------------------------------------------------------
+
+    private void load()
+        throws IOException
+    {
+        DataInputStream in = null;
+
+        try
+        {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(m_sIndexFilename),
+                                                             1024 * 1024));
+
+            if (in.readInt() != N_MAGIC)
+            {
+                throw new IOException(m_sIndexFilename + " is not a placement index");
+            }
+
+            int nDisks = in.readInt();
+            if (nDisks > m_asRoots.length)
+            {
+                throw new IOException(m_sIndexFilename + " places files on " + nDisks
+                                      + " disks, only " + m_asRoots.length + " given");
+            }
+
+            long nCount = in.readLong();
+            for (long n = 0; n < nCount; n++)
+            {
+                long nKey = in.readLong();
+                put(nKey, in.readByte());
+            }
+        }
+        finally
+        {
+            try { in.close(); } catch (Exception e2) {}
+        }
+
+        m_bChanged = false;
+    }
+
+    // ------------------------------------------------------------
+
+    /** writes the placement index, if anything was placed since it
+     * was loaded or saved.  As with the manifest, a tmp file is
+     * synced and renamed over the old one.
+     */
+    synchronized void save()
+        throws IOException
+    {
+        if (m_asRoots.length == 1 || ! m_bChanged)
+        {
+            return;
+        }
+
+        File tmp = new File(m_sIndexFilename + ".tmp");
+        FileOutputStream fout = null;
+
+        try
+        {
+            fout = new FileOutputStream(tmp);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fout, 1024 * 1024));
+
+            out.writeInt(N_MAGIC);
+            out.writeInt(m_asRoots.length);
+            out.writeLong(m_nSize);
+
+            for (int i = 0; i < m_anKey.length; i++)
+            {
+                if (m_anKey[i] != N_EMPTY)
+                {
+                    out.writeLong(m_anKey[i]);
+                    out.writeByte(m_anDisk[i]);
+                }
+            }
+
+            out.flush();
+            fout.getChannel().force(true);
+            fout.close();
+            fout = null;
+        }
+        finally
+        {
+            try { fout.close(); } catch (Exception e2) {}
+        }
+
+        if (! tmp.renameTo(new File(m_sIndexFilename)))
+        {
+            throw new IOException("can't rename " + tmp + " to " + m_sIndexFilename);
+        }
+
+        m_bChanged = false;
+    }
+
+    // ------------------------------------------------------------
+
+    private int slot(long nKey)
+    {
+        int nMask = m_anKey.length - 1;
+
+        long h = nKey;
+        h ^= (h >>> 33);
+        h *= 0xff51afd7ed558ccdL;
+        h ^= (h >>> 33);
+
+        int i = (int) h & nMask;
+        while (m_anKey[i] != N_EMPTY && m_anKey[i] != nKey)
+        {
+            i = (i + 1) & nMask;
+        }
+
+        return i;
+    }
+
+    // ------------------------------------------------------------
+
+    private void allocate(int nCapacity)
+    {
+        m_anKey = new long[nCapacity];
+        m_anDisk = new byte[nCapacity];
+        m_nSize = 0;
+    }
+
+    // ------------------------------------------------------------
+
+    private void rehash(int nCapacity)
+    {
+        long[] anKey = m_anKey;
+        byte[] anDisk = m_anDisk;
+
+        allocate(nCapacity);
+
+        for (int j = 0; j < anKey.length; j++)
+        {
+            if (anKey[j] != N_EMPTY)
+            {
+                int i = slot(anKey[j]);
+                m_anKey[i] = anKey[j];
+                m_anDisk[i] = anDisk[j];
+                m_nSize++;
+            }
+        }
+    }
+}
@@ -50,6 +50,12 @@ public class DumpDDL extends Configured implements Tool {
             }
         }
 
+        // metrics.file=FILE writes the counts and metastore latencies
+        // in the Prometheus text format, every metrics.interval seconds
+        BackupMetrics.start("DumpDDL", conf.get("metrics.file"),
+                            conf.getLong("metrics.interval",
+                                         BackupMetrics.N_DEFAULT_INTERVAL / 1000) * 1000);
+
         HiveUtil hu  = new HiveUtil();
         System.out.println(hu.dumpDDL(conf.get(DB_NAME, "default"),
                                       conf.get("ignore.tables.filename")));
@@ -0,0 +1,333 @@
+/*
+  Copyright 2012 TripAdvisor, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.tripadvisor.hadoop;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/** helper class.  the event log of a run, one JSON object per line,
+ * for tools to read instead of scraping the console output.  Each
+ * line has the time in UNIX millis, the event type, and the fields of
+ * the event:
+ *
+ *   {"time":1330000000000,"event":"file","path":"/a/b","len":12,...}
+ *
+ * Events are queued and written by a thread of their own through a
+ * large buffer, so the copy workers never wait on the log unless the
+ * queue is full.  The buffer is flushed whenever the queue runs dry.
+ *
+ * The last event is the summary of the run: its status, the
+ * watermark for the next run, and the BackupMetrics counters.  The
+ * summary is also written to a file of its own, one field per line.
+ * A run that exits without a summary gets one with status "aborted".
+ *
+ * All methods are thread-safe.
+ */
+final class EventLog
+{
+    static final int N_QUEUE_SIZE = 64 * 1024;
+
+    // tells the writer to close the file; compared by identity
+    private static final String S_END = new String("end");
+
+    private final String m_sFilename;
+    private final String m_sSummaryFilename;
+    private final String m_sTool;
+    private final long m_nStartTime = System.currentTimeMillis();
+
+    private final BlockingQueue<String> m_queue
+        = new ArrayBlockingQueue<String>(N_QUEUE_SIZE);
+    private final Writer m_out;
+    private final Thread m_writer;
+
+    private volatile boolean m_bClosed = false;
+
+    // ------------------------------------------------------------
+
+    /** constructor.  sFilename is the event log, sSummaryFilename
+     * the summary file or null.
+     */
+    EventLog(String sTool, String sFilename, String sSummaryFilename)
+        throws IOException
+    {
+        m_sTool = sTool;
+        m_sFilename = sFilename;
+        m_sSummaryFilename = sSummaryFilename;
+
+        m_out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(sFilename), "UTF-8"),
+                                   1024 * 1024);
+
+        m_writer = new Thread("event-log")
+            {
+                public void run()
+                {
+                    write();
+                }
+            };
+        m_writer.setDaemon(true);
+        m_writer.start();
+
+        Runtime.getRuntime().addShutdownHook(new Thread("event-log-exit")
+            {
+                public void run()
+                {
+                    finish("aborted", 0);
+                }
+            });
+
+        event("start", "tool", sTool);
+    }
+
+    // ------------------------------------------------------------
+
+    /** logs an event of type sType, with fields given as name and
+     * value pairs.  Values are strings, numbers, booleans, or null.
+     */
+    void event(String sType, Object... aoFields)
+    {
+        if (m_bClosed)
+        {
+            return;
+        }
+
+        StringBuilder sb = new StringBuilder(256);
+        sb.append("{\"time\":").append(System.currentTimeMillis());
+        sb.append(",\"event\":");
+        appendValue(sb, sType);
+
+        for (int i = 0; i + 1 < aoFields.length; i += 2)
+        {
+            sb.append(',');
+            appendValue(sb, aoFields[i]);
+            sb.append(':');
+            appendValue(sb, aoFields[i + 1]);
+        }
+        sb.append('}');
+
+        try
+        {
+            m_queue.put(sb.toString());
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // ------------------------------------------------------------
+
+    /** ends the log with the summary of the run, and writes the
+     * summary file.  nWatermark is the --date of the next run, or 0
+     * if there is none.  Only the first call does anything.
+     */
+    void finish(String sStatus, long nWatermark)
+    {
+        synchronized (this)
+        {
+            if (m_bClosed)
+            {
+                return;
+            }
+
+            Map<String, Object> hm = new LinkedHashMap<String, Object>();
+            hm.put("tool", m_sTool);
+            hm.put("status", sStatus);
+            hm.put("watermark", (nWatermark == 0) ? null : Long.valueOf(nWatermark));
+            hm.put("start_time", Long.valueOf(m_nStartTime));
+            hm.put("end_time", Long.valueOf(System.currentTimeMillis()));
+            hm.put("event_log", m_sFilename);
+            hm.putAll(BackupMetrics.getCounters());
+
+            List<Object> l = new ArrayList<Object>();
+            for (Map.Entry<String, Object> e : hm.entrySet())
+            {
+                l.add(e.getKey());
+                l.add(e.getValue());
+            }
+            event("summary", l.toArray());
+
+            m_bClosed = true;
+
+            if (m_sSummaryFilename != null)
+            {
+                writeSummary(hm);
+            }
+        }
+
+        try
+        {
+            m_queue.put(S_END);
+            m_writer.join();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // ------------------------------------------------------------
+
+    /** the writer thread.  After a write error the events are still
+     * taken off the queue, so nobody blocks on it, and dropped.
+     */
+    private void write()
+    {
+        List<String> l = new ArrayList<String>();
+        boolean bFailed = false;
+
+        while (true)
+        {
+            try
+            {
+                l.add(m_queue.take());
+                m_queue.drainTo(l);
+            }
+            catch (InterruptedException e)
+            {
+                return;
+            }
+
+            try
+            {
+                for (String s : l)
+                {
+                    if (s == S_END)
+                    {
+                        m_out.close();
+                        return;
+                    }
+                    if (! bFailed)
+                    {
+                        m_out.write(s);
+                        m_out.write('\n');
+                    }
+                }
+
+                if (! bFailed && m_queue.isEmpty())
+                {
+                    m_out.flush();
+                }
+            }
+            catch (IOException e)
+            {
+                System.err.println("ERROR: failed to write event log " + m_sFilename + ": " + e);
+                bFailed = true;
+            }
+
+            l.clear();
+        }
+    }
+
+    // ------------------------------------------------------------
+
+    /** writes the summary file, as a tmp file renamed into place
+     */
+    private void writeSummary(Map<String, Object> hm)
+    {
+        File tmp = new File(m_sSummaryFilename + ".tmp");
+        PrintWriter out = null;
+
+        try
+        {
+            out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8"));
+
+            String sSep = "{\n";
+            for (Map.Entry<String, Object> e : hm.entrySet())
+            {
+                StringBuilder sb = new StringBuilder(sSep).append("  ");
+                appendValue(sb, e.getKey());
+                sb.append(": ");
+                appendValue(sb, e.getValue());
+                out.print(sb);
+                sSep = ",\n";
+            }
+            out.println("\n}");
+
+            out.close();
+            if (out.checkError())
+            {
+                throw new IOException("can't write " + tmp);
+            }
+            out = null;
+
+            if (! tmp.renameTo(new File(m_sSummaryFilename)))
+            {
+                throw new IOException("can't rename " + tmp + " to " + m_sSummaryFilename);
+            }
+        }
+        catch (IOException e)
+        {
+            System.err.println("ERROR: failed to write run summary: " + e);
+        }
+        finally
+        {
+            try { out.close(); } catch (Exception e2) {}
+        }
+    }
+
+    // ------------------------------------------------------------
+
+    /** appends o as a JSON value
+     */
+    static void appendValue(StringBuilder sb, Object o)
+    {
+        if (o == null)
+        {
+            sb.append("null");
+            return;
+        }
+        if (o instanceof Number || o instanceof Boolean)
+        {
+            sb.append(o);
+            return;
+        }
+
+        String s = o.toString();
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++)
+        {
+            char c = s.charAt(i);
+            switch (c)
+            {
+            case '"':
+                sb.append("\\\"");
+                break;
+            case '\\':
+                sb.append("\\\\");
+                break;
+            case '\n':
+                sb.append("\\n");
+                break;
+            case '\t':
+                sb.append("\\t");
+                break;
+            default:
+                if (c < 0x20)
+                {
+                    sb.append(String.format("\\u%04x", (int) c));
+                }
+                else
+                {
+                    sb.append(c);
+                }
+            }
+        }
+        sb.append('"');
+    }
+}
@@ -0,0 +1,308 @@
+/*
+  Copyright 2012 TripAdvisor, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.tripadvisor.hadoop;
+
+import org.apache.hadoop.fs.*;
+import org.apache.hadoop.fs.permission.FsPermission;
+
+import java.nio.charset.Charset;
+import java.util.*;
+
+/** helper class.  compact, column-oriented list of the files found by
+ * the scan.  Holding tens of millions of FileStatus objects (each
+ * with its own Path, URI and strings) takes many GB of heap, so the
+ * catalog keeps every field in a primitive array instead:
+ *
+ * - the parent directory is an index into a dictionary of directory
+ *   paths, which siblings share
+ * - the file name is UTF-8 bytes in large shared byte pages
+ * - owner and group are indexes into a string dictionary
+ * - mtime, length, block size, replication and permission are plain
+ *   long/short arrays
+ *
+ * A FileStatus is only built again when a file is handed to the copy
+ * stage.  sort() orders the files by mtime (to the second) with a
+ * primitive sort, keeping insertion order for equal mtimes.
+ */
+final class FileCatalog
+{
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // sort keys pack the index into the low bits of a long
+    private static final int N_INDEX_BITS = 30;
+    static final int N_MAX_FILES = 1 << N_INDEX_BITS;
+
+    // file names are packed into pages of this size; a name never
+    // spans two pages
+    private static final int N_PAGE_SIZE = 1 << 20;
+
+    // a name reference is its global offset above its length
+    private static final int N_NAME_LEN_BITS = 16;
+
+    private final ArrayList<Path> m_lDirs = new ArrayList<Path>();
+    private final HashMap<Path,Integer> m_hmDirs = new HashMap<Path,Integer>();
+    private Path m_lastDir = null;
+    private int m_nLastDir = -1;
+
+    private final ArrayList<String> m_lNames = new ArrayList<String>();
+    private final HashMap<String,Integer> m_hmNames = new HashMap<String,Integer>();
+
+    private int m_nSize = 0;
+    private int[] m_anDir;
+    private long[] m_anName;
+    private final ArrayList<byte[]> m_lPages = new ArrayList<byte[]>();
+    private int m_nPagePos = N_PAGE_SIZE;
+    private long[] m_anMtime;
+    private long[] m_anLength;
+    private long[] m_anBlockSize;
+    private short[] m_anReplication;
+    private short[] m_anPermission;
+    private int[] m_anOwner;
+    private int[] m_anGroup;
+
+    // file indexes in sorted order, null until sort() is called
+    private int[] m_anOrder = null;
+
+    // ------------------------------------------------------------
+
+    FileCatalog()
+    {
+        this(2000);
+    }
+
+    FileCatalog(int nCapacity)
+    {
+        nCapacity = Math.max(nCapacity, 16);
+
+        m_anDir = new int[nCapacity];
+        m_anName = new long[nCapacity];
+        m_anMtime = new long[nCapacity];
+        m_anLength = new long[nCapacity];
+        m_anBlockSize = new long[nCapacity];
+        m_anReplication = new short[nCapacity];
+        m_anPermission = new short[nCapacity];
+        m_anOwner = new int[nCapacity];
+        m_anGroup = new int[nCapacity];
+    }
+
+    // ------------------------------------------------------------
+
+    /** adds a file.  Any earlier sort() order is dropped.
+     */
+    void add(FileStatus stat)
+    {
+        if (m_nSize >= N_MAX_FILES)
+        {
+            throw new IllegalStateException("file catalog is full at "
+                                            + m_nSize + " files");
+        }
+
+        if (m_nSize == m_anDir.length)
+        {
+            grow();
+        }
+
+        Path p = stat.getPath();
+
+        int i = m_nSize;
+        m_anDir[i] = dirIndex(p.getParent());
+        m_anName[i] = addName(p.getName());
+        m_anMtime[i] = stat.getModificationTime();
+        m_anLength[i] = stat.getLen();
+        m_anBlockSize[i] = stat.getBlockSize();
+        m_anReplication[i] = stat.getReplication();
+        m_anPermission[i] = stat.getPermission().toShort();
+        m_anOwner[i] = nameIndex(stat.getOwner());
+        m_anGroup[i] = nameIndex(stat.getGroup());
+
+        m_nSize++;
+        m_anOrder = null;
+    }
+
+    // ------------------------------------------------------------
+
+    /** number of files in the catalog
+     */
+    int size()
+    {
+        return m_nSize;
+    }
+
+    // ------------------------------------------------------------
+
+    /** orders the files by modification time, to the second.  Files
+     * with the same second stay in the order they were added.
+     */
+    void sort()
+    {
+        // key = mtime in seconds above the insertion index, so a
+        // plain primitive sort gives a stable mtime order
+        long[] anKeys = new long[m_nSize];
+        for (int i = 0; i < m_nSize; i++)
+        {
+            anKeys[i] = ((m_anMtime[i] / 1000) << N_INDEX_BITS) | i;
+        }
+
+        Arrays.sort(anKeys);
+
+        int[] anOrder = new int[m_nSize];
+        long nMask = (1L << N_INDEX_BITS) - 1;
+        for (int i = 0; i < m_nSize; i++)
+        {
+            anOrder[i] = (int) (anKeys[i] & nMask);
+        }
+
+        m_anOrder = anOrder;
+    }
+
+    // ------------------------------------------------------------
+
+    /** modification time in millis of the i-th file, in sorted order
+     * if the catalog has been sorted
+     */
+    long getModificationTime(int i)
+    {
+        return m_anMtime[index(i)];
+    }
+
+    // ------------------------------------------------------------
+
+    /** length of the i-th file, in sorted order if the catalog has
+     * been sorted
+     */
+    long getLen(int i)
+    {
+        return m_anLength[index(i)];
+    }
+
+    // ------------------------------------------------------------
+
+    /** rebuilds the FileStatus of the i-th file, in sorted order if
+     * the catalog has been sorted
+     */
+    FileStatus get(int i)
+    {
+        int n = index(i);
+
+        long nRef = m_anName[n];
+        long nOffset = nRef >>> N_NAME_LEN_BITS;
+        int nLen = (int) (nRef & ((1 << N_NAME_LEN_BITS) - 1));
+        String sName = new String(m_lPages.get((int) (nOffset / N_PAGE_SIZE)),
+                                  (int) (nOffset % N_PAGE_SIZE), nLen, UTF8);
+
+        return new FileStatus(m_anLength[n], false, m_anReplication[n],
+                              m_anBlockSize[n], m_anMtime[n], 0,
+                              new FsPermission(m_anPermission[n]),
+                              m_lNames.get(m_anOwner[n]),
+                              m_lNames.get(m_anGroup[n]),
+                              new Path(m_lDirs.get(m_anDir[n]), sName));
+    }
+
+    // ------------------------------------------------------------
+
+    private int index(int i)
+    {
+        return (m_anOrder == null) ? i : m_anOrder[i];
+    }
+
+    // ------------------------------------------------------------
+
+    /** copies a file name into the name pages and returns its
+     * reference
+     */
+    private long addName(String sName)
+    {
+        byte[] ab = sName.getBytes(UTF8);
+        if (ab.length >= (1 << N_NAME_LEN_BITS))
+        {
+            throw new IllegalArgumentException("file name too long: " + sName);
+        }
+
+        if (m_nPagePos + ab.length > N_PAGE_SIZE)
+        {
+            m_lPages.add(new byte[N_PAGE_SIZE]);
+            m_nPagePos = 0;
+        }
+
+        long nOffset = (long) (m_lPages.size() - 1) * N_PAGE_SIZE + m_nPagePos;
+        System.arraycopy(ab, 0, m_lPages.get(m_lPages.size() - 1), m_nPagePos, ab.length);
+        m_nPagePos += ab.length;
+
+        return (nOffset << N_NAME_LEN_BITS) | ab.length;
+    }
+
+    // ------------------------------------------------------------
+
+    /** returns the dictionary index of a directory.  Files arrive
+     * grouped by directory during a scan, so the last one is checked
+     * first.
+     */
+    private int dirIndex(Path dir)
+    {
+        if (dir.equals(m_lastDir))
+        {
+            return m_nLastDir;
+        }
+
+        Integer n = m_hmDirs.get(dir);
+        if (n == null)
+        {
+            n = m_lDirs.size();
+            m_lDirs.add(dir);
+            m_hmDirs.put(dir, n);
+        }
+
+        m_lastDir = dir;
+        m_nLastDir = n;
+        return n;
+    }
+
+    // ------------------------------------------------------------
+
+    /** returns the dictionary index of an owner or group name
+     */
+    private int nameIndex(String s)
+    {
+        Integer n = m_hmNames.get(s);
+        if (n == null)
+        {
+            n = m_lNames.size();
+            m_lNames.add(s);
+            m_hmNames.put(s, n);
+        }
+
+        return n;
+    }
+
+    // ------------------------------------------------------------
+
+    private void grow()
+    {
+        int n = m_anDir.length;
+        n = (int) Math.min((long) N_MAX_FILES, n + (n >> 1) + 1L);
+
+        m_anDir = Arrays.copyOf(m_anDir, n);
+        m_anName = Arrays.copyOf(m_anName, n);
+        m_anMtime = Arrays.copyOf(m_anMtime, n);
+        m_anLength = Arrays.copyOf(m_anLength, n);
+        m_anBlockSize = Arrays.copyOf(m_anBlockSize, n);
+        m_anReplication = Arrays.copyOf(m_anReplication, n);
+        m_anPermission = Arrays.copyOf(m_anPermission, n);
+        m_anOwner = Arrays.copyOf(m_anOwner, n);
+        m_anGroup = Arrays.copyOf(m_anGroup, n);
+    }
+}
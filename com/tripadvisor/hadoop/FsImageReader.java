@@ -0,0 +1,256 @@
+/*
+  Copyright 2012 TripAdvisor, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.tripadvisor.hadoop;
+
+import org.apache.hadoop.fs.*;
+import org.apache.hadoop.fs.permission.FsPermission;
+
+import java.io.*;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.regex.*;
+
+/** helper class.  finds the files to back up from a locally
+ * downloaded fsimage instead of listing the live namespace, so the
+ * nightly scan puts no load on the namenode.  The input is the
+ * Delimited output of the offline image viewer:
+ *
+ *   hadoop oiv -p Delimited -i fsimage -o fsimage.txt
+ *
+ * which has one inode per line with its full path:
+ *
+ *   Path Replication ModificationTime AccessTime BlockSize NumBlocks
+ *   NumBytes NSQuota DSQuota Permission UserName GroupName
+ *
+ * The file is read one line at a time, so its size does not matter.
+ * Every line goes through the same rules as BackupHdfs.checkDir:
+ * ignored directories, ignored files and tables, the date window, and
+ * the mkdirs/chmods output.
+ *
+ * The viewer prints times to the minute only, in the local timezone
+ * of the host that ran it.  BackupHdfs widens the date window by a
+ * minute for image entries, then fetches the exact status of just
+ * the files that pass it.
+ */
+final class FsImageReader
+{
+    // fields after the path, which may itself contain the delimiter
+    private static final int N_FIELDS_AFTER_PATH = 11;
+
+    private final String m_sFilename;
+    private final String m_sDelimiter;
+    private final Pattern m_pDelimiter;
+    private final SimpleDateFormat m_dateFormat =
+        new SimpleDateFormat("yyyy-MM-dd HH:mm");
+
+    // cache of the last parent directory checked against the ignore
+    // rules; lines come grouped by directory
+    private String m_sLastParent = null;
+    private boolean m_bLastParentIgnored = false;
+
+    private long m_nLines = 0;
+    private long m_nBadLines = 0;
+
+    // ------------------------------------------------------------
+
+    /** constructor.  sDelimiter is the field delimiter the image was
+     * dumped with, a tab by default.
+     */
+    FsImageReader(String sFilename, String sDelimiter)
+    {
+        m_sFilename = sFilename;
+        m_sDelimiter = sDelimiter;
+        m_pDelimiter = Pattern.compile(Pattern.quote(sDelimiter));
+    }
+
+    // ------------------------------------------------------------
+
+    /** reads the image and feeds every directory and file under
+     * baseDir to bak.recordDir / bak.checkFile.
+     */
+    void scan(BackupHdfs bak, FileSystem fs, long minDate, long maxDate,
+              Path baseDir, FileCatalog catalog)
+        throws IOException
+    {
+        String sBase = baseDir.toUri().getPath();
+        if (sBase.length() > 1 && sBase.endsWith("/"))
+        {
+            sBase = sBase.substring(0, sBase.length() - 1);
+        }
+
+        BufferedReader in = null;
+
+        try
+        {
+            in = new BufferedReader(new FileReader(m_sFilename), 1024 * 1024);
+
+            String sLine;
+            while ((sLine = in.readLine()) != null)
+            {
+                m_nLines++;
+
+                FileStatus stat = parse(fs, sLine);
+                if (stat == null)
+                {
+                    continue;
+                }
+
+                String sPath = stat.getPath().toUri().getPath();
+                if (! BackupHdfs.isUnder(sPath, sBase)
+                    || isInIgnoredDir(sPath, sBase))
+                {
+                    continue;
+                }
+
+                if (stat.isDir())
+                {
+                    if (! BackupHdfs.isIgnoredDir(stat.getPath()))
+                    {
+                        bak.recordDir(stat);
+                    }
+                }
+                else
+                {
+                    // a file the scan can't look at is skipped, as
+                    // when listing
+                    try
+                    {
+                        bak.checkFile(fs, minDate, maxDate, stat, catalog);
+                    }
+                    catch (IOException e)
+                    {
+                        bak.scanError(stat.getPath(), e);
+                    }
+                }
+            }
+        }
+        finally
+        {
+            try { in.close(); } catch (Exception e2) {}
+        }
+
+        System.err.println("read " + m_nLines + " lines from fsimage "
+                           + m_sFilename
+                           + ((m_nBadLines > 0) ? ", " + m_nBadLines + " unparsable" : ""));
+    }
+
+    // ------------------------------------------------------------
+
+    /** turns one line of the dump into a FileStatus, or returns null
+     * for a header or unparsable line
+     */
+    FileStatus parse(FileSystem fs, String sLine)
+    {
+        String[] as = m_pDelimiter.split(sLine, -1);
+        if (as.length < N_FIELDS_AFTER_PATH + 1)
+        {
+            m_nBadLines++;
+            return null;
+        }
+
+        // the path is everything before the fixed fields
+        int nPathFields = as.length - N_FIELDS_AFTER_PATH;
+        StringBuilder sb = new StringBuilder(as[0]);
+        for (int i = 1; i < nPathFields; i++)
+        {
+            sb.append(m_sDelimiter).append(as[i]);
+        }
+        String sPath = sb.toString();
+
+        int n = nPathFields;
+        String sReplication = as[n++];
+        String sMtime = as[n++];
+        n++;                    // access time
+        String sBlockSize = as[n++];
+        n++;                    // number of blocks
+        String sLength = as[n++];
+        n++;                    // namespace quota
+        n++;                    // diskspace quota
+        String sPermission = as[n++];
+        String sOwner = as[n++];
+        String sGroup = as[n++];
+
+        // header line
+        if ("Path".equals(sPath) && "Replication".equals(sReplication))
+        {
+            return null;
+        }
+
+        if (sPath.length() == 0)
+        {
+            sPath = "/";
+        }
+
+        try
+        {
+            boolean bDir = sPermission.startsWith("d");
+            long nMtime = m_dateFormat.parse(sMtime).getTime();
+
+            // newer viewers append a '+' when the inode has an ACL
+            if (sPermission.length() > 10)
+            {
+                sPermission = sPermission.substring(0, 10);
+            }
+
+            return new FileStatus(bDir ? 0 : Long.parseLong(sLength),
+                                  bDir,
+                                  bDir ? 0 : Integer.parseInt(sReplication),
+                                  bDir ? 0 : Long.parseLong(sBlockSize),
+                                  nMtime, 0,
+                                  FsPermission.valueOf(sPermission),
+                                  sOwner, sGroup,
+                                  fs.makeQualified(new Path(sPath)));
+        }
+        catch (ParseException e)
+        {
+            m_nBadLines++;
+            return null;
+        }
+        catch (IllegalArgumentException e)
+        {
+            m_nBadLines++;
+            return null;
+        }
+    }
+
+    // ------------------------------------------------------------
+
+    /** returns true if any directory between sBase and the parent of
+     * sPath is ignored.  checkDir never descends into those, so
+     * nothing below them counts either.
+     */
+    private boolean isInIgnoredDir(String sPath, String sBase)
+    {
+        int nSlash = sPath.lastIndexOf('/');
+        if (nSlash <= 0)
+        {
+            return false;
+        }
+
+        String sParent = sPath.substring(0, nSlash);
+        if (sParent.equals(m_sLastParent))
+        {
+            return m_bLastParentIgnored;
+        }
+
+        boolean bIgnored = BackupHdfs.isUnderIgnoredDir(new Path(sParent), sBase);
+
+        m_sLastParent = sParent;
+        m_bLastParentIgnored = bIgnored;
+        return bIgnored;
+    }
+}
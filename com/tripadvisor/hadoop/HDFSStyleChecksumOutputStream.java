@@ -0,0 +1,233 @@
+/*
+  Copyright 2012 TripAdvisor, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.tripadvisor.hadoop;
+
+import org.apache.hadoop.fs.MD5MD5CRC32FileChecksum;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.MD5Hash;
+import org.apache.hadoop.util.DataChecksum;
+
+import java.io.*;
+import java.util.*;
+
+/** helper class.  output stream that computes the hdfs-style
+ * MD5-of-MD5-of-CRC32 checksum of the bytes written through it, so a
+ * copy has its checksum as soon as the last byte is written and the
+ * local file does not need to be read again.
+ *
+ * The result is the same as
+ * ExternalHDFSChecksumGenerator.getLocalFilesystemHDFSStyleChecksum
+ * for the same bytes and block size: a CRC32 of every 512 bytes, an
+ * MD5 of the CRCs of every block, and an MD5 over the whole buffer of
+ * block MD5s, including its padding (HDFS-772).  It is built from the
+ * same hadoop classes so the padding comes out the same.
+ *
+ * A file can also be checksummed in block-aligned pieces, one stream
+ * per piece, by combining the block MD5s of all pieces in order.
+ */
+final class HDFSStyleChecksumOutputStream extends FilterOutputStream
+{
+    static final int N_BYTES_PER_CRC = 512;
+
+    private final long m_nBlockSize;
+    private final DataChecksum m_checksum =
+        DataChecksum.newDataChecksum(DataChecksum.CHECKSUM_CRC32, N_BYTES_PER_CRC);
+
+    // partial chunk waiting for the rest of its 512 bytes
+    private final byte[] m_abChunk = new byte[N_BYTES_PER_CRC];
+    private int m_nChunkPos = 0;
+
+    // CRCs of the current block, and the MD5s of the finished blocks
+    private final ByteArrayOutputStream m_crcs = new ByteArrayOutputStream();
+    private final List<MD5Hash> m_lBlockMD5s = new ArrayList<MD5Hash>();
+    private final byte[] m_abCrc = new byte[4];
+    private long m_nBlockBytes = 0;
+
+    private long m_nBytes = 0;
+    private boolean m_bDone = false;
+
+    // ------------------------------------------------------------
+
+    /** constructor.  lBlockSize must be a multiple of 512.
+     */
+    HDFSStyleChecksumOutputStream(OutputStream out, long lBlockSize)
+    {
+        super(out);
+        m_nBlockSize = lBlockSize;
+    }
+
+    // ------------------------------------------------------------
+
+    public void write(int b)
+        throws IOException
+    {
+        out.write(b);
+        update(new byte[] { (byte) b }, 0, 1);
+    }
+
+    // ------------------------------------------------------------
+
+    public void write(byte[] ab, int nOffset, int nLen)
+        throws IOException
+    {
+        out.write(ab, nOffset, nLen);
+        update(ab, nOffset, nLen);
+    }
+
+    // ------------------------------------------------------------
+
+    /** number of bytes written so far
+     */
+    long getBytesWritten()
+    {
+        return m_nBytes;
+    }
+
+    // ------------------------------------------------------------
+
+    /** returns the checksum of everything written.  No more bytes may
+     * be written after this.
+     */
+    MD5MD5CRC32FileChecksum getChecksum()
+        throws IOException
+    {
+        return combine(getBlockMD5s(), m_nBlockSize);
+    }
+
+    // ------------------------------------------------------------
+
+    /** returns the MD5s of the blocks written, the last one possibly
+     * partial.  No more bytes may be written after this.
+     */
+    List<MD5Hash> getBlockMD5s()
+        throws IOException
+    {
+        if (! m_bDone)
+        {
+            if (m_nChunkPos > 0)
+            {
+                addChunk(m_abChunk, 0, m_nChunkPos);
+                m_nChunkPos = 0;
+            }
+            if (m_nBlockBytes > 0)
+            {
+                finishBlock();
+            }
+
+            m_bDone = true;
+        }
+
+        return m_lBlockMD5s;
+    }
+
+    // ------------------------------------------------------------
+
+    /** returns the checksum of nLen bytes of ab, for files that are
+     * read whole into memory
+     */
+    static MD5MD5CRC32FileChecksum checksum(byte[] ab, int nOffset, int nLen, long lBlockSize)
+        throws IOException
+    {
+        HDFSStyleChecksumOutputStream out = new HDFSStyleChecksumOutputStream(null, lBlockSize);
+        out.update(ab, nOffset, nLen);
+        return out.getChecksum();
+    }
+
+    // ------------------------------------------------------------
+
+    /** returns the file checksum for the block MD5s of a whole file,
+     * in order
+     */
+    static MD5MD5CRC32FileChecksum combine(List<MD5Hash> lBlockMD5s, long lBlockSize)
+        throws IOException
+    {
+        DataOutputBuffer md5s = new DataOutputBuffer();
+        for (MD5Hash md5 : lBlockMD5s)
+        {
+            md5.write(md5s);
+        }
+
+        // the whole buffer, not just getLength() bytes, like hdfs
+        return new MD5MD5CRC32FileChecksum(N_BYTES_PER_CRC,
+                                           lBlockSize / N_BYTES_PER_CRC,
+                                           MD5Hash.digest(md5s.getData()));
+    }
+
+    // ------------------------------------------------------------
+
+    private void update(byte[] ab, int nOffset, int nLen)
+        throws IOException
+    {
+        if (m_bDone)
+        {
+            throw new IOException("checksum already taken");
+        }
+
+        m_nBytes += nLen;
+
+        while (nLen > 0)
+        {
+            // whole chunks straight from the caller's buffer
+            if (m_nChunkPos == 0 && nLen >= N_BYTES_PER_CRC)
+            {
+                addChunk(ab, nOffset, N_BYTES_PER_CRC);
+                nOffset += N_BYTES_PER_CRC;
+                nLen -= N_BYTES_PER_CRC;
+                continue;
+            }
+
+            int n = Math.min(nLen, N_BYTES_PER_CRC - m_nChunkPos);
+            System.arraycopy(ab, nOffset, m_abChunk, m_nChunkPos, n);
+            m_nChunkPos += n;
+            nOffset += n;
+            nLen -= n;
+
+            if (m_nChunkPos == N_BYTES_PER_CRC)
+            {
+                addChunk(m_abChunk, 0, N_BYTES_PER_CRC);
+                m_nChunkPos = 0;
+            }
+        }
+    }
+
+    // ------------------------------------------------------------
+
+    private void addChunk(byte[] ab, int nOffset, int nLen)
+        throws IOException
+    {
+        m_checksum.reset();
+        m_checksum.update(ab, nOffset, nLen);
+        m_checksum.writeValue(m_abCrc, 0, true);
+        m_crcs.write(m_abCrc, 0, m_abCrc.length);
+
+        m_nBlockBytes += nLen;
+        if (m_nBlockBytes >= m_nBlockSize)
+        {
+            finishBlock();
+        }
+    }
+
+    // ------------------------------------------------------------
+
+    private void finishBlock()
+        throws IOException
+    {
+        m_lBlockMD5s.add(MD5Hash.digest(m_crcs.toByteArray()));
+        m_crcs.reset();
+        m_nBlockBytes = 0;
+    }
+}
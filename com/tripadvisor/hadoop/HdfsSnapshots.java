@@ -0,0 +1,275 @@
+/*
+  Copyright 2012 TripAdvisor, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.tripadvisor.hadoop;
+
+import org.apache.hadoop.fs.*;
+
+import java.io.*;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.*;
+import java.util.regex.*;
+
+/** helper class.  manages the hdfs snapshots that BackupHdfs uses
+ * for incremental discovery and consistent reads.  Each run creates
+ * a snapshot named backup-pending-T of the snapshottable --hdfs-path
+ * directory.  After the run succeeds, the snapshot is renamed to
+ * backup-T and the previous backup-T snapshot is deleted.  Only
+ * successful runs therefore leave a base for the next diff.
+ *
+ * Snapshots only exist in hadoop 2.1 and later, and this code still
+ * builds against hadoop 1, so the snapshot calls go through
+ * reflection.
+ */
+final class HdfsSnapshots
+{
+    static final String S_PREFIX = "backup-";
+    static final String S_PENDING_PREFIX = "backup-pending-";
+
+    private static final Pattern P_DONE = Pattern.compile("backup-[0-9]+");
+
+    private final FileSystem m_fs;
+    private final Path m_root;
+
+    // ------------------------------------------------------------
+
+    /** constructor.  root is the snapshottable directory.
+     */
+    HdfsSnapshots(FileSystem fs, Path root)
+    {
+        m_fs = fs;
+        m_root = root;
+    }
+
+    // ------------------------------------------------------------
+
+    /** returns the path of snapshot sName of the root directory
+     */
+    Path getSnapshotPath(String sName)
+    {
+        return new Path(m_root, ".snapshot/" + sName);
+    }
+
+    // ------------------------------------------------------------
+
+    /** returns the time (UNIX seconds) a backup snapshot was taken,
+     * from its name
+     */
+    static long getSnapshotTime(String sName)
+    {
+        return Long.parseLong(sName.substring(sName.lastIndexOf('-') + 1));
+    }
+
+    // ------------------------------------------------------------
+
+    /** returns the name of the snapshot left by the last successful
+     * run, or null if there is none.  Deletes snapshots left by
+     * failed runs.
+     */
+    String findLastBackup()
+        throws IOException
+    {
+        FileStatus[] fStat = m_fs.listStatus(new Path(m_root, ".snapshot"));
+        if (fStat == null)
+        {
+            return null;
+        }
+
+        String sLast = null;
+        long nLast = -1;
+
+        for (FileStatus stat : fStat)
+        {
+            String sName = stat.getPath().getName();
+
+            if (sName.startsWith(S_PENDING_PREFIX))
+            {
+                System.err.println("deleting snapshot of failed run: " + sName);
+                invoke("deleteSnapshot",
+                       new Class<?>[] { Path.class, String.class },
+                       new Object[] { m_root, sName });
+                continue;
+            }
+
+            if (P_DONE.matcher(sName).matches()
+                && getSnapshotTime(sName) > nLast)
+            {
+                nLast = getSnapshotTime(sName);
+                sLast = sName;
+            }
+        }
+
+        return sLast;
+    }
+
+    // ------------------------------------------------------------
+
+    /** creates the snapshot for this run, taken at nNow (UNIX
+     * seconds).  Returns its name.
+     */
+    String create(long nNow)
+        throws IOException
+    {
+        String sName = S_PENDING_PREFIX + nNow;
+        invoke("createSnapshot",
+               new Class<?>[] { Path.class, String.class },
+               new Object[] { m_root, sName });
+        return sName;
+    }
+
+    // ------------------------------------------------------------
+
+    /** marks the snapshot of this run as the base for the next one,
+     * and deletes the previous base.
+     */
+    void commit(String sPending, String sPrevious)
+        throws IOException
+    {
+        String sDone = S_PREFIX + sPending.substring(S_PENDING_PREFIX.length());
+
+        invoke("renameSnapshot",
+               new Class<?>[] { Path.class, String.class, String.class },
+               new Object[] { m_root, sPending, sDone });
+
+        if (sPrevious != null)
+        {
+            invoke("deleteSnapshot",
+                   new Class<?>[] { Path.class, String.class },
+                   new Object[] { m_root, sPrevious });
+        }
+    }
+
+    // ------------------------------------------------------------
+
+    /** returns the paths that were created, modified or renamed (by
+     * their new name) between two snapshots, relative to the root.
+     * Each entry is { type, path } where type is CREATE, MODIFY or
+     * RENAME.  Deletions are left out; the backup keeps old copies.
+     */
+    List<String[]> diff(String sFrom, String sTo)
+        throws IOException
+    {
+        Object report = invoke("getSnapshotDiffReport",
+                               new Class<?>[] { Path.class, String.class, String.class },
+                               new Object[] { m_root, sFrom, sTo });
+
+        List<String[]> l = new ArrayList<String[]>();
+
+        try
+        {
+            List<?> lEntries = (List<?>) report.getClass()
+                .getMethod("getDiffList").invoke(report);
+
+            for (Object entry : lEntries)
+            {
+                String sType = entry.getClass().getMethod("getType")
+                    .invoke(entry).toString();
+
+                byte[] abPath;
+                if ("RENAME".equals(sType))
+                {
+                    abPath = (byte[]) entry.getClass()
+                        .getMethod("getTargetPath").invoke(entry);
+                }
+                else if ("CREATE".equals(sType) || "MODIFY".equals(sType))
+                {
+                    abPath = sourcePath(entry);
+                }
+                else
+                {
+                    continue;
+                }
+
+                l.add(new String[] { sType, new String(abPath, "UTF-8") });
+            }
+        }
+        catch (NoSuchMethodException e)
+        {
+            throw new IOException("unsupported snapshot diff report: " + e);
+        }
+        catch (IllegalAccessException e)
+        {
+            throw new IOException("unsupported snapshot diff report: " + e);
+        }
+        catch (InvocationTargetException e)
+        {
+            throw new IOException("failed to read snapshot diff: " + e.getCause());
+        }
+
+        return l;
+    }
+
+    // ------------------------------------------------------------
+
+    /** path of a diff entry.  Early hadoop 2 releases call it
+     * getRelativePath.
+     */
+    private static byte[] sourcePath(Object entry)
+        throws NoSuchMethodException, IllegalAccessException,
+               InvocationTargetException
+    {
+        Method m;
+        try
+        {
+            m = entry.getClass().getMethod("getSourcePath");
+        }
+        catch (NoSuchMethodException e)
+        {
+            m = entry.getClass().getMethod("getRelativePath");
+        }
+
+        return (byte[]) m.invoke(entry);
+    }
+
+    // ------------------------------------------------------------
+
+    /** calls a snapshot method on the filesystem
+     */
+    private Object invoke(String sMethod, Class<?>[] aTypes, Object[] aArgs)
+        throws IOException
+    {
+        Method m;
+        try
+        {
+            m = m_fs.getClass().getMethod(sMethod, aTypes);
+        }
+        catch (NoSuchMethodException e)
+        {
+            throw new IOException("hdfs snapshots need hadoop 2.1 or later; "
+                                  + m_fs.getClass().getName()
+                                  + " has no " + sMethod);
+        }
+
+        try
+        {
+            return m.invoke(m_fs, aArgs);
+        }
+        catch (IllegalAccessException e)
+        {
+            throw new IOException("cannot call " + sMethod + ": " + e);
+        }
+        catch (InvocationTargetException e)
+        {
+            Throwable t = e.getCause();
+            if (t instanceof IOException)
+            {
+                throw (IOException) t;
+            }
+            throw new IOException(sMethod + " failed: " + t);
+        }
+    }
+}
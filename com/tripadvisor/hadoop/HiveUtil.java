@@ -203,7 +203,9 @@ public class HiveUtil {
         }
         org.apache.hadoop.hive.metastore.api.Table t = null;
         try {
+            long nStart = System.nanoTime();
             t = client.getTable(db, table);
+            BackupMetrics.observe("metastore_rpc_seconds", "getTable", nStart);
         } catch (MetaException e) {
             throw new RuntimeException("getting location for " + db + " "
                                        + table, e);
@@ -230,7 +232,9 @@ public class HiveUtil {
         }
         org.apache.hadoop.hive.metastore.api.Table t = null;
         try {
+            long nStart = System.nanoTime();
             t = client.getTable(db, table);
+            BackupMetrics.observe("metastore_rpc_seconds", "getTable", nStart);
         } catch (MetaException e) {
             throw new RuntimeException("getting location for " + db + " "
                                        + table, e);
@@ -414,7 +418,9 @@ public class HiveUtil {
 
         try
         {
+            long nStart = System.nanoTime();
             lPartitionNames = client.listPartitionNames(db, table, java.lang.Short.MAX_VALUE);
+            BackupMetrics.observe("metastore_rpc_seconds", "listPartitionNames", nStart);
         }
         catch (MetaException e) {
             throw new RuntimeException("getting location for " + db + " "
@@ -428,6 +434,8 @@ public class HiveUtil {
 
         if (lPartitionNames != null)
         {
+            BackupMetrics.count("partitions_dumped", lPartitionNames.size());
+
             Iterator<String> iter = lPartitionNames.iterator();
             while (iter.hasNext())
             {
@@ -481,7 +489,9 @@ public class HiveUtil {
         try
         {
             // lTables = client.getTables(db, "*");
+            long nStart = System.nanoTime();
             lTables = client.getAllTables(db);
+            BackupMetrics.observe("metastore_rpc_seconds", "getAllTables", nStart);
         }
         catch (MetaException e) {
             throw new RuntimeException("dump tables for " + db, e);
@@ -501,12 +511,14 @@ public class HiveUtil {
             {
                 String sTable = iter.next();
                 System.out.println("-- found table: " + sTable);
+                BackupMetrics.count("tables_found", 1);
 
                 if (ignoreTables != null
                     && ignoreTables.doIgnoreTable(sTable))
                 {
                     // skip
                     System.out.println("-- ignoring: " + sTable);
+                    BackupMetrics.count("tables_ignored", 1);
                     continue;
                 }
 
@@ -520,18 +532,22 @@ public class HiveUtil {
                 {
                     // skip
                     System.out.println("-- ignoring: " + sTable + ", base name is " + sTableStripped);
+                    BackupMetrics.count("tables_ignored", 1);
                     continue;
                 }
 
                 StringBuilder sb = new StringBuilder();
 
+                long nStart = System.nanoTime();
                 sb.append(showCreateTable(db, sTable));
                 sb.append("\n\n");
 
                 sb.append(showAddPartitions(db, sTable));
                 sb.append("\n\n");
+                BackupMetrics.observe("table_dump_seconds", null, nStart);
 
                 System.out.println(sb.toString());
+                BackupMetrics.count("tables_dumped", 1);
             }
         }
 
@@ -0,0 +1,702 @@
+/*
+  Copyright 2012 TripAdvisor, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.tripadvisor.hadoop;
+
+import org.apache.hadoop.fs.FileStatus;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.*;
+import java.util.regex.*;
+
+/** helper class.  owner, group and mode of every directory and file
+ * the scan found, in place of the chown and chmod lines of
+ * hdfs-chmods.sh and the mkdir lines of hdfs-mkdirs.sh.
+ *
+ * The manifest is a directory of generations.  A base holds every
+ * entry; a delta holds the entries added or changed since the
+ * generation before it, and a deletion marker for every path that is
+ * gone.  The state is the newest base with the deltas after it laid
+ * over it in order.  Once there are m_nMaxDeltas deltas after the
+ * base, the next run compacts them into a new base, and the older
+ * generations are deleted.
+ *
+ * Entries are sorted by path, so a directory comes before what is in
+ * it, and each path only stores what differs from the one before it.
+ * Owners and groups are stored once per file and referred to by
+ * number.  The scan adds entries in any order: they are sorted in
+ * batches of N_SORT_BATCH, spilled to run files and merged, so the
+ * heap only holds one batch.
+ *
+ * A snapshot diff scan only sees the paths that changed, so it can't
+ * tell what is gone; its deltas have no deletion markers.
+ *
+ * File format: a magic int, then per entry the
+ * type, the length of the prefix shared with the previous path, the
+ * rest of the path in UTF-8, and unless it is a deletion the owner,
+ * group and mode.  An end marker and the entry count close the file.
+ * Files are written to a tmp file and renamed.
+ */
+final class MetadataManifest
+{
+    private static final int N_MAGIC = 0x424d4431;  // "BMD1"
+
+    static final byte N_FILE = 0;
+    static final byte N_DIR = 1;
+    static final byte N_DELETED = 2;
+    private static final int N_END = 0xff;
+
+    static final int N_SORT_BATCH = 500 * 1000;
+    static final int N_DEFAULT_MAX_DELTAS = 7;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final Pattern P_GENERATION = Pattern.compile("meta-(\\d+)\\.(base|delta)");
+
+    /** one path and its metadata
+     */
+    static final class Entry
+    {
+        final String m_sPath;
+        final byte m_nType;
+        final String m_sOwner;
+        final String m_sGroup;
+        final short m_nMode;
+
+        Entry(String sPath, byte nType, String sOwner, String sGroup, short nMode)
+        {
+            m_sPath = sPath;
+            m_nType = nType;
+            m_sOwner = sOwner;
+            m_sGroup = sGroup;
+            m_nMode = nMode;
+        }
+
+        boolean isDir()
+        {
+            return m_nType == N_DIR;
+        }
+
+        /** returns true if e has the same metadata
+         */
+        boolean sameAs(Entry e)
+        {
+            return m_nType == e.m_nType && m_nMode == e.m_nMode
+                && m_sOwner.equals(e.m_sOwner) && m_sGroup.equals(e.m_sGroup);
+        }
+    }
+
+    private static final Comparator<Entry> BY_PATH = new Comparator<Entry>()
+        {
+            public int compare(Entry e1, Entry e2)
+            {
+                return e1.m_sPath.compareTo(e2.m_sPath);
+            }
+        };
+
+    private final File m_dir;
+    private final int m_nMaxDeltas;
+
+    // the scan's entries not spilled yet, and the spilled runs
+    private List<Entry> m_lBatch = new ArrayList<Entry>();
+    private final List<File> m_lRuns = new ArrayList<File>();
+    private final Map<String, String> m_hmNames = new HashMap<String, String>();
+
+    // a spill that failed, thrown by commit
+    private IOException m_error = null;
+
+    // ------------------------------------------------------------
+
+    /** constructor.  A new base is written after nMaxDeltas deltas.
+     */
+    MetadataManifest(String sDir, int nMaxDeltas)
+        throws IOException
+    {
+        m_dir = new File(sDir);
+        m_nMaxDeltas = nMaxDeltas;
+
+        if (! m_dir.exists() && ! m_dir.mkdirs())
+        {
+            throw new IOException("Failed to mkdirs " + m_dir);
+        }
+    }
+
+    // ------------------------------------------------------------
+
+    /** records a directory or file found by the scan.  Called from
+     * the scan threads.
+     */
+    synchronized void add(FileStatus stat)
+    {
+        m_lBatch.add(new Entry(stat.getPath().toUri().getPath(),
+                               stat.isDir() ? N_DIR : N_FILE,
+                               intern(stat.getOwner()), intern(stat.getGroup()),
+                               stat.getPermission().toShort()));
+
+        if (m_lBatch.size() >= N_SORT_BATCH && m_error == null)
+        {
+            try
+            {
+                spill();
+            }
+            catch (IOException e)
+            {
+                m_error = e;
+            }
+        }
+    }
+
+    // ------------------------------------------------------------
+
+    private String intern(String s)
+    {
+        String sOld = m_hmNames.get(s);
+        if (sOld != null)
+        {
+            return sOld;
+        }
+
+        m_hmNames.put(s, s);
+        return s;
+    }
+
+    // ------------------------------------------------------------
+
+    /** sorts the batch and writes it to a run file
+     */
+    private void spill()
+        throws IOException
+    {
+        Collections.sort(m_lBatch, BY_PATH);
+
+        File f = new File(m_dir, "sort-" + m_lRuns.size() + ".tmp");
+        Writer wr = new Writer(f);
+        try
+        {
+            for (Entry e : m_lBatch)
+            {
+                wr.write(e);
+            }
+            wr.close();
+            wr = null;
+        }
+        finally
+        {
+            try { wr.abort(); } catch (Exception e2) {}
+        }
+
+        m_lRuns.add(f);
+        m_lBatch = new ArrayList<Entry>();
+    }
+
+    // ------------------------------------------------------------
+
+    /** writes the next generation from what the scan found.  bComplete
+     * is false if the scan only saw changed paths, and the ones it did
+     * not see are still there.
+     */
+    synchronized void commit(boolean bComplete)
+        throws IOException
+    {
+        if (m_error != null)
+        {
+            throw m_error;
+        }
+
+        spill();
+
+        List<EntryIterator> lRuns = new ArrayList<EntryIterator>();
+        for (File f : m_lRuns)
+        {
+            lRuns.add(new Reader(f));
+        }
+        EntryIterator cur = new Merge(lRuns, false);
+
+        File[] aGenerations = listGenerations(m_dir);
+        int nBase = findBase(aGenerations);
+        int nDeltas = aGenerations.length - nBase - 1;
+        int nNext = (aGenerations.length == 0) ? 0
+            : generation(aGenerations[aGenerations.length - 1]) + 1;
+
+        boolean bBase = (nBase < 0 || nDeltas >= m_nMaxDeltas);
+        File fNext = new File(m_dir, String.format("meta-%06d.%s", nNext,
+                                                   bBase ? "base" : "delta"));
+
+        EntryIterator prev = openState(aGenerations);
+        Writer wr = new Writer(fNext);
+
+        long nChanged = 0;
+        long nDeleted = 0;
+        long nTotal = 0;
+
+        try
+        {
+            Entry ePrev = prev.next();
+            Entry eCur = cur.next();
+
+            while (ePrev != null || eCur != null)
+            {
+                int n = (ePrev == null) ? 1 : (eCur == null) ? -1
+                    : ePrev.m_sPath.compareTo(eCur.m_sPath);
+
+                if (n < 0)
+                {
+                    // not seen by this scan
+                    if (bComplete)
+                    {
+                        if (! bBase)
+                        {
+                            wr.write(new Entry(ePrev.m_sPath, N_DELETED, null, null, (short) 0));
+                        }
+                        nDeleted++;
+                    }
+                    else
+                    {
+                        if (bBase)
+                        {
+                            wr.write(ePrev);
+                        }
+                        nTotal++;
+                    }
+                    ePrev = prev.next();
+                    continue;
+                }
+
+                boolean bChanged = (n > 0 || ! ePrev.sameAs(eCur));
+                if (bBase || bChanged)
+                {
+                    wr.write(eCur);
+                }
+                if (bChanged)
+                {
+                    nChanged++;
+                }
+                nTotal++;
+
+                if (n == 0)
+                {
+                    ePrev = prev.next();
+                }
+                eCur = cur.next();
+            }
+
+            wr.close();
+            wr = null;
+        }
+        finally
+        {
+            try { wr.abort(); } catch (Exception e2) {}
+            try { prev.close(); } catch (Exception e2) {}
+            try { cur.close(); } catch (Exception e2) {}
+
+            for (File f : m_lRuns)
+            {
+                f.delete();
+            }
+            m_lRuns.clear();
+        }
+
+        System.err.println("wrote metadata " + fNext + ": " + nTotal + " paths, "
+                           + nChanged + " new or changed, " + nDeleted + " gone");
+
+        // a new base makes everything before it obsolete
+        if (bBase)
+        {
+            for (File f : aGenerations)
+            {
+                if (! f.delete())
+                {
+                    System.err.println("ERROR: failed to delete " + f);
+                }
+            }
+        }
+    }
+
+    // ------------------------------------------------------------
+
+    /** returns the base and delta files in sDir, oldest first
+     */
+    static File[] listGenerations(File dir)
+    {
+        List<File> l = new ArrayList<File>();
+
+        String[] asNames = dir.list();
+        if (asNames != null)
+        {
+            for (String sName : asNames)
+            {
+                if (P_GENERATION.matcher(sName).matches())
+                {
+                    l.add(new File(dir, sName));
+                }
+            }
+        }
+
+        // the numbers are zero-padded
+        Collections.sort(l);
+        return l.toArray(new File[l.size()]);
+    }
+
+    // ------------------------------------------------------------
+
+    private static int generation(File f)
+    {
+        Matcher m = P_GENERATION.matcher(f.getName());
+        m.matches();
+        return Integer.parseInt(m.group(1));
+    }
+
+    // ------------------------------------------------------------
+
+    /** returns the index of the newest base, or -1
+     */
+    private static int findBase(File[] aGenerations)
+    {
+        for (int i = aGenerations.length - 1; i >= 0; i--)
+        {
+            if (aGenerations[i].getName().endsWith(".base"))
+            {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // ------------------------------------------------------------
+
+    /** returns the entries of the manifest in directory sDir, in path
+     * order
+     */
+    static EntryIterator open(String sDir)
+        throws IOException
+    {
+        return openState(listGenerations(new File(sDir)));
+    }
+
+    // ------------------------------------------------------------
+
+    private static EntryIterator openState(File[] aGenerations)
+        throws IOException
+    {
+        List<EntryIterator> l = new ArrayList<EntryIterator>();
+
+        int nBase = findBase(aGenerations);
+        for (int i = Math.max(nBase, 0); i < aGenerations.length; i++)
+        {
+            l.add(new Reader(aGenerations[i]));
+        }
+
+        return new Merge(l, true);
+    }
+
+    // ------------------------------------------------------------
+
+    /** entries in path order
+     */
+    abstract static class EntryIterator
+    {
+        /** returns the next entry, or null at the end
+         */
+        abstract Entry next()
+            throws IOException;
+
+        abstract void close()
+            throws IOException;
+    }
+
+    // ------------------------------------------------------------
+
+    /** merges sorted iterators.  Of entries with the same path, the
+     * one from the iterator given last wins; deletions are dropped if
+     * bDropDeleted.
+     */
+    private static final class Merge extends EntryIterator
+    {
+        private final List<EntryIterator> m_lSources;
+        private final Entry[] m_aHeads;
+        private final boolean m_bDropDeleted;
+
+        Merge(List<EntryIterator> lSources, boolean bDropDeleted)
+            throws IOException
+        {
+            m_lSources = lSources;
+            m_aHeads = new Entry[lSources.size()];
+            m_bDropDeleted = bDropDeleted;
+
+            for (int i = 0; i < m_aHeads.length; i++)
+            {
+                m_aHeads[i] = lSources.get(i).next();
+            }
+        }
+
+        Entry next()
+            throws IOException
+        {
+            while (true)
+            {
+                // few sources, so a scan beats a heap
+                String sMin = null;
+                for (Entry e : m_aHeads)
+                {
+                    if (e != null && (sMin == null || e.m_sPath.compareTo(sMin) < 0))
+                    {
+                        sMin = e.m_sPath;
+                    }
+                }
+                if (sMin == null)
+                {
+                    return null;
+                }
+
+                Entry eWin = null;
+                for (int i = 0; i < m_aHeads.length; i++)
+                {
+                    if (m_aHeads[i] != null && m_aHeads[i].m_sPath.equals(sMin))
+                    {
+                        eWin = m_aHeads[i];
+                        m_aHeads[i] = m_lSources.get(i).next();
+                    }
+                }
+
+                if (! m_bDropDeleted || eWin.m_nType != N_DELETED)
+                {
+                    return eWin;
+                }
+            }
+        }
+
+        void close()
+        {
+            for (EntryIterator it : m_lSources)
+            {
+                try { it.close(); } catch (Exception e2) {}
+            }
+        }
+    }
+
+    // ------------------------------------------------------------
+
+    /** reads one manifest file
+     */
+    private static final class Reader extends EntryIterator
+    {
+        private final File m_file;
+        private final DataInputStream m_in;
+        private final List<String> m_lNames = new ArrayList<String>();
+        private byte[] m_abPath = new byte[256];
+        private int m_nPathLen = 0;
+        private long m_nCount = 0;
+        private boolean m_bEnd = false;
+
+        Reader(File f)
+            throws IOException
+        {
+            m_file = f;
+            m_in = new DataInputStream(new BufferedInputStream(new FileInputStream(f), 1024 * 1024));
+
+            if (m_in.readInt() != N_MAGIC)
+            {
+                m_in.close();
+                throw new IOException(f + " is not a metadata manifest");
+            }
+        }
+
+        Entry next()
+            throws IOException
+        {
+            if (m_bEnd)
+            {
+                return null;
+            }
+
+            int nType = m_in.readUnsignedByte();
+            if (nType == N_END)
+            {
+                if (m_in.readLong() != m_nCount)
+                {
+                    throw new IOException(m_file + " has the wrong entry count");
+                }
+                m_bEnd = true;
+                return null;
+            }
+
+            int nShared = readVarint(m_in);
+            int nRest = readVarint(m_in);
+            if (nShared + nRest > m_abPath.length)
+            {
+                m_abPath = Arrays.copyOf(m_abPath, 2 * (nShared + nRest));
+            }
+            m_in.readFully(m_abPath, nShared, nRest);
+            m_nPathLen = nShared + nRest;
+            String sPath = new String(m_abPath, 0, m_nPathLen, UTF8);
+
+            m_nCount++;
+
+            if (nType == N_DELETED)
+            {
+                return new Entry(sPath, N_DELETED, null, null, (short) 0);
+            }
+
+            String sOwner = readName();
+            String sGroup = readName();
+            short nMode = m_in.readShort();
+            return new Entry(sPath, (byte) nType, sOwner, sGroup, nMode);
+        }
+
+        /** an owner or group: the number of one seen before, or a new
+         * number and the name
+         */
+        private String readName()
+            throws IOException
+        {
+            int n = readVarint(m_in);
+            if (n == m_lNames.size())
+            {
+                m_lNames.add(m_in.readUTF());
+            }
+            return m_lNames.get(n);
+        }
+
+        void close()
+            throws IOException
+        {
+            m_in.close();
+        }
+    }
+
+    // ------------------------------------------------------------
+
+    /** writes one manifest file, in path order
+     */
+    private static final class Writer
+    {
+        private final File m_file;
+        private final File m_tmp;
+        private final FileOutputStream m_fout;
+        private final DataOutputStream m_out;
+        private final Map<String, Integer> m_hmNames = new HashMap<String, Integer>();
+        private byte[] m_abPrev = new byte[0];
+        private long m_nCount = 0;
+
+        Writer(File f)
+            throws IOException
+        {
+            m_file = f;
+            m_tmp = new File(f.getPath() + ".tmp");
+            m_fout = new FileOutputStream(m_tmp);
+            m_out = new DataOutputStream(new BufferedOutputStream(m_fout, 1024 * 1024));
+            m_out.writeInt(N_MAGIC);
+        }
+
+        void write(Entry e)
+            throws IOException
+        {
+            byte[] abPath = e.m_sPath.getBytes(UTF8);
+
+            int nShared = 0;
+            int nMax = Math.min(abPath.length, m_abPrev.length);
+            while (nShared < nMax && abPath[nShared] == m_abPrev[nShared])
+            {
+                nShared++;
+            }
+
+            m_out.writeByte(e.m_nType);
+            writeVarint(m_out, nShared);
+            writeVarint(m_out, abPath.length - nShared);
+            m_out.write(abPath, nShared, abPath.length - nShared);
+
+            if (e.m_nType != N_DELETED)
+            {
+                writeName(e.m_sOwner);
+                writeName(e.m_sGroup);
+                m_out.writeShort(e.m_nMode);
+            }
+
+            m_abPrev = abPath;
+            m_nCount++;
+        }
+
+        private void writeName(String s)
+            throws IOException
+        {
+            Integer n = m_hmNames.get(s);
+            if (n != null)
+            {
+                writeVarint(m_out, n);
+                return;
+            }
+
+            writeVarint(m_out, m_hmNames.size());
+            m_out.writeUTF(s);
+            m_hmNames.put(s, m_hmNames.size());
+        }
+
+        /** ends the file and puts it in place
+         */
+        void close()
+            throws IOException
+        {
+            m_out.writeByte(N_END);
+            m_out.writeLong(m_nCount);
+            m_out.flush();
+            m_fout.getChannel().force(true);
+            m_out.close();
+
+            if (! m_tmp.renameTo(m_file))
+            {
+                throw new IOException("can't rename " + m_tmp + " to " + m_file);
+            }
+        }
+
+        /** drops a file that was not finished
+         */
+        void abort()
+        {
+            try { m_out.close(); } catch (Exception e2) {}
+            m_tmp.delete();
+        }
+    }
+
+    // ------------------------------------------------------------
+
+    private static void writeVarint(DataOutput out, int n)
+        throws IOException
+    {
+        while ((n & ~0x7f) != 0)
+        {
+            out.writeByte((n & 0x7f) | 0x80);
+            n >>>= 7;
+        }
+        out.writeByte(n);
+    }
+
+    // ------------------------------------------------------------
+
+    private static int readVarint(DataInput in)
+        throws IOException
+    {
+        int n = 0;
+        for (int nShift = 0; ; nShift += 7)
+        {
+            int b = in.readUnsignedByte();
+            n |= (b & 0x7f) << nShift;
+            if ((b & 0x80) == 0)
+            {
+                return n;
+            }
+        }
+    }
+}
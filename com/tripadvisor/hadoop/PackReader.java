@@ -0,0 +1,363 @@
+/*
+  Copyright 2012 TripAdvisor, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.tripadvisor.hadoop;
+
+import org.apache.hadoop.fs.MD5MD5CRC32FileChecksum;
+
+import java.io.*;
+import java.util.*;
+import java.util.regex.*;
+
+/** reads the small files that BackupHdfs packed with PackWriter.  The
+ * indexes of all packs are loaded in order, and a file packed more
+ * than once is found in the newest pack.  Packs after a given number
+ * can be left out, to go back to an older version.  A file whose last
+ * backup failed is not found at all, unless those packs are left out.
+ *
+ * A file with a copy of its own in the local backup tree was backed
+ * up as a regular file after it was last packed, so that copy wins
+ * over the packs.
+ *
+ * As a tool, it lists the packed files, or extracts them into the
+ * local backup tree so it can be restored like the rest:
+ *
+ * hadoop com.tripadvisor.hadoop.PackReader --pack-dir DIR --extract /backup/current
+ */
+public class PackReader
+{
+    private static final Pattern P_PACK = Pattern.compile("pack-(\\d+)\\.idx");
+
+    /** where a packed file is
+     */
+    static final class Entry
+    {
+        final int m_nPack;
+        final long m_nOffset;
+        final long m_nLength;
+        final long m_nMtime;
+        final MD5MD5CRC32FileChecksum m_ck;
+
+        Entry(int nPack, long nOffset, long nLength, long nMtime,
+              MD5MD5CRC32FileChecksum ck)
+        {
+            m_nPack = nPack;
+            m_nOffset = nOffset;
+            m_nLength = nLength;
+            m_nMtime = nMtime;
+            m_ck = ck;
+        }
+    }
+
+    private final File m_dir;
+    private final Map<String, Entry> m_hmEntries = new HashMap<String, Entry>();
+
+    // ------------------------------------------------------------
+
+    /** loads the indexes of the packs in sDir up to pack nMaxPack, or
+     * all of them if nMaxPack is negative
+     */
+    PackReader(String sDir, int nMaxPack)
+        throws IOException
+    {
+        m_dir = new File(sDir);
+
+        for (int nPack : listPacks(m_dir))
+        {
+            if (nMaxPack >= 0 && nPack > nMaxPack)
+            {
+                break;
+            }
+            loadIndex(nPack);
+        }
+    }
+
+    // ------------------------------------------------------------
+
+    static File dataFile(File dir, int nPack)
+    {
+        return new File(dir, String.format("pack-%06d.pack", nPack));
+    }
+
+    static File indexFile(File dir, int nPack)
+    {
+        return new File(dir, String.format("pack-%06d.idx", nPack));
+    }
+
+    // ------------------------------------------------------------
+
+    /** returns the numbers of the packs in dir, in order
+     */
+    static int[] listPacks(File dir)
+    {
+        List<Integer> l = new ArrayList<Integer>();
+
+        String[] asNames = dir.list();
+        if (asNames != null)
+        {
+            for (String sName : asNames)
+            {
+                Matcher m = P_PACK.matcher(sName);
+                if (m.matches())
+                {
+                    l.add(Integer.parseInt(m.group(1)));
+                }
+            }
+        }
+        Collections.sort(l);
+
+        int[] an = new int[l.size()];
+        for (int i = 0; i < an.length; i++)
+        {
+            an[i] = l.get(i);
+        }
+        return an;
+    }
+
+    // ------------------------------------------------------------
+
+    /** returns where the newest version of hdfs file sPath is, or
+     * null if it was never packed
+     */
+    Entry get(String sPath)
+    {
+        return m_hmEntries.get(sPath);
+    }
+
+    // ------------------------------------------------------------
+
+    /** hdfs paths of all packed files, sorted
+     */
+    List<String> getPaths()
+    {
+        List<String> l = new ArrayList<String>(m_hmEntries.keySet());
+        Collections.sort(l);
+        return l;
+    }
+
+    // ------------------------------------------------------------
+
+    /** returns the body of a packed file
+     */
+    byte[] read(Entry e)
+        throws IOException
+    {
+        RandomAccessFile raf = null;
+
+        try
+        {
+            raf = new RandomAccessFile(dataFile(m_dir, e.m_nPack), "r");
+            raf.seek(e.m_nOffset);
+
+            byte[] ab = new byte[(int) e.m_nLength];
+            raf.readFully(ab);
+            return ab;
+        }
+        finally
+        {
+            try { raf.close(); } catch (Exception e2) {}
+        }
+    }
+
+    // ------------------------------------------------------------
+
+    private void loadIndex(int nPack)
+        throws IOException
+    {
+        File f = indexFile(m_dir, nPack);
+        DataInputStream in = null;
+
+        try
+        {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(f), 1024 * 1024));
+
+            if (in.readInt() != PackWriter.N_INDEX_MAGIC)
+            {
+                throw new IOException(f + " is not a pack index");
+            }
+
+            while (true)
+            {
+                String sPath;
+                try
+                {
+                    sPath = in.readUTF();
+                }
+                catch (EOFException e)
+                {
+                    break;
+                }
+
+                long nOffset = in.readLong();
+                long nLength = in.readLong();
+                long nMtime = in.readLong();
+                MD5MD5CRC32FileChecksum ck = new MD5MD5CRC32FileChecksum();
+                ck.readFields(in);
+
+                if (nOffset == PackWriter.N_DROPPED)
+                {
+                    m_hmEntries.remove(sPath);
+                }
+                else
+                {
+                    m_hmEntries.put(sPath, new Entry(nPack, nOffset, nLength, nMtime, ck));
+                }
+            }
+        }
+        catch (EOFException e)
+        {
+            // only a crash while writing the last record leaves it
+            // cut short; the records before it are good
+            System.err.println("WARNING: " + f + " ends in a partial record");
+        }
+        finally
+        {
+            try { in.close(); } catch (Exception e2) {}
+        }
+    }
+
+    // ------------------------------------------------------------
+
+    /** writes every packed file without a local copy into the local
+     * backup tree, on the disk it belongs to
+     */
+    void extract(DiskSet disks)
+        throws IOException
+    {
+        int nExtracted = 0;
+
+        for (String sPath : getPaths())
+        {
+            File f = new File(disks.getRoot(disks.find(sPath)) + sPath);
+            if (ParallelGzip.findCopy(f).exists())
+            {
+                System.out.println("local copy wins: " + f);
+                continue;
+            }
+
+            File dir = f.getParentFile();
+            if (! dir.exists() && ! dir.mkdirs())
+            {
+                throw new IOException("Failed to mkdirs " + dir);
+            }
+
+            Entry e = get(sPath);
+            FileOutputStream out = null;
+            try
+            {
+                out = new FileOutputStream(f);
+                out.write(read(e));
+            }
+            finally
+            {
+                try { out.close(); } catch (Exception e2) {}
+            }
+            f.setLastModified(e.m_nMtime);
+
+            nExtracted++;
+        }
+
+        System.out.println("extracted " + nExtracted + " files");
+    }
+
+    // ------------------------------------------------------------
+
+    /**
+     * Prints out usage
+     */
+    static void usage()
+    {
+        System.err.println("Usage: hadoop com.tripadvisor.hadoop.PackReader args\n" +
+                           "  --pack-dir DIR: pack directory of the backup\n" +
+                           "  [--max-pack N]: ignore packs after pack N\n" +
+                           "  --list: print the packed files\n" +
+                           "  --extract path/on/local/fs: write the packed files into\n" +
+                           "      the local backup tree, unless they have a copy there; a\n" +
+                           "      comma-separated list for a backup spread over disks\n" +
+                           "  [--placement-index FILE]: placement index of the disks, if not\n" +
+                           "      the default\n");
+
+        System.exit(1);
+    }
+
+    // ------------------------------------------------------------
+
+    public static void main(String[] args)
+        throws IOException
+    {
+        String sPackDir = null;
+        int nMaxPack = -1;
+        boolean bList = false;
+        String sExtractPath = null;
+        String sPlacementIndex = null;
+
+        for (int i=0 ; i<args.length ; i++)
+        {
+            if (args[i].equals("--pack-dir"))
+            {
+                sPackDir = args[++i];
+                continue;
+            }
+            if (args[i].equals("--max-pack"))
+            {
+                nMaxPack = Integer.parseInt(args[++i]);
+                continue;
+            }
+            if (args[i].equals("--list"))
+            {
+                bList = true;
+                continue;
+            }
+            if (args[i].equals("--extract"))
+            {
+                sExtractPath = args[++i];
+                continue;
+            }
+            if (args[i].equals("--placement-index"))
+            {
+                sPlacementIndex = args[++i];
+                continue;
+            }
+
+            System.err.println("ERROR: unknown arg " + args[i]);
+            usage();
+        }
+
+        if (sPackDir == null || (bList == false && sExtractPath == null))
+        {
+            usage();
+        }
+
+        PackReader packs = new PackReader(sPackDir, nMaxPack);
+
+        if (bList)
+        {
+            for (String sPath : packs.getPaths())
+            {
+                Entry e = packs.get(sPath);
+                System.out.println(sPath + " len=" + e.m_nLength
+                                   + " mtime=" + e.m_nMtime
+                                   + " pack=" + e.m_nPack
+                                   + " checksum=" + e.m_ck);
+            }
+        }
+
+        if (sExtractPath != null)
+        {
+            packs.extract(new DiskSet(DiskSet.split(sExtractPath), null, sPlacementIndex));
+        }
+    }
+}
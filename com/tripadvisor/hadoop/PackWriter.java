@@ -0,0 +1,234 @@
+/*
+  Copyright 2012 TripAdvisor, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.tripadvisor.hadoop;
+
+import org.apache.hadoop.fs.MD5MD5CRC32FileChecksum;
+import org.apache.hadoop.io.MD5Hash;
+
+import java.io.*;
+
+/** helper class.  appends small files to large pack files instead of
+ * writing each one to a local file of its own, so millions of tiny
+ * files become a few large sequential writes.
+ *
+ * A pack is two files in the pack directory: pack-NNNNNN.pack, the
+ * file bodies back to back, and pack-NNNNNN.idx, a record of the hdfs
+ * path, offset, length, mtime and checksum of each body.  A pack is
+ * closed when it reaches the pack size, and every run starts a new
+ * one, so packs are never written to again once closed.  Older
+ * versions of a file stay in older packs; PackReader takes the
+ * newest.
+ *
+ * Index records are written only after the bodies they point to are
+ * synced to disk, so after a crash every record in an index is good.
+ *
+ * A record with offset -1 and no body marks a file whose backup
+ * failed, so an older version in an older pack does not pass for it.
+ *
+ * All methods are thread-safe.
+ */
+final class PackWriter
+{
+    static final long N_DEFAULT_MAX_FILE_SIZE = 256 * 1024;
+    static final long N_DEFAULT_PACK_SIZE = 1024L * 1024 * 1024;
+
+    static final int N_INDEX_MAGIC = 0x42504b31;  // "BPK1"
+
+    // offset of the index record of a file that failed
+    static final long N_DROPPED = -1;
+
+    // index records kept before syncing the pack
+    private static final int N_MAX_PENDING_INDEX = 1024 * 1024;
+    private static final int N_BUFFER_SIZE = 4 * 1024 * 1024;
+
+    private final File m_dir;
+    private final long m_nMaxFileSize;
+    private final long m_nPackSize;
+
+    // the current pack, null until the first file is added
+    private int m_nPack;
+    private FileOutputStream m_dataFile = null;
+    private OutputStream m_data;
+    private FileOutputStream m_indexFile;
+    private long m_nOffset;
+
+    // index records of bodies not synced yet
+    private final ByteArrayOutputStream m_pending = new ByteArrayOutputStream();
+    private final DataOutputStream m_pendingOut = new DataOutputStream(m_pending);
+
+    // ------------------------------------------------------------
+
+    /** constructor.  Files of up to nMaxFileSize bytes are packed, in
+     * packs of about nPackSize bytes.
+     */
+    PackWriter(String sDir, long nMaxFileSize, long nPackSize)
+        throws IOException
+    {
+        m_dir = new File(sDir);
+        m_nMaxFileSize = nMaxFileSize;
+        m_nPackSize = nPackSize;
+
+        if (! m_dir.exists() && ! m_dir.mkdirs())
+        {
+            throw new IOException("Failed to mkdirs " + m_dir);
+        }
+
+        int[] anPacks = PackReader.listPacks(m_dir);
+        m_nPack = (anPacks.length == 0) ? 0 : anPacks[anPacks.length - 1] + 1;
+    }
+
+    // ------------------------------------------------------------
+
+    /** returns true if a file of nLen bytes goes into a pack
+     */
+    boolean isSmall(long nLen)
+    {
+        return nLen <= m_nMaxFileSize;
+    }
+
+    // ------------------------------------------------------------
+
+    /** appends the body of hdfs file sPath, the first nLen bytes of
+     * ab, to the current pack
+     */
+    synchronized void add(String sPath, long nMtime, byte[] ab, int nLen,
+                          MD5MD5CRC32FileChecksum ck)
+        throws IOException
+    {
+        if (m_dataFile == null)
+        {
+            open();
+        }
+
+        m_data.write(ab, 0, nLen);
+
+        m_pendingOut.writeUTF(sPath);
+        m_pendingOut.writeLong(m_nOffset);
+        m_pendingOut.writeLong(nLen);
+        m_pendingOut.writeLong(nMtime);
+        ck.write(m_pendingOut);
+
+        m_nOffset += nLen;
+
+        if (m_nOffset >= m_nPackSize)
+        {
+            close();
+        }
+        else if (m_pending.size() >= N_MAX_PENDING_INDEX)
+        {
+            sync();
+        }
+    }
+
+    // ------------------------------------------------------------
+
+    /** records that hdfs file sPath failed, so PackReader does not
+     * take an older version of it for the newest
+     */
+    synchronized void drop(String sPath)
+        throws IOException
+    {
+        if (m_dataFile == null)
+        {
+            open();
+        }
+
+        m_pendingOut.writeUTF(sPath);
+        m_pendingOut.writeLong(N_DROPPED);
+        m_pendingOut.writeLong(0);
+        m_pendingOut.writeLong(0);
+        new MD5MD5CRC32FileChecksum(0, 0, new MD5Hash()).write(m_pendingOut);
+    }
+
+    // ------------------------------------------------------------
+
+    /** syncs the pack, then writes the index records of everything
+     * added so far
+     */
+    synchronized void sync()
+        throws IOException
+    {
+        if (m_dataFile == null)
+        {
+            return;
+        }
+
+        m_data.flush();
+        m_dataFile.getChannel().force(false);
+
+        m_pendingOut.flush();
+        m_pending.writeTo(m_indexFile);
+        m_indexFile.getChannel().force(false);
+        m_pending.reset();
+    }
+
+    // ------------------------------------------------------------
+
+    /** syncs and closes the current pack.  The next file goes into a
+     * new one.
+     */
+    synchronized void close()
+        throws IOException
+    {
+        if (m_dataFile == null)
+        {
+            return;
+        }
+
+        try
+        {
+            sync();
+        }
+        finally
+        {
+            try { m_data.close(); } catch (Exception e2) {}
+            try { m_indexFile.close(); } catch (Exception e2) {}
+
+            System.out.println("closed pack " + PackReader.dataFile(m_dir, m_nPack)
+                               + ", " + m_nOffset + " bytes");
+
+            m_dataFile = null;
+            m_data = null;
+            m_indexFile = null;
+            m_nPack++;
+        }
+    }
+
+    // ------------------------------------------------------------
+
+    private void open()
+        throws IOException
+    {
+        File fData = PackReader.dataFile(m_dir, m_nPack);
+        File fIndex = PackReader.indexFile(m_dir, m_nPack);
+
+        if (fData.exists() || fIndex.exists())
+        {
+            throw new IOException("pack " + fData + " exists already");
+        }
+
+        m_indexFile = new FileOutputStream(fIndex);
+        DataOutputStream out = new DataOutputStream(m_indexFile);
+        out.writeInt(N_INDEX_MAGIC);
+        out.flush();
+
+        m_dataFile = new FileOutputStream(fData);
+        m_data = new BufferedOutputStream(m_dataFile, N_BUFFER_SIZE);
+        m_nOffset = 0;
+        m_pending.reset();
+    }
+}
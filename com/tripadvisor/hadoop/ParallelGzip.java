@@ -0,0 +1,314 @@
+/*
+  Copyright 2012 TripAdvisor, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.tripadvisor.hadoop;
+
+import org.apache.hadoop.fs.MD5MD5CRC32FileChecksum;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/** helper class.  gzip compression of local backup files, spread over
+ * a pool of compressor threads.  The stream is cut into 1MB chunks,
+ * each chunk is compressed into a gzip member of its own on the pool,
+ * and the members are written out in order.  Concatenated members are
+ * a valid gzip file, so 'gzip -dc' and GZIPInputStream read it whole.
+ *
+ * Compressed backup files are named with S_SUFFIX added, which no
+ * hdfs file is expected to use, so they never collide with a file
+ * that has the plain name.  Files that are compressed already, by
+ * name or by their first bytes, are stored as they are.
+ *
+ * Checksums are always of the uncompressed bytes, so they still
+ * compare with the hdfs checksum.
+ */
+final class ParallelGzip
+{
+    static final String S_SUFFIX = ".bkgz";
+
+    static final int N_CHUNK_SIZE = 1024 * 1024;
+
+    // names of files that are compressed already
+    private static final Pattern P_COMPRESSED_NAME = Pattern.compile
+        ("(?i).*\\.(gz|bz2|zip|jar|snappy|lzo|lz4|zst|xz|deflate|7z|orc|parquet"
+         + "|jpe?g|png|gif|mp3|mp4)$");
+
+    // first bytes of compressed formats
+    private static final byte[][] A_MAGIC = {
+        { (byte) 0x1f, (byte) 0x8b },                       // gzip
+        { 'B', 'Z', 'h' },                                  // bzip2
+        { 'P', 'K', 3, 4 },                                 // zip
+        { (byte) 0xfd, '7', 'z', 'X', 'Z', 0 },             // xz
+        { (byte) 0x28, (byte) 0xb5, (byte) 0x2f, (byte) 0xfd }, // zstd
+        { (byte) 0x04, (byte) 0x22, (byte) 0x4d, (byte) 0x18 }, // lz4
+        { (byte) 0xff, 6, 0, 0, 's', 'N', 'a', 'P', 'p', 'Y' }, // snappy
+        { (byte) 0x89, 'L', 'Z', 'O' },                     // lzop
+        { 'O', 'R', 'C' },                                  // orc
+        { 'P', 'A', 'R', '1' },                             // parquet
+    };
+
+    private final ExecutorService m_pool;
+    private final int m_nMaxPending;
+
+    // ------------------------------------------------------------
+
+    /** constructor.  nThreads compressor threads are shared by all
+     * streams.
+     */
+    ParallelGzip(int nThreads)
+    {
+        m_nMaxPending = 2 * nThreads;
+        m_pool = Executors.newFixedThreadPool(nThreads, new ThreadFactory()
+            {
+                private int m_n = 0;
+
+                public synchronized Thread newThread(Runnable r)
+                {
+                    Thread t = new Thread(r, "gzip-" + m_n++);
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+    }
+
+    // ------------------------------------------------------------
+
+    /** returns true if a file with this name, starting with the first
+     * nLen bytes of ab, is compressed already
+     */
+    static boolean isCompressed(String sName, byte[] ab, int nLen)
+    {
+        if (P_COMPRESSED_NAME.matcher(sName).matches())
+        {
+            return true;
+        }
+
+        for (byte[] abMagic : A_MAGIC)
+        {
+            if (nLen >= abMagic.length
+                && Arrays.equals(abMagic, Arrays.copyOf(ab, abMagic.length)))
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    // ------------------------------------------------------------
+
+    /** returns the compressed name of backup file f
+     */
+    static File compressedName(File f)
+    {
+        return new File(f.getPath() + S_SUFFIX);
+    }
+
+    // ------------------------------------------------------------
+
+    /** returns true if backup file f is a compressed one
+     */
+    static boolean isCompressedCopy(File f)
+    {
+        return f.getName().endsWith(S_SUFFIX);
+    }
+
+    // ------------------------------------------------------------
+
+    /** returns the backup of a file with plain name f: f itself, or
+     * its compressed name if only that exists
+     */
+    static File findCopy(File f)
+    {
+        if (! f.exists())
+        {
+            File fz = compressedName(f);
+            if (fz.isFile())
+            {
+                return fz;
+            }
+        }
+
+        return f;
+    }
+
+    // ------------------------------------------------------------
+
+    /** returns a stream that compresses into out.  Closing it closes
+     * out.
+     */
+    OutputStream compress(OutputStream out)
+    {
+        return new GzipOutputStream(out);
+    }
+
+    // ------------------------------------------------------------
+
+    /** returns the hdfs-style checksum of the uncompressed content of
+     * compressed backup file f
+     */
+    static MD5MD5CRC32FileChecksum checksum(File f, long nBlockSize)
+        throws IOException
+    {
+        InputStream in = null;
+
+        try
+        {
+            in = new GZIPInputStream(new FileInputStream(f), 64 * 1024);
+
+            HDFSStyleChecksumOutputStream out =
+                new HDFSStyleChecksumOutputStream(new OutputStream()
+                    {
+                        public void write(int b) {}
+                        public void write(byte[] ab, int nOffset, int nLen) {}
+                    }, nBlockSize);
+
+            byte[] ab = new byte[N_CHUNK_SIZE];
+            int n;
+            while ((n = in.read(ab)) > 0)
+            {
+                out.write(ab, 0, n);
+            }
+
+            return out.getChecksum();
+        }
+        finally
+        {
+            try { in.close(); } catch (Exception e2) {}
+        }
+    }
+
+    // ------------------------------------------------------------
+
+    /** writes the chunks as gzip members in order, with at most
+     * m_nMaxPending chunks being compressed at a time
+     */
+    private final class GzipOutputStream extends OutputStream
+    {
+        private final OutputStream m_out;
+        private final ArrayDeque<Future<byte[]>> m_pending =
+            new ArrayDeque<Future<byte[]>>();
+
+        private byte[] m_abChunk = new byte[N_CHUNK_SIZE];
+        private int m_nPos = 0;
+        private boolean m_bEmpty = true;
+
+        GzipOutputStream(OutputStream out)
+        {
+            m_out = out;
+        }
+
+        public void write(int b)
+            throws IOException
+        {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        public void write(byte[] ab, int nOffset, int nLen)
+            throws IOException
+        {
+            while (nLen > 0)
+            {
+                int n = Math.min(nLen, m_abChunk.length - m_nPos);
+                System.arraycopy(ab, nOffset, m_abChunk, m_nPos, n);
+                m_nPos += n;
+                nOffset += n;
+                nLen -= n;
+
+                if (m_nPos == m_abChunk.length)
+                {
+                    submit();
+                }
+            }
+        }
+
+        public void close()
+            throws IOException
+        {
+            try
+            {
+                // an empty file still needs one member
+                if (m_nPos > 0 || m_bEmpty)
+                {
+                    submit();
+                }
+
+                while (! m_pending.isEmpty())
+                {
+                    writeNext();
+                }
+            }
+            finally
+            {
+                for (Future<byte[]> f : m_pending)
+                {
+                    f.cancel(false);
+                }
+                m_out.close();
+            }
+        }
+
+        private void submit()
+            throws IOException
+        {
+            final byte[] ab = m_abChunk;
+            final int nLen = m_nPos;
+
+            m_pending.add(m_pool.submit(new Callable<byte[]>()
+                {
+                    public byte[] call()
+                        throws IOException
+                    {
+                        ByteArrayOutputStream bytes = new ByteArrayOutputStream(nLen / 2 + 64);
+                        GZIPOutputStream gz = new GZIPOutputStream(bytes, 64 * 1024);
+                        gz.write(ab, 0, nLen);
+                        gz.close();
+                        return bytes.toByteArray();
+                    }
+                }));
+
+            m_abChunk = new byte[N_CHUNK_SIZE];
+            m_nPos = 0;
+            m_bEmpty = false;
+
+            while (m_pending.size() > m_nMaxPending)
+            {
+                writeNext();
+            }
+        }
+
+        private void writeNext()
+            throws IOException
+        {
+            try
+            {
+                m_out.write(m_pending.poll().get());
+            }
+            catch (InterruptedException e)
+            {
+                throw new InterruptedIOException("interrupted compressing");
+            }
+            catch (ExecutionException e)
+            {
+                throw new IOException("compression failed: " + e.getCause());
+            }
+        }
+    }
+}
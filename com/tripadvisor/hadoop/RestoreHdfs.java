@@ -0,0 +1,853 @@
+/*
+  Copyright 2012 TripAdvisor, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.tripadvisor.hadoop;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.*;
+import org.apache.hadoop.fs.permission.FsPermission;
+
+import java.io.*;
+import java.net.URI;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+/** restores a BackupHdfs backup into hdfs, in one process, instead of
+ * running hdfs-mkdirs.sh, copyFromLocal and hdfs-chmods.sh by hand.
+ *
+ * The current backup tree is read, on all its disks, along with the
+ * packs and any past trees given.  A path found in more than one
+ * place comes from the tree given last, so listing past trees newest
+ * first goes back in time, as copying them backwards does.  A local
+ * copy wins over the packs.
+ *
+ * Files are uploaded by a pool of writers.  The hdfs-style checksum
+ * of each file is taken as it is written and compared with the one
+ * hdfs has for it.  Whole directories go together, newest first, so
+ * the latest hive partitions are back, and usable, before the old
+ * ones.  Then owners and modes are set from hdfs-chmods.sh, or from
+ * the metadata manifest if the backup kept one.
+ *
+ * Files that fail are listed in restore-failed.txt.
+ */
+public class RestoreHdfs
+{
+    static final int N_DEFAULT_THREADS = 8;
+    static final int N_COPY_BUFFER_SIZE = 1024 * 1024;
+
+    // how often progress is printed, in millis
+    static final long N_PROGRESS_INTERVAL = 60 * 1000;
+
+    /** where the chosen copy of a file is: a local file, maybe
+     * compressed, or an entry in a pack
+     */
+    static final class Source
+    {
+        final String m_sPath;
+        final File m_file;
+        final PackReader.Entry m_packed;
+        final long m_nMtime;
+
+        Source(String sPath, File file, PackReader.Entry packed, long nMtime)
+        {
+            m_sPath = sPath;
+            m_file = file;
+            m_packed = packed;
+            m_nMtime = nMtime;
+        }
+    }
+
+    private final FileSystem m_fs;
+    private final String m_sHdfsRoot;
+    private final ExecutorService m_pool;
+
+    private PackReader m_packs;
+    private boolean m_bSkipExisting = false;
+
+    // chosen copy of every hdfs path
+    private final Map<String, Source> m_hmSources = new HashMap<String, Source>();
+
+    private final AtomicLong m_nRestoredFiles = new AtomicLong();
+    private final AtomicLong m_nRestoredBytes = new AtomicLong();
+    private final AtomicLong m_nSkippedFiles = new AtomicLong();
+    private final List<String> m_lFailed =
+        Collections.synchronizedList(new ArrayList<String>());
+
+    private long m_nTotalBytes = 0;
+    private long m_nLastProgress = System.currentTimeMillis();
+
+    // ------------------------------------------------------------
+
+    /** constructor.  Files go under sHdfsRoot, which is empty for the
+     * default filesystem.
+     */
+    RestoreHdfs(FileSystem fs, String sHdfsRoot, int nThreads)
+    {
+        m_fs = fs;
+        m_sHdfsRoot = sHdfsRoot;
+        m_pool = Executors.newFixedThreadPool(nThreads);
+    }
+
+    // ------------------------------------------------------------
+
+    /** hdfs path of the file at sPath in the backup
+     */
+    private Path toHdfsPath(String sPath)
+    {
+        return new Path(m_sHdfsRoot + sPath);
+    }
+
+    // ------------------------------------------------------------
+
+    /** takes the packed files, behind every local tree
+     */
+    void addPacks(PackReader packs)
+    {
+        m_packs = packs;
+
+        for (String sPath : packs.getPaths())
+        {
+            PackReader.Entry e = packs.get(sPath);
+            m_hmSources.put(sPath, new Source(sPath, null, e, e.m_nMtime));
+        }
+    }
+
+    // ------------------------------------------------------------
+
+    /** takes the files of the local tree at sRoot, over the ones from
+     * the trees added before it
+     */
+    void addTree(String sRoot)
+    {
+        File root = new File(sRoot);
+        if (! root.isDirectory())
+        {
+            System.err.println("ERROR: " + sRoot + " is not a directory");
+            System.exit(1);
+        }
+
+        int nBefore = m_hmSources.size();
+        addDir(root, "");
+        System.err.println("read " + sRoot + ", " + (m_hmSources.size() - nBefore)
+                           + " new paths");
+    }
+
+    // ------------------------------------------------------------
+
+    private void addDir(File dir, String sPath)
+    {
+        File[] aFiles = dir.listFiles();
+        if (aFiles == null)
+        {
+            System.err.println("ERROR: could not list " + dir);
+            return;
+        }
+
+        for (File f : aFiles)
+        {
+            String sName = f.getName();
+
+            if (f.isDirectory())
+            {
+                addDir(f, sPath + "/" + sName);
+                continue;
+            }
+
+            // the backup never copies .crc files, so these are
+            // sidecars of the local filesystem
+            if (sName.endsWith(".crc")
+                || (sPath.length() == 0 && sName.startsWith(DiskSet.S_INDEX_NAME)))
+            {
+                continue;
+            }
+
+            if (ParallelGzip.isCompressedCopy(f))
+            {
+                sName = sName.substring(0, sName.length() - ParallelGzip.S_SUFFIX.length());
+            }
+
+            String sFilePath = sPath + "/" + sName;
+            m_hmSources.put(sFilePath, new Source(sFilePath, f, null, f.lastModified()));
+        }
+    }
+
+    // ------------------------------------------------------------
+
+    /** creates the directories in hdfs-mkdirs.sh, so empty ones come
+     * back too
+     */
+    void mkdirs(String sFilename)
+        throws IOException
+    {
+        final String sPrefix = "hadoop fs -mkdir ";
+        List<Future<?>> lFutures = new ArrayList<Future<?>>();
+        BufferedReader in = null;
+
+        try
+        {
+            in = new BufferedReader(new FileReader(sFilename));
+            String sLine;
+            while ((sLine = in.readLine()) != null)
+            {
+                if (! sLine.startsWith(sPrefix))
+                {
+                    continue;
+                }
+
+                final Path p = toHdfsPath(sLine.substring(sPrefix.length()));
+                lFutures.add(m_pool.submit(new Callable<Void>()
+                    {
+                        public Void call()
+                            throws IOException
+                        {
+                            if (! m_fs.mkdirs(p))
+                            {
+                                throw new IOException("Failed to mkdirs " + p);
+                            }
+                            return null;
+                        }
+                    }));
+            }
+        }
+        finally
+        {
+            try { in.close(); } catch (Exception e2) {}
+        }
+
+        int nErrors = waitFor(lFutures);
+        System.err.println("created " + (lFutures.size() - nErrors) + " directories"
+                           + ((nErrors == 0) ? "" : ", " + nErrors + " failed"));
+    }
+
+    // ------------------------------------------------------------
+
+    /** uploads all files, a directory at a time, the directory with
+     * the newest file first.  As in applyMetadata, only a bounded
+     * number of files wait in the pool.
+     */
+    void restoreFiles(int nThreads)
+    {
+        final Map<String, List<Source>> hmDirs = new HashMap<String, List<Source>>();
+        final Map<String, Long> hmNewest = new HashMap<String, Long>();
+
+        for (Source src : m_hmSources.values())
+        {
+            String sDir = src.m_sPath.substring(0, src.m_sPath.lastIndexOf('/') + 1);
+
+            List<Source> l = hmDirs.get(sDir);
+            if (l == null)
+            {
+                l = new ArrayList<Source>();
+                hmDirs.put(sDir, l);
+                hmNewest.put(sDir, src.m_nMtime);
+            }
+            l.add(src);
+            hmNewest.put(sDir, Math.max(hmNewest.get(sDir), src.m_nMtime));
+
+            m_nTotalBytes += length(src);
+        }
+
+        List<String> lDirs = new ArrayList<String>(hmDirs.keySet());
+        Collections.sort(lDirs, new Comparator<String>()
+            {
+                public int compare(String s1, String s2)
+                {
+                    int n = hmNewest.get(s2).compareTo(hmNewest.get(s1));
+                    return (n != 0) ? n : s1.compareTo(s2);
+                }
+            });
+
+        System.err.println("restoring " + m_hmSources.size() + " files, "
+                           + BackupHdfs.prettyPrintBytes(m_nTotalBytes)
+                           + ", in " + lDirs.size() + " directories");
+
+        // the pool runs them in the order they are submitted
+        final Semaphore sem = new Semaphore(64 * nThreads);
+        for (String sDir : lDirs)
+        {
+            for (final Source src : hmDirs.get(sDir))
+            {
+                sem.acquireUninterruptibly();
+                m_pool.execute(new Runnable()
+                    {
+                        public void run()
+                        {
+                            try
+                            {
+                                restoreFile(src);
+                            }
+                            finally
+                            {
+                                sem.release();
+                            }
+                        }
+                    });
+            }
+        }
+
+        // all files are done once every permit is back
+        sem.acquireUninterruptibly(64 * nThreads);
+        sem.release(64 * nThreads);
+
+        System.err.println("restored " + m_nRestoredFiles.get() + " files, "
+                           + BackupHdfs.prettyPrintBytes(m_nRestoredBytes.get())
+                           + ", skipped " + m_nSkippedFiles.get()
+                           + ", failed " + m_lFailed.size());
+    }
+
+    // ------------------------------------------------------------
+
+    private static long length(Source src)
+    {
+        return (src.m_packed != null) ? src.m_packed.m_nLength : src.m_file.length();
+    }
+
+    // ------------------------------------------------------------
+
+    /** uploads one file and checks its checksum.  A file that fails
+     * is deleted from hdfs and listed as failed.
+     */
+    void restoreFile(Source src)
+    {
+        Path p = toHdfsPath(src.m_sPath);
+
+        try
+        {
+            if (m_bSkipExisting && isRestored(src, p))
+            {
+                m_nSkippedFiles.incrementAndGet();
+                return;
+            }
+
+            MD5MD5CRC32FileChecksum ckLocal = upload(src, p);
+            m_fs.setTimes(p, src.m_nMtime, -1);
+
+            FileChecksum ckHdfs = m_fs.getFileChecksum(p);
+            String sCkHdfs = (ckHdfs == null) ? "<null>" : ckHdfs.toString();
+
+            // compare without the algorithm name, as BackupHdfs does
+            if (! sCkHdfs.replaceAll("^.*:", "").equals(ckLocal.toString().replaceAll("^.*:", "")))
+            {
+                throw new IOException("checksum mismatch"
+                                      + "\nhdfs = " + sCkHdfs
+                                      + "\nlocal= " + ckLocal);
+            }
+
+            System.out.println("restored " + src.m_sPath + " from "
+                               + ((src.m_packed != null)
+                                  ? "pack " + src.m_packed.m_nPack : src.m_file.getPath()));
+            m_nRestoredFiles.incrementAndGet();
+            progress(m_nRestoredBytes.addAndGet(length(src)));
+        }
+        catch (IOException e)
+        {
+            System.out.println("ERROR: failed to restore " + src.m_sPath + ": " + e);
+            m_lFailed.add(src.m_sPath);
+
+            try
+            {
+                m_fs.delete(p, false);
+            }
+            catch (IOException e2)
+            {
+                // leave it, it is listed
+            }
+        }
+    }
+
+    // ------------------------------------------------------------
+
+    /** returns true if hdfs file p is there already, with the length
+     * and mtime of the copy, from an earlier try of the restore
+     */
+    private boolean isRestored(Source src, Path p)
+        throws IOException
+    {
+        FileStatus stat;
+        try
+        {
+            stat = m_fs.getFileStatus(p);
+        }
+        catch (FileNotFoundException e)
+        {
+            return false;
+        }
+
+        // a compressed copy's length is not the file's
+        return stat.getModificationTime() == src.m_nMtime
+            && (src.m_packed != null || ! ParallelGzip.isCompressedCopy(src.m_file))
+            && stat.getLen() == length(src);
+    }
+
+    // ------------------------------------------------------------
+
+    /** writes the bytes of src to hdfs file p, with the block size
+     * BackupHdfs checksums with.  Returns their checksum.
+     */
+    private MD5MD5CRC32FileChecksum upload(Source src, Path p)
+        throws IOException
+    {
+        InputStream in = null;
+        HDFSStyleChecksumOutputStream out = null;
+
+        try
+        {
+            if (src.m_packed != null)
+            {
+                in = new ByteArrayInputStream(m_packs.read(src.m_packed));
+            }
+            else if (ParallelGzip.isCompressedCopy(src.m_file))
+            {
+                in = new GZIPInputStream(new FileInputStream(src.m_file), 64 * 1024);
+            }
+            else
+            {
+                in = new FileInputStream(src.m_file);
+            }
+
+            out = new HDFSStyleChecksumOutputStream(m_fs.create(p, true, 64 * 1024,
+                                                                m_fs.getDefaultReplication(p),
+                                                                BackupHdfs.N_BLOCK_SIZE),
+                                                    BackupHdfs.N_BLOCK_SIZE);
+
+            byte[] ab = new byte[N_COPY_BUFFER_SIZE];
+            int n;
+            while ((n = in.read(ab)) > 0)
+            {
+                out.write(ab, 0, n);
+            }
+
+            out.close();
+            MD5MD5CRC32FileChecksum ck = out.getChecksum();
+            out = null;
+            return ck;
+        }
+        finally
+        {
+            try { in.close(); } catch (Exception e2) {}
+            try { out.close(); } catch (Exception e2) {}
+        }
+    }
+
+    // ------------------------------------------------------------
+
+    /** prints progress, at most once per interval
+     */
+    private synchronized void progress(long nRestoredBytes)
+    {
+        long now = System.currentTimeMillis();
+        if (now - m_nLastProgress >= N_PROGRESS_INTERVAL)
+        {
+            System.err.println("progress: restored "
+                               + BackupHdfs.prettyPrintBytes(nRestoredBytes)
+                               + ((m_nTotalBytes > 0)
+                                  ? ", " + (100 * nRestoredBytes / m_nTotalBytes) + "% done"
+                                  : ""));
+            m_nLastProgress = now;
+        }
+    }
+
+    // ------------------------------------------------------------
+
+    /** sets owners and modes as in hdfs-chmods.sh.  Paths that were
+     * not restored are left alone.
+     */
+    void applyChmods(String sFilename)
+        throws IOException
+    {
+        final String sChown = "hadoop fs -chown ";
+        final String sChmod = "hadoop fs -chmod ";
+        final AtomicLong nMissing = new AtomicLong();
+
+        List<Future<?>> lFutures = new ArrayList<Future<?>>();
+        BufferedReader in = null;
+
+        try
+        {
+            in = new BufferedReader(new FileReader(sFilename));
+
+            // older scripts have the modes of files in decimal
+            String sLine = in.readLine();
+            final boolean bOctal = BackupHdfs.S_OCTAL_MODES.equals(sLine);
+            if (! bOctal)
+            {
+                System.err.println("WARNING: " + sFilename
+                                   + " is from an older backup, reading file modes as decimal");
+            }
+
+            for ( ; sLine != null; sLine = in.readLine())
+            {
+                final boolean bOwner = sLine.startsWith(sChown);
+                if (! bOwner && ! sLine.startsWith(sChmod))
+                {
+                    continue;
+                }
+
+                // the path is the rest of the line, and may have spaces
+                String sArgs = sLine.substring((bOwner ? sChown : sChmod).length());
+                int nSpace = sArgs.indexOf(' ');
+                final String sValue = sArgs.substring(0, nSpace);
+                final Path p = toHdfsPath(sArgs.substring(nSpace + 1));
+
+                lFutures.add(m_pool.submit(new Callable<Void>()
+                    {
+                        public Void call()
+                            throws IOException
+                        {
+                            try
+                            {
+                                if (bOwner)
+                                {
+                                    int nColon = sValue.indexOf(':');
+                                    m_fs.setOwner(p, sValue.substring(0, nColon),
+                                                  sValue.substring(nColon + 1));
+                                }
+                                else
+                                {
+                                    int nRadix = (bOctal || m_fs.getFileStatus(p).isDir()) ? 8 : 10;
+                                    m_fs.setPermission(p, new FsPermission((short) Integer.parseInt(sValue, nRadix)));
+                                }
+                            }
+                            catch (FileNotFoundException e)
+                            {
+                                nMissing.incrementAndGet();
+                            }
+                            return null;
+                        }
+                    }));
+            }
+        }
+        finally
+        {
+            try { in.close(); } catch (Exception e2) {}
+        }
+
+        int nErrors = waitFor(lFutures);
+        System.err.println("applied " + (lFutures.size() - nErrors - nMissing.get())
+                           + " owners and modes, " + nMissing.get() + " for paths not there"
+                           + ((nErrors == 0) ? "" : ", " + nErrors + " failed"));
+    }
+
+    // ------------------------------------------------------------
+
+    /** replays the metadata manifest in sDir: creates its directories
+     * if bDirs, or else sets the owner and mode of all its paths.
+     * Only a bounded number of tasks wait in the pool, as the
+     * manifest can hold tens of millions of paths.
+     */
+    void applyMetadata(String sDir, final boolean bDirs, int nThreads)
+        throws IOException
+    {
+        final Semaphore sem = new Semaphore(64 * nThreads);
+        final AtomicLong nApplied = new AtomicLong();
+        final AtomicLong nMissing = new AtomicLong();
+        final AtomicLong nErrors = new AtomicLong();
+
+        MetadataManifest.EntryIterator it = MetadataManifest.open(sDir);
+        try
+        {
+            MetadataManifest.Entry e;
+            while ((e = it.next()) != null)
+            {
+                if (bDirs && ! e.isDir())
+                {
+                    continue;
+                }
+
+                final MetadataManifest.Entry entry = e;
+                final Path p = toHdfsPath(e.m_sPath);
+
+                sem.acquireUninterruptibly();
+                m_pool.execute(new Runnable()
+                    {
+                        public void run()
+                        {
+                            try
+                            {
+                                if (bDirs)
+                                {
+                                    if (! m_fs.mkdirs(p))
+                                    {
+                                        throw new IOException("Failed to mkdirs " + p);
+                                    }
+                                }
+                                else
+                                {
+                                    m_fs.setOwner(p, entry.m_sOwner, entry.m_sGroup);
+                                    m_fs.setPermission(p, new FsPermission(entry.m_nMode));
+                                }
+                                nApplied.incrementAndGet();
+                            }
+                            catch (FileNotFoundException e)
+                            {
+                                nMissing.incrementAndGet();
+                            }
+                            catch (IOException e)
+                            {
+                                System.out.println("ERROR: " + p + ": " + e);
+                                nErrors.incrementAndGet();
+                            }
+                            finally
+                            {
+                                sem.release();
+                            }
+                        }
+                    });
+            }
+        }
+        finally
+        {
+            try { it.close(); } catch (Exception e2) {}
+        }
+
+        // all tasks are done once every permit is back
+        sem.acquireUninterruptibly(64 * nThreads);
+        sem.release(64 * nThreads);
+
+        if (bDirs)
+        {
+            System.err.println("created " + nApplied.get() + " directories"
+                               + ((nErrors.get() == 0) ? "" : ", " + nErrors.get() + " failed"));
+        }
+        else
+        {
+            System.err.println("applied " + nApplied.get() + " owners and modes, "
+                               + nMissing.get() + " for paths not there"
+                               + ((nErrors.get() == 0) ? "" : ", " + nErrors.get() + " failed"));
+        }
+    }
+
+    // ------------------------------------------------------------
+
+    /** waits for all tasks, and returns how many of them failed
+     */
+    private static int waitFor(List<Future<?>> lFutures)
+    {
+        int nErrors = 0;
+
+        for (Future<?> f : lFutures)
+        {
+            try
+            {
+                f.get();
+            }
+            catch (ExecutionException e)
+            {
+                System.out.println("ERROR: " + e.getCause());
+                nErrors++;
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                nErrors++;
+            }
+        }
+
+        return nErrors;
+    }
+
+    // ------------------------------------------------------------
+
+    /** lists the files that failed in restore-failed.txt, and returns
+     * how many there were
+     */
+    int writeFailed()
+        throws IOException
+    {
+        PrintWriter wr = new PrintWriter(new BufferedWriter(new FileWriter("restore-failed.txt")));
+        try
+        {
+            List<String> l = new ArrayList<String>(m_lFailed);
+            Collections.sort(l);
+            for (String sPath : l)
+            {
+                wr.println(sPath);
+            }
+            return l.size();
+        }
+        finally
+        {
+            wr.close();
+        }
+    }
+
+    // ------------------------------------------------------------
+
+    void shutdown()
+    {
+        m_pool.shutdown();
+    }
+
+    // ------------------------------------------------------------
+
+    /**
+     * Prints out usage
+     */
+    static void usage()
+    {
+        System.err.println("Usage: hadoop com.tripadvisor.hadoop.RestoreHdfs args\n" +
+                           "  --local-path path/on/local/fs: current backup tree, or the\n" +
+                           "      comma-separated disks it is spread over\n" +
+                           "  [--past-path path/on/local/fs]: a past tree to restore over the\n" +
+                           "      current one; repeat it, newest first, to go back further\n" +
+                           "  [--pack-dir DIR]: pack directory of the backup\n" +
+                           "  [--max-pack N]: ignore packs after pack N\n" +
+                           "  [--hdfs-path hdfs://MASTER:PORT]: where to restore to, default the\n" +
+                           "      default filesystem\n" +
+                           "  [--mkdirs FILE]: the hdfs-mkdirs.sh of the backup\n" +
+                           "  [--chmods FILE]: the hdfs-chmods.sh of the backup\n" +
+                           "  [--metadata DIR]: the metadata manifest of the backup, instead of\n" +
+                           "      --mkdirs and --chmods\n" +
+                           "  [--threads N]: parallel uploads, default " + N_DEFAULT_THREADS + "\n" +
+                           "  [--skip-existing]: don't upload files that are in hdfs already\n" +
+                           "      with the same length and mtime, to restart a restore\n");
+
+        System.exit(1);
+    }
+
+    // ------------------------------------------------------------
+
+    public static void main(String[] args)
+        throws IOException
+    {
+        String sLocalPath = null;
+        List<String> lPastPaths = new ArrayList<String>();
+        String sPackDir = null;
+        int nMaxPack = -1;
+        String sHdfsRoot = "";
+        String sMkdirsFilename = null;
+        String sChmodsFilename = null;
+        String sMetadataDir = null;
+        int nThreads = N_DEFAULT_THREADS;
+        boolean bSkipExisting = false;
+
+        for (int i=0 ; i<args.length ; i++)
+        {
+            if (args[i].equals("--local-path"))
+            {
+                sLocalPath = args[++i];
+                continue;
+            }
+            if (args[i].equals("--past-path"))
+            {
+                lPastPaths.add(args[++i]);
+                continue;
+            }
+            if (args[i].equals("--pack-dir"))
+            {
+                sPackDir = args[++i];
+                continue;
+            }
+            if (args[i].equals("--max-pack"))
+            {
+                nMaxPack = Integer.parseInt(args[++i]);
+                continue;
+            }
+            if (args[i].equals("--hdfs-path"))
+            {
+                sHdfsRoot = args[++i].replaceAll("/+$", "");
+                continue;
+            }
+            if (args[i].equals("--mkdirs"))
+            {
+                sMkdirsFilename = args[++i];
+                continue;
+            }
+            if (args[i].equals("--chmods"))
+            {
+                sChmodsFilename = args[++i];
+                continue;
+            }
+            if (args[i].equals("--metadata"))
+            {
+                sMetadataDir = args[++i];
+                continue;
+            }
+            if (args[i].equals("--threads"))
+            {
+                nThreads = Integer.parseInt(args[++i]);
+                continue;
+            }
+            if (args[i].equals("--skip-existing"))
+            {
+                bSkipExisting = true;
+                continue;
+            }
+
+            System.err.println("ERROR: unknown arg " + args[i]);
+            usage();
+        }
+
+        if (sLocalPath == null || nThreads < 1)
+        {
+            usage();
+        }
+
+        Configuration conf = new Configuration();
+        FileSystem fs = (sHdfsRoot.length() == 0) ? FileSystem.get(conf)
+            : FileSystem.get(URI.create(sHdfsRoot), conf);
+
+        RestoreHdfs restore = new RestoreHdfs(fs, sHdfsRoot, nThreads);
+        restore.m_bSkipExisting = bSkipExisting;
+
+        if (sPackDir != null)
+        {
+            restore.addPacks(new PackReader(sPackDir, nMaxPack));
+        }
+
+        for (String sRoot : DiskSet.split(sLocalPath))
+        {
+            restore.addTree(sRoot);
+        }
+
+        for (String sRoot : lPastPaths)
+        {
+            restore.addTree(sRoot);
+        }
+
+        if (sMkdirsFilename != null)
+        {
+            restore.mkdirs(sMkdirsFilename);
+        }
+        if (sMetadataDir != null)
+        {
+            restore.applyMetadata(sMetadataDir, true, nThreads);
+        }
+
+        restore.restoreFiles(nThreads);
+
+        if (sChmodsFilename != null)
+        {
+            restore.applyChmods(sChmodsFilename);
+        }
+        if (sMetadataDir != null)
+        {
+            restore.applyMetadata(sMetadataDir, false, nThreads);
+        }
+
+        restore.shutdown();
+
+        if (restore.writeFailed() > 0)
+        {
+            System.err.println("Some files failed, see restore-failed.txt");
+            System.exit(1);
+        }
+
+        System.exit(0);
+    }
+}
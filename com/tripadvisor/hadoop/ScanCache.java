@@ -0,0 +1,383 @@
+/*
+  Copyright 2012 TripAdvisor, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.tripadvisor.hadoop;
+
+import org.apache.hadoop.fs.*;
+import org.apache.hadoop.fs.permission.FsPermission;
+
+import java.io.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** helper class.  keeps the directory listings of the last scan in a
+ * local file, so the next scan only lists directories that changed.
+ *
+ * An hdfs directory's mtime changes whenever an entry is added to,
+ * removed from or renamed in it.  If a directory still has the mtime
+ * it had when it was cached, its cached listing is used instead of
+ * listing it again.  Its subdirectories are not covered by that (their
+ * own contents may have changed), so their status is fetched fresh
+ * with getFileStatus, and the walk then checks each of them the same
+ * way.  One getFileStatus per directory replaces one listStatus, which
+ * for a partition with hundreds of files is many times cheaper on the
+ * namenode.
+ *
+ * Closing a file also leaves the directory mtime alone, and changes
+ * the file's mtime and length.  A file still being written when its
+ * directory was listed would keep its short cached entry, so cached
+ * file entries that may have been open then are fetched fresh too:
+ * those with an mtime less than N_OPEN_FILE_MILLIS before the listing
+ * was made, and those new enough for this run to copy.
+ *
+ * What the directory mtime does not catch, and the cached file entries
+ * therefore can miss:
+ * - appends to a file already in the directory
+ * - a file that was open for longer than N_OPEN_FILE_MILLIS when its
+ *   directory was listed
+ * - chmod/chown of a file, which only shows up in the chmods script
+ *   after the directory changes or the cache is deleted
+ *
+ * The file is rewritten by every scan: listings go to a tmp file as
+ * they are made and it replaces the old cache only after the scan got
+ * through the whole tree.
+ *
+ * File format: a magic int, then one record per directory (path, then
+ * the encoded listing: directory mtime, time of the listing, entries),
+ * then an empty path.
+ */
+final class ScanCache
+{
+    private static final int N_MAGIC = 0x42534332;  // "BSC2"
+
+    // how long before a listing a file may have been created and
+    // still be open, in millis
+    static final long N_OPEN_FILE_MILLIS = 24 * 3600 * 1000L;
+
+    private final BackupHdfs m_bak;
+    private final FileSystem m_fs;
+    private final String m_sFilename;
+    private final long m_nMinMtime;
+
+    // listings of the last scan, path -> encoded listing.  Entries
+    // are dropped as they are used.
+    private final ConcurrentHashMap<String,byte[]> m_hmOld =
+        new ConcurrentHashMap<String,byte[]>();
+
+    // mtimes of directories whose status was read in this scan and
+    // that have not been listed yet, so they need no extra lookup
+    private final ConcurrentHashMap<Path,Long> m_hmFresh =
+        new ConcurrentHashMap<Path,Long>();
+
+    private DataOutputStream m_out = null;
+
+    private final AtomicLong m_nHits = new AtomicLong();
+    private final AtomicLong m_nMisses = new AtomicLong();
+
+    // ------------------------------------------------------------
+
+    /** constructor.  nMinMtime is the oldest mtime, in millis, that
+     * this run copies.  Call load() before the scan.
+     */
+    ScanCache(BackupHdfs bak, FileSystem fs, String sFilename, long nMinMtime)
+    {
+        m_bak = bak;
+        m_fs = fs;
+        m_sFilename = sFilename;
+        m_nMinMtime = nMinMtime;
+    }
+
+    // ------------------------------------------------------------
+
+    /** reads the cache of the last scan, if there is one, and opens
+     * the tmp file for this one.  A damaged cache is ignored.
+     */
+    void load()
+        throws IOException
+    {
+        File f = new File(m_sFilename);
+        if (f.exists())
+        {
+            DataInputStream in = null;
+            try
+            {
+                in = new DataInputStream(new BufferedInputStream(new FileInputStream(f),
+                                                                 1024 * 1024));
+                if (in.readInt() != N_MAGIC)
+                {
+                    throw new IOException("not a scan cache");
+                }
+
+                String sPath;
+                while ((sPath = in.readUTF()).length() > 0)
+                {
+                    byte[] ab = new byte[in.readInt()];
+                    in.readFully(ab);
+                    m_hmOld.put(sPath, ab);
+                }
+
+                System.err.println("read " + m_hmOld.size()
+                                   + " cached directory listings from " + m_sFilename);
+            }
+            catch (IOException e)
+            {
+                System.err.println("WARNING: ignoring scan cache " + m_sFilename
+                                   + ": " + e);
+                m_hmOld.clear();
+            }
+            finally
+            {
+                try { in.close(); } catch (Exception e2) {}
+            }
+        }
+
+        m_out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(m_sFilename + ".tmp"),
+                                                              1024 * 1024));
+        m_out.writeInt(N_MAGIC);
+    }
+
+    // ------------------------------------------------------------
+
+    /** returns the listing of directory p, from the cache if p has
+     * not changed since it was cached
+     */
+    FileStatus[] listStatus(Path p)
+        throws IOException
+    {
+        Long nMtime = m_hmFresh.remove(p);
+        if (nMtime == null)
+        {
+            nMtime = m_bak.getStatus(m_fs, p).getModificationTime();
+        }
+
+        String sPath = p.toUri().getPath();
+        byte[] ab = m_hmOld.remove(sPath);
+
+        FileStatus[] fStat;
+        if (ab != null && decodeMtime(ab) == nMtime)
+        {
+            fStat = decode(p, ab);
+            long nListTime = decodeListTime(ab);
+
+            // the cached subdirectory entries are stale, and so may
+            // be files that were open when the listing was made
+            boolean bRefreshed = false;
+            int nLive = 0;
+            for (int i = 0; i < fStat.length; i++)
+            {
+                FileStatus stat = fStat[i];
+                if (stat.isDir() && ! BackupHdfs.isIgnoredDir(stat.getPath()))
+                {
+                    stat = m_bak.getStatus(m_fs, stat.getPath());
+                }
+                else if (! stat.isDir() && mayHaveBeenOpen(stat, nListTime))
+                {
+                    try
+                    {
+                        stat = m_bak.getStatus(m_fs, stat.getPath());
+                    }
+                    catch (FileNotFoundException e)
+                    {
+                        // deleted without changing the directory
+                        // mtime, which hdfs does not do, but be safe
+                        stat = null;
+                    }
+                    bRefreshed = true;
+                }
+
+                if (stat != null)
+                {
+                    fStat[nLive++] = stat;
+                }
+            }
+
+            if (nLive < fStat.length)
+            {
+                FileStatus[] fLive = new FileStatus[nLive];
+                System.arraycopy(fStat, 0, fLive, 0, nLive);
+                fStat = fLive;
+            }
+
+            // keep the time of the listing, so the same files are
+            // fetched again until the directory is listed anew
+            if (bRefreshed)
+            {
+                ab = encode(nMtime, nListTime, fStat);
+            }
+            m_nHits.incrementAndGet();
+        }
+        else
+        {
+            long nListTime = System.currentTimeMillis();
+            fStat = m_bak.listLive(m_fs, p);
+            if (fStat == null)
+            {
+                return null;
+            }
+
+            // the mtime read before listing, so a change while
+            // listing shows up as a miss next time
+            ab = encode(nMtime, nListTime, fStat);
+            m_nMisses.incrementAndGet();
+        }
+
+        for (int i = 0; i < fStat.length; i++)
+        {
+            if (fStat[i].isDir() && ! BackupHdfs.isIgnoredDir(fStat[i].getPath()))
+            {
+                m_hmFresh.put(fStat[i].getPath(), fStat[i].getModificationTime());
+            }
+        }
+
+        write(sPath, ab);
+        return fStat;
+    }
+
+    // ------------------------------------------------------------
+
+    /** replaces the old cache with the listings of this scan.  Call
+     * only after the scan went through the whole tree.
+     */
+    synchronized void save()
+        throws IOException
+    {
+        m_out.writeUTF("");
+        m_out.close();
+        m_out = null;
+
+        File tmp = new File(m_sFilename + ".tmp");
+        if (! tmp.renameTo(new File(m_sFilename)))
+        {
+            throw new IOException("can't rename " + tmp + " to " + m_sFilename);
+        }
+
+        System.err.println("scan cache: " + m_nHits.get() + " directories unchanged, "
+                           + m_nMisses.get() + " listed");
+    }
+
+    // ------------------------------------------------------------
+
+    private synchronized void write(String sPath, byte[] ab)
+        throws IOException
+    {
+        // a prefetch that finished after the scan was saved or given
+        // up on
+        if (m_out == null)
+        {
+            return;
+        }
+
+        m_out.writeUTF(sPath);
+        m_out.writeInt(ab.length);
+        m_out.write(ab);
+    }
+
+    // ------------------------------------------------------------
+
+    /** returns true if file stat, as listed at nListTime, may have
+     * been open then, or is new enough to be copied by this run
+     */
+    private boolean mayHaveBeenOpen(FileStatus stat, long nListTime)
+    {
+        return stat.getModificationTime() >= nListTime - N_OPEN_FILE_MILLIS
+            || stat.getModificationTime() >= m_nMinMtime;
+    }
+
+    // ------------------------------------------------------------
+
+    /** encodes a directory mtime, the time it was listed, and its
+     * listing
+     */
+    static byte[] encode(long nMtime, long nListTime, FileStatus[] fStat)
+        throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + 64 * fStat.length);
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        out.writeLong(nMtime);
+        out.writeLong(nListTime);
+        out.writeInt(fStat.length);
+
+        for (FileStatus stat : fStat)
+        {
+            out.writeUTF(stat.getPath().getName());
+            out.writeBoolean(stat.isDir());
+            out.writeLong(stat.getLen());
+            out.writeShort(stat.getReplication());
+            out.writeLong(stat.getBlockSize());
+            out.writeLong(stat.getModificationTime());
+            out.writeLong(stat.getAccessTime());
+            out.writeShort(stat.getPermission().toShort());
+            out.writeUTF(stat.getOwner());
+            out.writeUTF(stat.getGroup());
+        }
+
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    // ------------------------------------------------------------
+
+    private static long decodeMtime(byte[] ab)
+        throws IOException
+    {
+        return new DataInputStream(new ByteArrayInputStream(ab)).readLong();
+    }
+
+    // ------------------------------------------------------------
+
+    private static long decodeListTime(byte[] ab)
+        throws IOException
+    {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(ab));
+        in.readLong();
+        return in.readLong();
+    }
+
+    // ------------------------------------------------------------
+
+    /** decodes the listing of directory dir
+     */
+    static FileStatus[] decode(Path dir, byte[] ab)
+        throws IOException
+    {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(ab));
+
+        in.readLong();
+        in.readLong();
+        FileStatus[] fStat = new FileStatus[in.readInt()];
+
+        for (int i = 0; i < fStat.length; i++)
+        {
+            String sName = in.readUTF();
+            boolean bDir = in.readBoolean();
+            long nLen = in.readLong();
+            short nReplication = in.readShort();
+            long nBlockSize = in.readLong();
+            long nMtime = in.readLong();
+            long nAtime = in.readLong();
+            short nPermission = in.readShort();
+            String sOwner = in.readUTF();
+            String sGroup = in.readUTF();
+
+            fStat[i] = new FileStatus(nLen, bDir, nReplication, nBlockSize,
+                                      nMtime, nAtime, new FsPermission(nPermission),
+                                      sOwner, sGroup, new Path(dir, sName));
+        }
+
+        return fStat;
+    }
+}
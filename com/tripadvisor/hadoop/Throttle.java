@@ -0,0 +1,240 @@
+/*
+  Copyright 2012 TripAdvisor, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.tripadvisor.hadoop;
+
+import java.io.*;
+
+/** helper class.  limits the bytes per second and files per second
+ * copied by all copy threads together, with a token bucket for each.
+ * A bucket holds at most one second worth of tokens, so a limit is
+ * never exceeded by more than a second's burst.  A rate of 0 means no
+ * limit.
+ *
+ * The limits can be changed while the backup runs by editing the
+ * control file, which is checked every few seconds:
+ *
+ *   # comments and empty lines are ignored
+ *   bytes-per-sec 50000000
+ *   files-per-sec 200
+ *
+ * A key left out of the file keeps the limit given on the command
+ * line.
+ */
+final class Throttle
+{
+    static final String S_BYTES_PER_SEC = "bytes-per-sec";
+    static final String S_FILES_PER_SEC = "files-per-sec";
+
+    // how often to look at the control file, in millis
+    static final long N_CHECK_INTERVAL = 5 * 1000;
+
+    private final TokenBucket m_bytes = new TokenBucket();
+    private final TokenBucket m_files = new TokenBucket();
+
+    private final long m_nDefaultBytesPerSec;
+    private final long m_nDefaultFilesPerSec;
+
+    private final File m_controlFile;
+    private long m_nControlMtime = -1;
+    private long m_nLastCheck = 0;
+
+    // ------------------------------------------------------------
+
+    /** constructor.  sControlFile may be null.
+     */
+    Throttle(long nBytesPerSec, long nFilesPerSec, String sControlFile)
+    {
+        m_nDefaultBytesPerSec = nBytesPerSec;
+        m_nDefaultFilesPerSec = nFilesPerSec;
+        m_controlFile = (sControlFile == null) ? null : new File(sControlFile);
+
+        m_bytes.setRate(nBytesPerSec);
+        m_files.setRate(nFilesPerSec);
+
+        checkControlFile();
+    }
+
+    // ------------------------------------------------------------
+
+    /** waits until nBytes more may be copied
+     */
+    void acquireBytes(long nBytes)
+    {
+        checkControlFile();
+        sleep(m_bytes.reserve(nBytes));
+    }
+
+    // ------------------------------------------------------------
+
+    /** waits until one more file may be copied
+     */
+    void acquireFile()
+    {
+        checkControlFile();
+        sleep(m_files.reserve(1));
+    }
+
+    // ------------------------------------------------------------
+
+    /** re-reads the control file if it changed, at most once per
+     * interval
+     */
+    private void checkControlFile()
+    {
+        if (m_controlFile == null)
+        {
+            return;
+        }
+
+        synchronized (this)
+        {
+            long now = System.currentTimeMillis();
+            if (m_nLastCheck != 0 && now - m_nLastCheck < N_CHECK_INTERVAL)
+            {
+                return;
+            }
+            m_nLastCheck = now;
+
+            long nMtime = m_controlFile.lastModified();
+            if (nMtime == m_nControlMtime)
+            {
+                return;
+            }
+            m_nControlMtime = nMtime;
+
+            long nBytesPerSec = m_nDefaultBytesPerSec;
+            long nFilesPerSec = m_nDefaultFilesPerSec;
+
+            // a missing file means the command line limits
+            if (nMtime != 0)
+            {
+                BufferedReader in = null;
+                try
+                {
+                    in = new BufferedReader(new FileReader(m_controlFile));
+
+                    String sLine;
+                    while ((sLine = in.readLine()) != null)
+                    {
+                        sLine = sLine.trim();
+                        if (sLine.length() == 0 || sLine.startsWith("#"))
+                        {
+                            continue;
+                        }
+
+                        String[] as = sLine.split("[\\s=]+");
+                        if (as.length == 2 && as[0].equals(S_BYTES_PER_SEC))
+                        {
+                            nBytesPerSec = Long.parseLong(as[1]);
+                        }
+                        else if (as.length == 2 && as[0].equals(S_FILES_PER_SEC))
+                        {
+                            nFilesPerSec = Long.parseLong(as[1]);
+                        }
+                        else
+                        {
+                            System.err.println("WARNING: ignoring line in "
+                                               + m_controlFile + ": " + sLine);
+                        }
+                    }
+                }
+                catch (Exception e)
+                {
+                    System.err.println("WARNING: failed to read " + m_controlFile
+                                       + ", keeping the current limits: " + e);
+                    return;
+                }
+                finally
+                {
+                    try { in.close(); } catch (Exception e2) {}
+                }
+            }
+
+            m_bytes.setRate(nBytesPerSec);
+            m_files.setRate(nFilesPerSec);
+
+            System.err.println("throttle: " + S_BYTES_PER_SEC + "=" + nBytesPerSec
+                               + ", " + S_FILES_PER_SEC + "=" + nFilesPerSec);
+        }
+    }
+
+    // ------------------------------------------------------------
+
+    private static void sleep(long nNanos)
+    {
+        if (nNanos <= 0)
+        {
+            return;
+        }
+
+        try
+        {
+            Thread.sleep(nNanos / 1000000, (int) (nNanos % 1000000));
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // ------------------------------------------------------------
+
+    /** token bucket.  Tokens may go negative: a caller takes what it
+     * needs right away and sleeps off the debt, so a request larger
+     * than the bucket still gets through at the set rate.
+     */
+    private static final class TokenBucket
+    {
+        private long m_nRate = 0;
+        private double m_dTokens = 0;
+        private long m_nLastRefill = System.nanoTime();
+
+        synchronized void setRate(long nRate)
+        {
+            refill();
+            m_nRate = nRate;
+            m_dTokens = Math.min(m_dTokens, nRate);
+        }
+
+        /** takes n tokens, and returns how many nanos the caller has
+         * to wait for them
+         */
+        synchronized long reserve(long n)
+        {
+            if (m_nRate <= 0)
+            {
+                return 0;
+            }
+
+            refill();
+            m_dTokens -= n;
+
+            return (m_dTokens >= 0) ? 0 : (long) (-m_dTokens * 1e9 / m_nRate);
+        }
+
+        private void refill()
+        {
+            long now = System.nanoTime();
+            if (m_nRate > 0)
+            {
+                m_dTokens = Math.min(m_nRate,
+                                     m_dTokens + (now - m_nLastRefill) * (double) m_nRate / 1e9);
+            }
+            m_nLastRefill = now;
+        }
+    }
+}
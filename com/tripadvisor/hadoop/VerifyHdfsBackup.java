@@ -45,6 +45,12 @@ public class VerifyHdfsBackup
 {
     private TablesToIgnore m_ignoreTables;
 
+    // set with --pack-dir: small files backed up into packs
+    private PackReader m_packs;
+
+    // set when --local-path lists several disks: where each file is
+    private DiskSet m_disks;
+
     // assume the hdfs block size.  Prod cluster uses 128M, as opposed
     // to the hadoop default 64M.
     final static long N_BLOCK_SIZE = 128 * 1024 * 1024;
@@ -60,10 +66,18 @@ public class VerifyHdfsBackup
     {
         System.err.println("Usage: hadoop com.tripadvisor.hadoop.VerifyHdfsBackup args\n" +
                            "  --hdfs-path path/on/hdfs\n" +
-                           "  --local-path path/on/local/fs: path to hdfs backup\n" +
+                           "  --local-path path/on/local/fs: path to hdfs backup, or the\n" +
+                           "      comma-separated disks it is spread over\n" +
+                           "  [--placement-index FILE]: placement index of the disks, if not\n" +
+                           "      the default\n" +
                            "  [--max-date UNIX-time]: don't verify any newer files\n" +
                            "  [--ignore-tables FILE]: list of tables to ignore\n" +
-                           "  --from-file FILE: list of filenames to verify\n");
+                           "  [--pack-dir DIR]: pack directory, for the files that were packed\n" +
+                           "  --from-file FILE: list of filenames to verify\n" +
+                           "  [--metrics-file FILE]: write counters and latencies of the run to\n" +
+                           "      FILE in the Prometheus text format; they are also over JMX\n" +
+                           "  [--metrics-interval SECONDS]: how often to write it, default "
+                           + (BackupMetrics.N_DEFAULT_INTERVAL / 1000) + "\n");
 
 
         System.exit(1);
@@ -77,6 +91,10 @@ public class VerifyHdfsBackup
         String sIgnoreTablesFilename = null;
         String sMaxDateString = null;
         String sFromFilename = null;
+        String sPackDir = null;
+        String sPlacementIndex = null;
+        String sMetricsFilename = null;
+        long nMetricsInterval = BackupMetrics.N_DEFAULT_INTERVAL;
 
         for (int i=0 ; i<args.length ; i++)
         {
@@ -100,11 +118,31 @@ public class VerifyHdfsBackup
                 sMaxDateString = args[++i];
                 continue;
             }
+            if (args[i].equals("--pack-dir"))
+            {
+                sPackDir = args[++i];
+                continue;
+            }
+            if (args[i].equals("--placement-index"))
+            {
+                sPlacementIndex = args[++i];
+                continue;
+            }
             if (args[i].equals("--from-file"))
             {
                 sFromFilename = args[++i];
                 continue;
             }
+            if (args[i].equals("--metrics-file"))
+            {
+                sMetricsFilename = args[++i];
+                continue;
+            }
+            if (args[i].equals("--metrics-interval"))
+            {
+                nMetricsInterval = Long.parseLong(args[++i]) * 1000;
+                continue;
+            }
 
             System.err.println("ERROR: unknown arg " + args[i]);
             usage();
@@ -132,8 +170,21 @@ public class VerifyHdfsBackup
             bak.initializeTablesToIgnore(sIgnoreTablesFilename);
         }
 
+        if (sPackDir != null)
+        {
+            bak.m_packs = new PackReader(sPackDir, -1);
+        }
+
+        String[] asLocalPaths = DiskSet.split(sLocalPathRoot);
+        if (asLocalPaths.length > 1)
+        {
+            bak.m_disks = new DiskSet(asLocalPaths, null, sPlacementIndex);
+        }
+
+        BackupMetrics.start("VerifyHdfsBackup", sMetricsFilename, nMetricsInterval);
+
         Configuration conf = new Configuration();
-        FileSystem fs = FileSystem.get(conf);
+        FileSystem fs = BackupMetrics.wrap(FileSystem.get(conf));
 
         if (sFromFilename != null)
         {
@@ -272,13 +323,28 @@ public class VerifyHdfsBackup
                     sCkShort = sCk.replaceAll("^.*:", "");
                 }
 
+                BackupMetrics.count("files_verified", 1);
+                BackupMetrics.count("bytes_verified", stat.getLen());
+
                 System.out.println(sPath + " len=" + stat.getLen()
                                    + " " + stat.getOwner() + "/" + stat.getGroup()
                                    + " checksum=" + sCk);
 
-                // find the local file
-                String sFsPath = sLocalPathRoot + p.toUri().getPath();
-                File fLocal = new File(sFsPath);
+                // find the local file, on its disk
+                String sRoot = (m_disks == null) ? sLocalPathRoot
+                    : m_disks.getRoot(m_disks.find(p.toUri().getPath()));
+                String sFsPath = sRoot + p.toUri().getPath();
+                File fLocal = ParallelGzip.findCopy(new File(sFsPath));
+
+                // a local copy wins over the packs
+                PackReader.Entry packed = (m_packs == null || fLocal.exists())
+                    ? null : m_packs.get(sPath);
+                if (packed != null)
+                {
+                    checkPacked(stat, packed, sCk, sCkShort);
+                    return;
+                }
+
                 if (! fLocal.exists())
                 {
                     Calendar cal = Calendar.getInstance();
@@ -286,6 +352,7 @@ public class VerifyHdfsBackup
 
                     System.out.println("ERROR: file does not exist: " + sFsPath
                                        + " hdfs-last-mtime=" + cal.getTime().toString());
+                    BackupMetrics.count("files_missing", 1);
                     return;
                 }
                 if (! fLocal.isFile())
@@ -293,16 +360,20 @@ public class VerifyHdfsBackup
                     System.out.println("ERROR: path is not a file: " + sFsPath);
                     return;
                 }
-                if (stat.getLen() != fLocal.length())
+                // a compressed copy has the length checked by its
+                // checksum only
+                if (! ParallelGzip.isCompressedCopy(fLocal)
+                    && stat.getLen() != fLocal.length())
                 {
                     System.out.println("ERROR: length mismatch: " + sFsPath
                                        + " hdfslen=" + stat.getLen()
                                        + " fslen=" + fLocal.length());
+                    BackupMetrics.count("files_mismatched", 1);
                     return;
                 }
 
                 // get local fs checksum
-                FileChecksum ckLocal = getLocalFileChecksum(sFsPath);
+                FileChecksum ckLocal = getLocalFileChecksum(fLocal.getPath());
                 if (ckLocal == null)
                 {
                     System.out.println("ERROR Failed to get checksum for local file " + sFsPath);
@@ -319,6 +390,7 @@ public class VerifyHdfsBackup
                     System.out.println("ERROR: checksum mismatch: " + sFsPath
                                        + "\nhdfs = " + sCk
                                        + "\nlocal= " + sCkLocal);
+                    BackupMetrics.count("files_mismatched", 1);
                     return;
                 }
             }
@@ -333,6 +405,40 @@ public class VerifyHdfsBackup
 
     // ------------------------------------------------------------
 
+    /** compares hdfs file stat with its newest packed copy, by
+     * checksumming the bytes in the pack
+     */
+    void checkPacked(FileStatus stat, PackReader.Entry packed, String sCk, String sCkShort)
+        throws IOException
+    {
+        String sPath = stat.getPath().toUri().getPath();
+
+        if (stat.getLen() != packed.m_nLength)
+        {
+            System.out.println("ERROR: length mismatch: " + sPath
+                               + " hdfslen=" + stat.getLen()
+                               + " packlen=" + packed.m_nLength);
+            BackupMetrics.count("files_mismatched", 1);
+            return;
+        }
+
+        long nStart = System.nanoTime();
+        byte[] ab = m_packs.read(packed);
+        String sCkLocal = HDFSStyleChecksumOutputStream.checksum(ab, 0, ab.length, N_BLOCK_SIZE).toString();
+        BackupMetrics.observe("local_checksum_seconds", null, nStart);
+        String sCkLocalShort = sCkLocal.replaceAll("^.*:", "");
+
+        if (false == sCkShort.equals(sCkLocalShort))
+        {
+            System.out.println("ERROR: checksum mismatch: " + sPath + " in pack " + packed.m_nPack
+                               + "\nhdfs = " + sCk
+                               + "\nlocal= " + sCkLocal);
+            BackupMetrics.count("files_mismatched", 1);
+        }
+    }
+
+    // ------------------------------------------------------------
+
     /** get the list of tables that get synced from tripmaster --
      * we'll want to ignore those.  Stores the names in lowercase in
      * the provided hashset.
@@ -367,8 +473,14 @@ public class VerifyHdfsBackup
         long lBlockSize = N_BLOCK_SIZE;
         int bytesPerCRC = 512;
 
+        long nStart = System.nanoTime();
         try
         {
+            if (ParallelGzip.isCompressedCopy(new File(sPath)))
+            {
+                return ParallelGzip.checksum(new File(sPath), lBlockSize);
+            }
+
             return g_checksumGenerator.getLocalFilesystemHDFSStyleChecksum
                 (sPath, bytesPerCRC, lBlockSize);
         }
@@ -378,5 +490,9 @@ public class VerifyHdfsBackup
             e.printStackTrace();
             return null;
         }
+        finally
+        {
+            BackupMetrics.observe("local_checksum_seconds", null, nStart);
+        }
     }
 }
@@ -0,0 +1,121 @@
+/*
+  Copyright 2012 TripAdvisor, LLC
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.tripadvisor.hadoop;
+
+import java.util.*;
+
+/** helper class.  tracks the resume timestamp of a backup run when
+ * files are not finished in timestamp order.  The next run picks up
+ * every file with an mtime at or after the timestamp passed to
+ * --date, so the safe value to hand it is the oldest mtime (in UNIX
+ * seconds) of any file that has not been copied: files still being
+ * copied, files that failed, and files that were never started.
+ *
+ * All methods are thread-safe.
+ */
+final class Watermark
+{
+    // mtimes of files currently being copied, with a count for
+    // duplicate mtimes
+    private final TreeMap<Long,Integer> m_tmInFlight = new TreeMap<Long,Integer>();
+
+    // oldest mtime of any file that was not and will not be copied
+    private long m_nOldestMissed = Long.MAX_VALUE;
+
+    // ------------------------------------------------------------
+
+    /** a file with this mtime started copying
+     */
+    synchronized void begin(long nMtime)
+    {
+        Integer n = m_tmInFlight.get(nMtime);
+        m_tmInFlight.put(nMtime, (n == null) ? 1 : n + 1);
+    }
+
+    // ------------------------------------------------------------
+
+    /** a file started with begin() was copied successfully
+     */
+    synchronized void finish(long nMtime)
+    {
+        remove(nMtime);
+    }
+
+    // ------------------------------------------------------------
+
+    /** a file started with begin() was not copied
+     */
+    synchronized void abandon(long nMtime)
+    {
+        remove(nMtime);
+        miss(nMtime);
+    }
+
+    // ------------------------------------------------------------
+
+    /** a file with this mtime will not be copied by this run
+     */
+    synchronized void miss(long nMtime)
+    {
+        m_nOldestMissed = Math.min(m_nOldestMissed, nMtime);
+    }
+
+    // ------------------------------------------------------------
+
+    /** returns true if every file seen so far was copied
+     */
+    synchronized boolean isComplete()
+    {
+        return m_tmInFlight.isEmpty() && m_nOldestMissed == Long.MAX_VALUE;
+    }
+
+    // ------------------------------------------------------------
+
+    /** returns the oldest mtime of any file that is not copied yet,
+     * or nDefault if there is none.
+     */
+    synchronized long get(long nDefault)
+    {
+        long n = m_nOldestMissed;
+        if (! m_tmInFlight.isEmpty())
+        {
+            n = Math.min(n, m_tmInFlight.firstKey());
+        }
+
+        return (n == Long.MAX_VALUE) ? nDefault : n;
+    }
+
+    // ------------------------------------------------------------
+
+    private void remove(long nMtime)
+    {
+        Integer n = m_tmInFlight.get(nMtime);
+        if (n == null)
+        {
+            return;
+        }
+
+        if (n == 1)
+        {
+            m_tmInFlight.remove(nMtime);
+        }
+        else
+        {
+            m_tmInFlight.put(nMtime, n - 1);
+        }
+    }
+}
@@ -122,7 +122,7 @@ fi
 
 # run the java app in hadoop process
 echo;echo -n "starting hdfs backup: "; date
-su hdfs -c "HADOOP_CLASSPATH=$CP hadoop com.tripadvisor.hadoop.BackupHdfs --hdfs-path $HDFSMASTER --local-path $backupDir --preserve-path $preserveDir --ignore-tables ignore-tables.txt $minDateArg $maxDateArg $dryRunArg" >backup.log 2>&1
+su hdfs -c "HADOOP_CLASSPATH=$CP hadoop com.tripadvisor.hadoop.BackupHdfs --hdfs-path $HDFSMASTER --local-path $backupDir --preserve-path $preserveDir --ignore-tables ignore-tables.txt --event-log events.jsonl --summary summary.json --quiet $minDateArg $maxDateArg $dryRunArg" >backup.log 2>&1
 echo;echo -n "done with hdfs backup: "; date
 
 if [[ ! $? ]]; 
@@ -133,17 +133,15 @@ then
 else
     rm -f $tstampFile".prev" >/dev/null 2>&1
     mv -f $tstampFile $tstampFile".prev" >/dev/null 2>&1
-    tail -n 1 backup.log > $tstampFile
 
-    # show some of the output, summarize preserved files
+    # the watermark for the next run is in the run summary; each
+    # file copied, skipped or preserved is in events.jsonl
+    grep -E '"watermark": [0-9]+' summary.json | grep -o -E '[0-9]+' > $tstampFile
+
+    # show the summary and the errors
     echo;echo "--------------------"
-    grep -v "File /.* bytes, perms: " backup.log \
-        | grep -v "^progress" \
-        | sed 's/ into.*//;' \
-        | sed -re 's/\/[0-9]+_[0-9]//g;' \
-        | sed -re 's/[a-z_]+=[^\/ ]+//g;' \
-	| uniq -c \
-        | sed 's/^      1 /        /;'
+    cat summary.json
+    grep -E "ERROR|FAILED|QUARANTINED" backup.log | head -n 50
     echo;echo "--------------------"
 fi
 